@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.benchmark;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.example.clipview.utils.ClipGeometry;
+
+/**
+ * 截图框几何计算，对应ClipLayout中的getVisibleRect()、isMatrixOutFrame()、getClipMatrix()和fixMatrix()。
+ * isOutFrame、corners、clipRect为{@link LegacyClipGeometry}中原先只支持直角旋转的实现，
+ * legacyCorners为更早用装箱Point排序求最近、最远角的实现，都作为对照。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClipGeometryBenchmark {
+    private final Corpus mCorpus = new Corpus(42);
+    private final float[] mRect = new float[4];
+    private final int[] mBounds = new int[4];
+    private final int[] mPoint = new int[2];
+    private final int[] mClip = new int[4];
+    private final float[] mTranslation = new float[2];
+    private final float[] mInverse = new float[9];
+    private int mIndex;
+
+    @Benchmark
+    public float[] visibleRect() {
+        int i = mIndex++ & Corpus.MASK;
+        ClipGeometry.visibleRect(mCorpus.matrices[i], mCorpus.previewWidths[i], mCorpus.previewHeights[i], mRect);
+        return mRect;
+    }
+
+    @Benchmark
+    public boolean isOutFrame() {
+        int i = mIndex++ & Corpus.MASK;
+        return LegacyClipGeometry.isOutFrame(mCorpus.matrices[i], mCorpus.previewWidths[i], mCorpus.previewHeights[i],
+                mCorpus.clipRect, mRect);
+    }
+
+    @Benchmark
+    public boolean covers() {
+        int i = mIndex++ & Corpus.MASK;
+        return ClipGeometry.covers(mCorpus.matrices[i], mCorpus.previewWidths[i], mCorpus.previewHeights[i],
+                mCorpus.clipRect, mInverse);
+    }
+
+    /**
+     * ClipLayout.onTouch()中每个事件的判断：isMatrixOutFrame()（截图框是否在图片内）和抬起时的isOutScale()
+     */
+    @Benchmark
+    public boolean touchMove() {
+        int i = mIndex++ & Corpus.MASK;
+        float[] values = mCorpus.matrices[i];
+        int width = mCorpus.previewWidths[i];
+        int height = mCorpus.previewHeights[i];
+        boolean outFrame = !ClipGeometry.covers(values, width, height, mCorpus.clipRect, mInverse);
+        ClipGeometry.visibleRect(values, width, height, mRect);
+        float minScaleSize = Math.min(mRect[ClipGeometry.RIGHT] - mRect[ClipGeometry.LEFT], mRect[ClipGeometry.BOTTOM]
+                - mRect[ClipGeometry.TOP]);
+        return outFrame || minScaleSize > Corpus.MAX_SCALE_SIZE;
+    }
+
+    @Benchmark
+    public int[] corners() {
+        int i = mIndex++ & Corpus.MASK;
+        insertRect(i);
+        LegacyClipGeometry.mapBounds(mCorpus.matrices[i], mCorpus.previewWidths[i], mCorpus.previewHeights[i], mBounds);
+        LegacyClipGeometry.corner(mBounds[ClipGeometry.LEFT], mBounds[ClipGeometry.TOP], mRect, false, mClip);
+        LegacyClipGeometry.corner(mBounds[ClipGeometry.LEFT], mBounds[ClipGeometry.TOP], mRect, true, mPoint);
+        mClip[2] = mPoint[0];
+        mClip[3] = mPoint[1];
+        return mClip;
+    }
+
+    @Benchmark
+    public void legacyCorners(Blackhole blackhole) {
+        int i = mIndex++ & Corpus.MASK;
+        insertRect(i);
+        LegacyClipGeometry.mapBounds(mCorpus.matrices[i], mCorpus.previewWidths[i], mCorpus.previewHeights[i], mBounds);
+        Point target = new Point(mBounds[ClipGeometry.LEFT], mBounds[ClipGeometry.TOP]);
+        blackhole.consume(legacyCorner(false, target, corners(mRect)));
+        blackhole.consume(legacyCorner(true, target, corners(mRect)));
+    }
+
+    @Benchmark
+    public int[] clipRect() {
+        int i = mIndex++ & Corpus.MASK;
+        insertRect(i);
+        LegacyClipGeometry.mapBounds(mCorpus.matrices[i], mCorpus.previewWidths[i], mCorpus.previewHeights[i], mBounds);
+        LegacyClipGeometry.clipRect(mBounds, mRect, mCorpus.previewWidths[i], mCorpus.previewHeights[i], mPoint, mClip);
+        return mClip;
+    }
+
+    @Benchmark
+    public float[] cropRegion() {
+        int i = mIndex++ & Corpus.MASK;
+        ClipGeometry.cropRegion(mCorpus.matrices[i], mCorpus.previewWidths[i], mCorpus.previewHeights[i],
+                mCorpus.clipRect, mInverse, mRect);
+        return mRect;
+    }
+
+    @Benchmark
+    public float[] fixTranslation() {
+        int i = mIndex++ & Corpus.MASK;
+        float[] from = mCorpus.matrices[i];
+        float[] to = mCorpus.targetMatrices[i];
+        insertRect(i);
+        ClipGeometry.fixTranslation(mRect, mCorpus.clipRect, from[2], from[5], to[2], to[5], mTranslation);
+        return mTranslation;
+    }
+
+    /**
+     * 与ClipLayout.getInsertRect()相同，结果在mRect中
+     */
+    private void insertRect(int i) {
+        ClipGeometry.visibleRect(mCorpus.matrices[i], mCorpus.previewWidths[i], mCorpus.previewHeights[i], mRect);
+        ClipGeometry.intersect(mRect, mCorpus.clipRect);
+    }
+
+    private static Point[] corners(float[] rect) {
+        int left = (int) rect[ClipGeometry.LEFT];
+        int top = (int) rect[ClipGeometry.TOP];
+        int right = (int) rect[ClipGeometry.RIGHT];
+        int bottom = (int) rect[ClipGeometry.BOTTOM];
+        return new Point[] { new Point(left, top), new Point(left, bottom), new Point(right, top),
+                new Point(right, bottom) };
+    }
+
+    private static Point legacyCorner(final boolean farthest, final Point target, Point... points) {
+        Comparator<Point> comparator = new Comparator<Point>() {
+            @Override
+            public int compare(Point o1, Point o2) {
+                double p1 = Math.pow(o1.x - target.x, 2) + Math.pow(o1.y - target.y, 2);
+                double p2 = Math.pow(o2.x - target.x, 2) + Math.pow(o2.y - target.y, 2);
+                int result = p1 < p2 ? -1 : (p1 == p2 ? 0 : 1);
+                return farthest ? -result : result;
+            }
+        };
+        List<Point> list = Arrays.asList(points);
+        Collections.sort(list, comparator);
+        return list.get(0);
+    }
+
+    /**
+     * 代替android.graphics.Point
+     */
+    private static final class Point {
+        final int x;
+        final int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
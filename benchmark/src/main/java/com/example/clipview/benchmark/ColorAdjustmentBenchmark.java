@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.clipview.utils.ColorAdjustment;
+
+/**
+ * 色彩调整：ARGB和RGB_565的单线程查表，以及按行分条的并行处理。
+ * 像素原地调整，重复调整后的取值不影响查表的耗时
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ColorAdjustmentBenchmark {
+    /** 预览图大小和相机原图大小 */
+    @Param({ "720x1280", "3024x4032" })
+    public String size;
+
+    private final ColorAdjustment mAdjustment = new ColorAdjustment(0.3f, 25, 1.2f);
+    private int mWidth;
+    private int mHeight;
+    private int[] mPixels;
+    private short[] mPixels565;
+
+    @Setup
+    public void setUp() {
+        int separator = size.indexOf('x');
+        mWidth = Integer.parseInt(size.substring(0, separator));
+        mHeight = Integer.parseInt(size.substring(separator + 1));
+        Random random = new Random(42);
+        mPixels = new int[mWidth * mHeight];
+        mPixels565 = new short[mWidth * mHeight];
+        for (int i = 0; i < mPixels.length; i++) {
+            mPixels[i] = random.nextInt();
+            mPixels565[i] = (short) random.nextInt();
+        }
+    }
+
+    @Benchmark
+    public int[] applyRange() {
+        mAdjustment.applyRange(mPixels, 0, mPixels.length);
+        return mPixels;
+    }
+
+    @Benchmark
+    public short[] applyRange565() {
+        mAdjustment.applyRange565(mPixels565, 0, mPixels565.length);
+        return mPixels565;
+    }
+
+    @Benchmark
+    public int[] apply() {
+        mAdjustment.apply(mPixels, mWidth, mHeight);
+        return mPixels;
+    }
+
+    @Benchmark
+    public short[] apply565() {
+        mAdjustment.apply565(mPixels565, mWidth, mHeight);
+        return mPixels565;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.benchmark;
+
+import java.util.Random;
+
+/**
+ * 固定种子生成的合成数据：常见相机尺寸及随机尺寸、缩放级别、旋转角度和拖动偏移，供基准和测试共用
+ */
+public final class Corpus {
+    public static final int SIZE = 1024;
+    public static final int MASK = SIZE - 1;
+
+    private static final int SCREEN_WIDTH = 1080;
+    private static final int SCREEN_HEIGHT = 1920;
+    private static final int CLIP_SIZE = SCREEN_WIDTH * 2 / 3;
+    private static final float MAX_SCALE = 10.0f;
+    /** ClipLayout.isOutScale()的上限：屏幕宽乘以MAX_SCALE */
+    public static final float MAX_SCALE_SIZE = SCREEN_WIDTH * MAX_SCALE;
+
+    private static final int[][] CAMERA_SIZES = { { 4032, 3024 }, { 3264, 2448 }, { 2592, 1944 }, { 1920, 1080 },
+            { 1280, 720 }, { 640, 480 }, { 12000, 9000 }, { 8000, 1500 }, { 1080, 1080 }, { 320, 240 } };
+    private static final int[] ROTATIONS = { 0, 90, 180, 270 };
+    private static final int[] REQUEST_SIZES = { 100, 200, 400, 800, 1080 };
+
+    /** 原图宽高 */
+    public final int[] sourceWidths = new int[SIZE];
+    public final int[] sourceHeights = new int[SIZE];
+    /** 解码要求宽高 */
+    public final int[] requestWidths = new int[SIZE];
+    public final int[] requestHeights = new int[SIZE];
+    /** 预览图宽高，按截图框覆盖缩放 */
+    public final int[] previewWidths = new int[SIZE];
+    public final int[] previewHeights = new int[SIZE];
+    /** 预览图矩阵 */
+    public final float[][] matrices = new float[SIZE][];
+    /** 回弹目标矩阵 */
+    public final float[][] targetMatrices = new float[SIZE][];
+    /** 截图框 */
+    public final float[] clipRect;
+
+    public Corpus(long seed) {
+        Random random = new Random(seed);
+        float clipLeft = (SCREEN_WIDTH - CLIP_SIZE) / 2;
+        float clipTop = (SCREEN_HEIGHT - CLIP_SIZE) / 2;
+        clipRect = new float[] { clipLeft, clipTop, clipLeft + CLIP_SIZE, clipTop + CLIP_SIZE };
+        float centerX = SCREEN_WIDTH / 2.0f;
+        float centerY = SCREEN_HEIGHT / 2.0f;
+
+        for (int i = 0; i < SIZE; i++) {
+            int width;
+            int height;
+            if (random.nextInt(4) == 0) {
+                width = 16 + random.nextInt(8000);
+                height = 16 + random.nextInt(8000);
+            } else {
+                int[] size = CAMERA_SIZES[random.nextInt(CAMERA_SIZES.length)];
+                boolean portrait = random.nextBoolean();
+                width = portrait ? size[1] : size[0];
+                height = portrait ? size[0] : size[1];
+            }
+            sourceWidths[i] = width;
+            sourceHeights[i] = height;
+            int request = REQUEST_SIZES[random.nextInt(REQUEST_SIZES.length)];
+            requestWidths[i] = request;
+            requestHeights[i] = random.nextBoolean() ? request : request * 3 / 4;
+
+            float cover = Math.max((float) CLIP_SIZE / width, (float) CLIP_SIZE / height);
+            int previewWidth = Math.max(1, Math.round(width * cover));
+            int previewHeight = Math.max(1, Math.round(height * cover));
+            previewWidths[i] = previewWidth;
+            previewHeights[i] = previewHeight;
+
+            int degrees = ROTATIONS[random.nextInt(ROTATIONS.length)];
+            // 缩放级别按对数均匀分布在[0.5, MAX_SCALE]
+            float zoom = (float) Math.exp(Math.log(0.5) + random.nextDouble() * (Math.log(MAX_SCALE) - Math.log(0.5)));
+            // 一部分样本拖出截图框，覆盖回弹修正的各个分支
+            float dragX = random.nextInt(3) == 0 ? (random.nextFloat() - 0.5f) * CLIP_SIZE * 2 : 0;
+            float dragY = random.nextInt(3) == 0 ? (random.nextFloat() - 0.5f) * CLIP_SIZE * 2 : 0;
+            matrices[i] = matrix(degrees, zoom, previewWidth, previewHeight, centerX + dragX, centerY + dragY);
+            targetMatrices[i] = matrix(degrees, Math.max(1, zoom), previewWidth, previewHeight, centerX, centerY);
+        }
+    }
+
+    /**
+     * 与Matrix.getValues()相同排列的矩阵：绕原点旋转、缩放后将图片中心平移到指定点
+     */
+    private static float[] matrix(int degrees, float scale, int width, int height, float centerX, float centerY) {
+        double radians = Math.toRadians(degrees);
+        float cos = (float) Math.round(Math.cos(radians)) * scale;
+        float sin = (float) Math.round(Math.sin(radians)) * scale;
+        float halfWidth = width / 2.0f;
+        float halfHeight = height / 2.0f;
+        float translateX = centerX - (cos * halfWidth - sin * halfHeight);
+        float translateY = centerY - (sin * halfWidth + cos * halfHeight);
+        return new float[] { cos, -sin, translateX, sin, cos, translateY, 0, 0, 1 };
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.benchmark;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * 合成的图片文件头：JPEG（可带EXIF方向及大段填充）、PNG、WebP，供基准和测试共用
+ */
+public final class HeaderFixtures {
+    /** {@link #samples()}中每个样本的宽、高、方向 */
+    public static final int[][] EXPECTED = { { 4032, 3024, 90 }, { 3264, 2448, 0 }, { 1080, 1920, 270 },
+            { 640, 480, 0 }, { 12000, 9000, 180 }, { 1920, 1080, 0 }, { 300, 200, 0 }, { 5000, 4000, 0 } };
+
+    private HeaderFixtures() {
+    }
+
+    /**
+     * 带或不带EXIF的JPEG（含SOF0在48KB的EXIF之后的样本）、PNG、无损和扩展格式的WebP
+     */
+    public static byte[][] samples() {
+        return new byte[][] { jpeg(4032, 3024, 6, 0), jpeg(3264, 2448, 0, 0), jpeg(1080, 1920, 8, 48 * 1024),
+                jpeg(640, 480, 0, 0), jpeg(12000, 9000, 3, 20 * 1024), png(1920, 1080), webpLossless(300, 200),
+                webpExtended(5000, 4000) };
+    }
+
+    /**
+     * SOI、APP0、可选的APP1（EXIF方向及填充）、DQT、SOF0
+     */
+    public static byte[] jpeg(int width, int height, int exifOrientation, int exifPadding) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        writeSegment(out, 0xE0, new byte[] { 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0 });
+        if (exifOrientation != 0) {
+            byte[] exif = new byte[6 + 26 + exifPadding];
+            byte[] head = { 'E', 'x', 'i', 'f', 0, 0, 'M', 'M', 0, 42, 0, 0, 0, 8, 0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0,
+                    (byte) exifOrientation, 0, 0, 0, 0, 0, 0 };
+            System.arraycopy(head, 0, exif, 0, head.length);
+            writeSegment(out, 0xE1, exif);
+        }
+        writeSegment(out, 0xDB, new byte[65]);
+        writeSegment(out, 0xC0, new byte[] { 8, (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width,
+                3, 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1 });
+        return out.toByteArray();
+    }
+
+    public static void writeSegment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        int length = payload.length + 2;
+        out.write(0xFF);
+        out.write(marker);
+        out.write(length >> 8);
+        out.write(length);
+        out.write(payload, 0, payload.length);
+    }
+
+    public static byte[] png(int width, int height) {
+        byte[] data = new byte[33];
+        byte[] head = { (byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0, 0, 0, 13, 'I', 'H', 'D', 'R' };
+        System.arraycopy(head, 0, data, 0, head.length);
+        writeIntBigEndian(data, 16, width);
+        writeIntBigEndian(data, 20, height);
+        data[24] = 8;
+        data[25] = 6;
+        return data;
+    }
+
+    public static byte[] webpLossless(int width, int height) {
+        byte[] data = riff("VP8L");
+        data[20] = 0x2F;
+        int bits = (width - 1) | ((height - 1) << 14);
+        for (int i = 0; i < 4; i++) {
+            data[21 + i] = (byte) (bits >> (8 * i));
+        }
+        return data;
+    }
+
+    public static byte[] webpExtended(int width, int height) {
+        byte[] data = riff("VP8X");
+        for (int i = 0; i < 3; i++) {
+            data[24 + i] = (byte) ((width - 1) >> (8 * i));
+            data[27 + i] = (byte) ((height - 1) >> (8 * i));
+        }
+        return data;
+    }
+
+    private static byte[] riff(String chunk) {
+        byte[] data = new byte[32];
+        String head = "RIFF\0\0\0\0WEBP" + chunk;
+        for (int i = 0; i < head.length(); i++) {
+            data[i] = (byte) head.charAt(i);
+        }
+        return data;
+    }
+
+    private static void writeIntBigEndian(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.clipview.utils.ImageHeaderParser;
+
+/**
+ * 图片头读取，样本见{@link HeaderFixtures}，读取结果由ImageHeaderParserTest校验
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderProbeBenchmark {
+    private byte[][] mHeaders;
+    private File[] mFiles;
+    private RandomAccessFile[] mChannels;
+    private int mIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mHeaders = HeaderFixtures.samples();
+        mFiles = new File[mHeaders.length];
+        mChannels = new RandomAccessFile[mHeaders.length];
+        for (int i = 0; i < mHeaders.length; i++) {
+            mFiles[i] = File.createTempFile("header", ".img");
+            FileOutputStream out = new FileOutputStream(mFiles[i]);
+            out.write(mHeaders[i]);
+            out.close();
+            mChannels[i] = new RandomAccessFile(mFiles[i], "r");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (int i = 0; i < mFiles.length; i++) {
+            mChannels[i].close();
+            mFiles[i].delete();
+        }
+    }
+
+    @Benchmark
+    public ImageHeaderParser.ImageInfo parseBytes() {
+        byte[] header = mHeaders[mIndex++ % mHeaders.length];
+        return ImageHeaderParser.parse(header, header.length);
+    }
+
+    @Benchmark
+    public ImageHeaderParser.ImageInfo probeChannel() throws IOException {
+        FileChannel channel = mChannels[mIndex++ % mChannels.length].getChannel();
+        return ImageHeaderParser.probe(channel, 0);
+    }
+}
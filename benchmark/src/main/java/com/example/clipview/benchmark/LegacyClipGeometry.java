@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.benchmark;
+
+import static com.example.clipview.utils.ClipGeometry.BOTTOM;
+import static com.example.clipview.utils.ClipGeometry.LEFT;
+import static com.example.clipview.utils.ClipGeometry.RIGHT;
+import static com.example.clipview.utils.ClipGeometry.TOP;
+
+import com.example.clipview.utils.ClipGeometry;
+
+/**
+ * 原先只支持直角旋转的截图框计算：按变换后的范围判断角度，由交叉区域离原图左上角最近、最远的角按比例推算截取区域。
+ * 不再用于ClipLayout，作为{@link ClipGeometry#cropRegion}和{@link ClipGeometry#covers}的对照
+ */
+public final class LegacyClipGeometry {
+    private static final int MSCALE_X = 0;
+    private static final int MSKEW_X = 1;
+    private static final int MTRANS_X = 2;
+    private static final int MTRANS_Y = 5;
+    private static final int MPERSP_2 = 8;
+
+    private LegacyClipGeometry() {
+    }
+
+    /**
+     * 图片经矩阵变换后的范围，原图左上角为top，右下角为bottom，旋转后left可能大于right
+     *
+     * @param values
+     *            矩阵
+     * @param width
+     *            图片宽
+     * @param height
+     *            图片高
+     * @param out
+     */
+    public static void mapBounds(float[] values, int width, int height, int[] out) {
+        width = (int) (width * values[MPERSP_2]);
+        height = (int) (height * values[MPERSP_2]);
+        int left = (int) values[MTRANS_X];
+        int top = (int) values[MTRANS_Y];
+        out[LEFT] = left;
+        out[TOP] = top;
+        out[RIGHT] = (int) (left + width * values[MSCALE_X] + height * values[MSKEW_X]);
+        out[BOTTOM] = (int) (top + height * values[MSCALE_X] - width * values[MSKEW_X]);
+    }
+
+    /**
+     * 与RectF.contains(RectF)一致
+     */
+    public static boolean contains(float[] rect, float[] other) {
+        return rect[LEFT] < rect[RIGHT] && rect[TOP] < rect[BOTTOM] && rect[LEFT] <= other[LEFT]
+                && rect[TOP] <= other[TOP] && rect[RIGHT] >= other[RIGHT] && rect[BOTTOM] >= other[BOTTOM];
+    }
+
+    /**
+     * 图片可视区域是否未完全覆盖截图框
+     *
+     * @param values
+     *            矩阵
+     * @param width
+     *            图片宽
+     * @param height
+     *            图片高
+     * @param clipRect
+     *            截图框
+     * @param scratch
+     *            长度为4的临时数组
+     * @return
+     */
+    public static boolean isOutFrame(float[] values, int width, int height, float[] clipRect, float[] scratch) {
+        ClipGeometry.visibleRect(values, width, height, scratch);
+        return !contains(scratch, clipRect);
+    }
+
+    /**
+     * 由变换后的图片范围判断旋转角度
+     *
+     * @param bounds
+     *            {@link #mapBounds}的结果
+     * @return 0、90、180、270
+     */
+    public static int getDegrees(int[] bounds) {
+        if (bounds[LEFT] > bounds[RIGHT] && bounds[TOP] < bounds[BOTTOM]) {
+            return 90;
+        } else if (bounds[LEFT] > bounds[RIGHT] && bounds[TOP] > bounds[BOTTOM]) {
+            return 180;
+        } else if (bounds[LEFT] < bounds[RIGHT] && bounds[TOP] > bounds[BOTTOM]) {
+            return 270;
+        }
+        return 0;
+    }
+
+    /**
+     * 矩形四个角中离目标点最近或最远的一个，坐标取整，距离相同时按左上、左下、右上、右下的顺序取前者
+     *
+     * @param targetX
+     * @param targetY
+     * @param rect
+     * @param farthest
+     *            取最远的角
+     * @param out
+     *            结果x、y
+     */
+    public static void corner(int targetX, int targetY, float[] rect, boolean farthest, int[] out) {
+        int left = (int) rect[LEFT];
+        int top = (int) rect[TOP];
+        int right = (int) rect[RIGHT];
+        int bottom = (int) rect[BOTTOM];
+        int bestX = left;
+        int bestY = top;
+        long best = distanceSquared(left, top, targetX, targetY);
+        long distance = distanceSquared(left, bottom, targetX, targetY);
+        if (farthest ? distance > best : distance < best) {
+            best = distance;
+            bestX = left;
+            bestY = bottom;
+        }
+        distance = distanceSquared(right, top, targetX, targetY);
+        if (farthest ? distance > best : distance < best) {
+            best = distance;
+            bestX = right;
+            bestY = top;
+        }
+        distance = distanceSquared(right, bottom, targetX, targetY);
+        if (farthest ? distance > best : distance < best) {
+            bestX = right;
+            bestY = bottom;
+        }
+        out[0] = bestX;
+        out[1] = bestY;
+    }
+
+    private static long distanceSquared(int x, int y, int targetX, int targetY) {
+        long dx = x - targetX;
+        long dy = y - targetY;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * 截图框对应的原图区域，由最近、最远角按比例推算，只支持直角旋转，任意角度见{@link ClipGeometry#cropRegion}
+     *
+     * @param bounds
+     *            {@link #mapBounds}的结果
+     * @param insert
+     *            图片可视区域与截图框的交叉区域
+     * @param originalWidth
+     *            原图宽
+     * @param originalHeight
+     *            原图高
+     * @param scratch
+     *            长度为2的临时数组
+     * @param out
+     */
+    public static void clipRect(int[] bounds, float[] insert, int originalWidth, int originalHeight, int[] scratch,
+            int[] out) {
+        int scaleLeft = bounds[LEFT];
+        int scaleTop = bounds[TOP];
+        corner(scaleLeft, scaleTop, insert, false, scratch);
+        int topX = scratch[0];
+        int topY = scratch[1];
+        corner(scaleLeft, scaleTop, insert, true, scratch);
+        int bottomX = scratch[0];
+        int bottomY = scratch[1];
+
+        int scaleWidth = Math.abs(bounds[RIGHT] - scaleLeft);
+        int scaleHeight = Math.abs(bounds[BOTTOM] - scaleTop);
+        float startXPercent;
+        float endXPercent;
+        float startYPercent;
+        float endYPercent;
+        int degrees = getDegrees(bounds);
+        if (degrees == 90 || degrees == 270) {
+            startXPercent = (float) Math.abs(topY - scaleTop) / (float) scaleHeight;
+            endXPercent = (float) Math.abs(bottomY - scaleTop) / (float) scaleHeight;
+            startYPercent = (float) Math.abs(topX - scaleLeft) / (float) scaleWidth;
+            endYPercent = (float) Math.abs(bottomX - scaleLeft) / (float) scaleWidth;
+        } else {
+            startXPercent = (float) Math.abs(topX - scaleLeft) / (float) scaleWidth;
+            endXPercent = (float) Math.abs(bottomX - scaleLeft) / (float) scaleWidth;
+            startYPercent = (float) Math.abs(topY - scaleTop) / (float) scaleHeight;
+            endYPercent = (float) Math.abs(bottomY - scaleTop) / (float) scaleHeight;
+        }
+        out[LEFT] = (int) (originalWidth * startXPercent);
+        out[TOP] = (int) (originalHeight * startYPercent);
+        out[RIGHT] = (int) (originalWidth * endXPercent);
+        out[BOTTOM] = (int) (originalHeight * endYPercent);
+    }
+}
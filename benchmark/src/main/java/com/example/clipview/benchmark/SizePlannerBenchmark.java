@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.clipview.utils.SizePlanner;
+
+/**
+ * 解码尺寸规划
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SizePlannerBenchmark {
+    private final Corpus mCorpus = new Corpus(42);
+    private int mIndex;
+
+    @Benchmark
+    public int calculateSampleSize() {
+        int i = mIndex++ & Corpus.MASK;
+        return SizePlanner.calculateSampleSize(mCorpus.sourceWidths[i], mCorpus.requestWidths[i]);
+    }
+
+    @Benchmark
+    public SizePlanner.Plan plan() {
+        int i = mIndex++ & Corpus.MASK;
+        return SizePlanner.plan(mCorpus.sourceWidths[i], mCorpus.sourceHeights[i], mCorpus.requestWidths[i],
+                mCorpus.requestHeights[i]);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.example.clipview.benchmark.ClipGeometryBenchmark;
+import com.example.clipview.benchmark.Corpus;
+import com.example.clipview.benchmark.LegacyClipGeometry;
+
+/**
+ * 截图框几何计算
+ */
+public class ClipGeometryTest {
+    private static final int WARMUP_EVENTS = 200000;
+    private static final int EVENTS = 100000;
+
+    /**
+     * 触摸事件路径（{@link ClipGeometryBenchmark#touchMove}）不分配内存，包括解释执行和编译后
+     */
+    @Test
+    public void touchMoveDoesNotAllocate() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        ClipGeometryBenchmark benchmark = new ClipGeometryBenchmark();
+        // 首次调用时的类加载和链接
+        for (int i = 0; i < Corpus.SIZE; i++) {
+            benchmark.touchMove();
+        }
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            long start = bean.getThreadAllocatedBytes(threadId);
+            overhead = Math.min(overhead, bean.getThreadAllocatedBytes(threadId) - start);
+        }
+        // 第一轮以解释执行为主，第二轮在编译后
+        for (int round = 0; round < 2; round++) {
+            long start = bean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < EVENTS; i++) {
+                benchmark.touchMove();
+            }
+            long allocated = bean.getThreadAllocatedBytes(threadId) - start - overhead;
+            // 与gc.alloc.rate.norm一样按事件平均，编译过程中一次性的几百字节不计入；每个事件分配一个对象即至少16字节
+            assertEquals("bytes per event in round " + round + ", " + allocated + " in total", 0, allocated / EVENTS);
+            for (int i = 0; i < WARMUP_EVENTS; i++) {
+                benchmark.touchMove();
+            }
+        }
+    }
+
+    /**
+     * 直角旋转时cropRegion与原先的clipRect一致，差别只来自clipRect的整数截断：
+     * 屏幕上各1像素，换算到图片上为1 + 1 / 缩放
+     */
+    @Test
+    public void cropRegionMatchesLegacyAtRightAngles() {
+        Corpus corpus = new Corpus(42);
+        float[] rect = new float[4];
+        float[] crop = new float[4];
+        float[] inverse = new float[9];
+        int[] bounds = new int[4];
+        int[] point = new int[2];
+        int[] clip = new int[4];
+        float[] expected = new float[4];
+        int checked = 0;
+        for (int i = 0; i < Corpus.SIZE; i++) {
+            float[] values = corpus.matrices[i];
+            int width = corpus.previewWidths[i];
+            int height = corpus.previewHeights[i];
+            ClipGeometry.visibleRect(values, width, height, rect);
+            boolean hasInsert = ClipGeometry.intersect(rect, corpus.clipRect);
+            boolean hasCrop = ClipGeometry.cropRegion(values, width, height, corpus.clipRect, inverse, crop);
+            String message = "sample " + i + " crop " + Arrays.toString(crop);
+            if (!hasInsert) {
+                assertFalse(message, hasCrop);
+                continue;
+            }
+            assertTrue(message, hasCrop);
+            LegacyClipGeometry.mapBounds(values, width, height, bounds);
+            LegacyClipGeometry.clipRect(bounds, rect, width, height, point, clip);
+            expected[ClipGeometry.LEFT] = Math.min(clip[ClipGeometry.LEFT], clip[ClipGeometry.RIGHT]);
+            expected[ClipGeometry.TOP] = Math.min(clip[ClipGeometry.TOP], clip[ClipGeometry.BOTTOM]);
+            expected[ClipGeometry.RIGHT] = Math.max(clip[ClipGeometry.LEFT], clip[ClipGeometry.RIGHT]);
+            expected[ClipGeometry.BOTTOM] = Math.max(clip[ClipGeometry.TOP], clip[ClipGeometry.BOTTOM]);
+            float scale = (float) Math.hypot(values[0], values[3]);
+            float tolerance = 2 * (1 + 1 / scale);
+            for (int j = 0; j < 4; j++) {
+                assertEquals(message + " expected " + Arrays.toString(expected), expected[j], crop[j], tolerance);
+            }
+            checked++;
+        }
+        assertTrue("checked " + checked, checked > Corpus.SIZE / 2);
+    }
+
+    /**
+     * 任意角度下covers()与按旋转角度直接反算截图框四角的结果一致，离边界不到1像素的样本不比较
+     */
+    @Test
+    public void coversAtAnyAngle() {
+        Random random = new Random(7);
+        float[] clipRect = { 180, 600, 900, 1320 };
+        float[] inverse = new float[9];
+        int compared = 0;
+        for (int i = 0; i < 20000; i++) {
+            int width = 100 + random.nextInt(3000);
+            int height = 100 + random.nextInt(3000);
+            double radians = Math.toRadians(random.nextDouble() * 360);
+            double scale = 0.2 + random.nextDouble() * 2;
+            double centerX = 540 + (random.nextDouble() - 0.5) * 600;
+            double centerY = 960 + (random.nextDouble() - 0.5) * 600;
+            float[] values = matrix(radians, scale, width, height, centerX, centerY);
+
+            // 截图框四角相对图片中心反向旋转、缩放后到图片边缘的最小距离，负数为在图片外
+            double margin = Double.MAX_VALUE;
+            for (int corner = 0; corner < 4; corner++) {
+                double dx = clipRect[corner % 2 == 0 ? ClipGeometry.LEFT : ClipGeometry.RIGHT] - centerX;
+                double dy = clipRect[corner < 2 ? ClipGeometry.TOP : ClipGeometry.BOTTOM] - centerY;
+                double x = (Math.cos(radians) * dx + Math.sin(radians) * dy) / scale;
+                double y = (-Math.sin(radians) * dx + Math.cos(radians) * dy) / scale;
+                margin = Math.min(margin, Math.min(width / 2.0 - Math.abs(x), height / 2.0 - Math.abs(y)));
+            }
+            if (Math.abs(margin) < 1) {
+                continue;
+            }
+            assertEquals("sample " + i + " margin " + margin, margin > 0,
+                    ClipGeometry.covers(values, width, height, clipRect, inverse));
+            compared++;
+        }
+        assertTrue("compared " + compared, compared > 10000);
+    }
+
+    /**
+     * 旋转45度的正方形（菱形）和轴对齐矩形在竖直条带内的上下范围
+     */
+    @Test
+    public void slabExtent() {
+        float[] diamond = { 0, -10, 10, 0, 0, 10, -10, 0 };
+        float[] extent = new float[2];
+        assertTrue(ClipGeometry.slabExtent(diamond, -1, 1, extent));
+        assertEquals(-10, extent[0], 1e-4f);
+        assertEquals(10, extent[1], 1e-4f);
+        // 条带内只有斜边
+        assertTrue(ClipGeometry.slabExtent(diamond, 4, 6, extent));
+        assertEquals(-6, extent[0], 1e-4f);
+        assertEquals(6, extent[1], 1e-4f);
+        // 条带包含整个四边形
+        assertTrue(ClipGeometry.slabExtent(diamond, -20, 20, extent));
+        assertEquals(-10, extent[0], 1e-4f);
+        assertEquals(10, extent[1], 1e-4f);
+        assertFalse(ClipGeometry.slabExtent(diamond, 11, 20, extent));
+
+        float[] rect = { 2, 3, 8, 3, 8, 5, 2, 5 };
+        assertTrue(ClipGeometry.slabExtent(rect, 0, 4, extent));
+        assertEquals(3, extent[0], 0);
+        assertEquals(5, extent[1], 0);
+        assertFalse(ClipGeometry.slabExtent(rect, -4, 1, extent));
+    }
+
+    /**
+     * 任意旋转的矩形：与按Sutherland-Hodgman算法把四边形裁剪到条带内后各顶点的上下范围一致
+     */
+    @Test
+    public void slabExtentMatchesClippedPolygon() {
+        Random random = new Random(11);
+        float[] quad = new float[8];
+        float[] extent = new float[2];
+        int hits = 0;
+        for (int i = 0; i < 20000; i++) {
+            double radians = random.nextDouble() * Math.PI * 2;
+            double width = 10 + random.nextDouble() * 1000;
+            double height = 10 + random.nextDouble() * 100;
+            double cos = Math.cos(radians);
+            double sin = Math.sin(radians);
+            List<double[]> polygon = new ArrayList<double[]>();
+            for (int corner = 0; corner < 4; corner++) {
+                double x = corner == 1 || corner == 2 ? width : 0;
+                double y = corner >= 2 ? height : 0;
+                quad[corner * 2] = (float) (x * cos - y * sin);
+                quad[corner * 2 + 1] = (float) (x * sin + y * cos);
+                polygon.add(new double[] { quad[corner * 2], quad[corner * 2 + 1] });
+            }
+            float left = (float) ((random.nextDouble() - 0.5) * 2000);
+            float right = left + 1 + random.nextInt(200);
+            polygon = clip(polygon, left, 1);
+            polygon = clip(polygon, -right, -1);
+
+            String message = "sample " + i + " quad " + Arrays.toString(quad) + " slab " + left + ".." + right;
+            boolean hit = ClipGeometry.slabExtent(quad, left, right, extent);
+            if (polygon.isEmpty()) {
+                assertFalse(message, hit);
+                continue;
+            }
+            assertTrue(message, hit);
+            double top = Double.MAX_VALUE;
+            double bottom = -Double.MAX_VALUE;
+            for (double[] point : polygon) {
+                top = Math.min(top, point[1]);
+                bottom = Math.max(bottom, point[1]);
+            }
+            assertEquals(message, top, extent[0], 1e-2);
+            assertEquals(message, bottom, extent[1], 1e-2);
+            hits++;
+        }
+        assertTrue("hits " + hits, hits > 1000);
+    }
+
+    /**
+     * 保留sign * x &gt;= edge的部分
+     */
+    private static List<double[]> clip(List<double[]> polygon, double edge, int sign) {
+        List<double[]> result = new ArrayList<double[]>();
+        for (int i = 0; i < polygon.size(); i++) {
+            double[] from = polygon.get(i);
+            double[] to = polygon.get((i + 1) % polygon.size());
+            double fromDistance = sign * from[0] - edge;
+            double toDistance = sign * to[0] - edge;
+            if (fromDistance >= 0) {
+                result.add(from);
+            }
+            if (fromDistance >= 0 != toDistance >= 0) {
+                double t = fromDistance / (fromDistance - toDistance);
+                result.add(new double[] { from[0] + (to[0] - from[0]) * t, from[1] + (to[1] - from[1]) * t });
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 与Matrix.getValues()相同排列：绕图片中心旋转、缩放后将中心平移到指定点
+     */
+    private static float[] matrix(double radians, double scale, int width, int height, double centerX,
+            double centerY) {
+        double cos = Math.cos(radians) * scale;
+        double sin = Math.sin(radians) * scale;
+        double translateX = centerX - (cos * width / 2 - sin * height / 2);
+        double translateY = centerY - (sin * width / 2 + cos * height / 2);
+        return new float[] { (float) cos, (float) -sin, (float) translateX, (float) sin, (float) cos,
+                (float) translateY, 0, 0, 1 };
+    }
+}
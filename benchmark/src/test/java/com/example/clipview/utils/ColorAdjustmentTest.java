@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+/**
+ * 色彩调整：定点数查找表的结果与ColorMatrix.setSaturation()加亮度、对比度的浮点公式一致，
+ * 四舍五入误差不超过1
+ */
+public class ColorAdjustmentTest {
+    /** 饱和度、亮度、对比度，含会截断到0和255的取值 */
+    private static final float[][] PARAMETERS = { { 1, 0, 1 }, { 0, 0, 1 }, { 1.5f, 0, 1 }, { 1, 40, 1 },
+            { 1, -60, 1 }, { 1, 0, 1.4f }, { 1, 0, 0.6f }, { 0.3f, 25, 1.2f }, { 2, -100, 2 }, { 0, 255, 0.5f } };
+    /** 超过PARALLEL_THRESHOLD（256 * 256），按32行分为多条 */
+    private static final int LARGE_WIDTH = 640;
+    private static final int LARGE_HEIGHT = 400;
+
+    @Test
+    public void applyRangeMatchesFloatReference() {
+        int[] pixels = randomPixels(4096, new Random(1));
+        for (float[] p : PARAMETERS) {
+            ColorAdjustment adjustment = new ColorAdjustment(p[0], p[1], p[2]);
+            int[] actual = pixels.clone();
+            // 从非0位置开始，检查offset和count
+            adjustment.applyRange(actual, 7, pixels.length - 10);
+            for (int i = 0; i < pixels.length; i++) {
+                if (i < 7 || i >= pixels.length - 3) {
+                    assertEquals(adjustment + " untouched pixel " + i, pixels[i], actual[i]);
+                } else {
+                    checkArgb(adjustment, pixels[i], actual[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 5/6位通道先扩展到8位再计算，结果截断回5/6位
+     */
+    @Test
+    public void applyRange565MatchesFloatReference() {
+        // 所有565取值
+        short[] pixels = new short[1 << 16];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) i;
+        }
+        for (float[] p : PARAMETERS) {
+            ColorAdjustment adjustment = new ColorAdjustment(p[0], p[1], p[2]);
+            short[] actual = pixels.clone();
+            adjustment.applyRange565(actual, 0, actual.length);
+            for (int i = 0; i < pixels.length; i++) {
+                int r = expand(i >> 11, 5);
+                int g = expand((i >> 5) & 0x3F, 6);
+                int b = expand(i & 0x1F, 5);
+                int color = actual[i] & 0xFFFF;
+                String message = adjustment + " pixel " + Integer.toHexString(i) + " -> "
+                        + Integer.toHexString(color);
+                assertEquals(message, reference(adjustment, r, g, b, 0) >> 3, color >> 11, 1);
+                assertEquals(message, reference(adjustment, r, g, b, 1) >> 2, (color >> 5) & 0x3F, 1);
+                assertEquals(message, reference(adjustment, r, g, b, 2) >> 3, color & 0x1F, 1);
+            }
+        }
+    }
+
+    @Test
+    public void applyMatchesApplyRange() {
+        Random random = new Random(2);
+        for (float[] p : PARAMETERS) {
+            ColorAdjustment adjustment = new ColorAdjustment(p[0], p[1], p[2]);
+            // 最后一条不足32行
+            int[] pixels = randomPixels(LARGE_WIDTH * LARGE_HEIGHT, random);
+            int[] expected = pixels.clone();
+            adjustment.applyRange(expected, 0, expected.length);
+            adjustment.apply(pixels, LARGE_WIDTH, LARGE_HEIGHT);
+            for (int i = 0; i < pixels.length; i++) {
+                assertEquals(adjustment + " pixel " + i, expected[i], pixels[i]);
+            }
+
+            short[] pixels565 = new short[LARGE_WIDTH * LARGE_HEIGHT];
+            for (int i = 0; i < pixels565.length; i++) {
+                pixels565[i] = (short) random.nextInt();
+            }
+            short[] expected565 = pixels565.clone();
+            adjustment.applyRange565(expected565, 0, expected565.length);
+            adjustment.apply565(pixels565, LARGE_WIDTH, LARGE_HEIGHT);
+            for (int i = 0; i < pixels565.length; i++) {
+                assertEquals(adjustment + " 565 pixel " + i, expected565[i], pixels565[i]);
+            }
+        }
+    }
+
+    /**
+     * 分条读写：每行恰好读写一次，大图由多个线程处理，结果与浮点公式一致
+     */
+    @Test
+    public void applyPixelRowsInParallel() {
+        ColorAdjustment adjustment = new ColorAdjustment(0.3f, 25, 1.2f);
+        final int[] source = randomPixels(LARGE_WIDTH * LARGE_HEIGHT, new Random(3));
+        final int[] target = new int[source.length];
+        final AtomicIntegerArray reads = new AtomicIntegerArray(LARGE_HEIGHT);
+        final AtomicIntegerArray writes = new AtomicIntegerArray(LARGE_HEIGHT);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        adjustment.apply(new ColorAdjustment.PixelRows() {
+            @Override
+            public void read(int[] buffer, int y, int rows) {
+                threads.add(Thread.currentThread());
+                for (int row = y; row < y + rows; row++) {
+                    reads.incrementAndGet(row);
+                }
+                System.arraycopy(source, y * LARGE_WIDTH, buffer, 0, rows * LARGE_WIDTH);
+                // 让线程池中的线程有机会在调用线程处理完所有条之前开始
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void write(int[] buffer, int y, int rows) {
+                for (int row = y; row < y + rows; row++) {
+                    writes.incrementAndGet(row);
+                }
+                System.arraycopy(buffer, 0, target, y * LARGE_WIDTH, rows * LARGE_WIDTH);
+            }
+        }, LARGE_WIDTH, LARGE_HEIGHT);
+
+        for (int row = 0; row < LARGE_HEIGHT; row++) {
+            assertEquals("reads of row " + row, 1, reads.get(row));
+            assertEquals("writes of row " + row, 1, writes.get(row));
+        }
+        for (int i = 0; i < source.length; i++) {
+            checkArgb(adjustment, source[i], target[i]);
+        }
+        if (Runtime.getRuntime().availableProcessors() > 1) {
+            assertTrue("threads " + threads, threads.size() > 1);
+        }
+    }
+
+    @Test
+    public void identityLeavesPixels() {
+        int[] pixels = randomPixels(1024, new Random(4));
+        int[] actual = pixels.clone();
+        assertTrue(ColorAdjustment.IDENTITY.isIdentity());
+        ColorAdjustment.IDENTITY.apply(actual, 32, 32);
+        for (int i = 0; i < pixels.length; i++) {
+            assertEquals(pixels[i], actual[i]);
+        }
+    }
+
+    private static void checkArgb(ColorAdjustment adjustment, int before, int after) {
+        String message = adjustment + " " + Integer.toHexString(before) + " -> " + Integer.toHexString(after);
+        int r = (before >> 16) & 0xFF;
+        int g = (before >> 8) & 0xFF;
+        int b = before & 0xFF;
+        assertEquals(message, before >>> 24, after >>> 24);
+        assertEquals(message, reference(adjustment, r, g, b, 0), (after >> 16) & 0xFF, 1);
+        assertEquals(message, reference(adjustment, r, g, b, 1), (after >> 8) & 0xFF, 1);
+        assertEquals(message, reference(adjustment, r, g, b, 2), after & 0xFF, 1);
+    }
+
+    /**
+     * ColorMatrix.setSaturation()的矩阵，再按out = contrast * (in + brightness - 128) + 128调整并截断
+     *
+     * @param channel
+     *            0、1、2为红、绿、蓝
+     */
+    private static int reference(ColorAdjustment adjustment, int r, int g, int b, int channel) {
+        double saturation = adjustment.getSaturation();
+        double invSat = 1 - saturation;
+        double[] weights = { 0.213 * invSat, 0.715 * invSat, 0.072 * invSat };
+        weights[channel] += saturation;
+        double saturated = weights[0] * r + weights[1] * g + weights[2] * b;
+        double value = adjustment.getContrast() * (saturated + adjustment.getBrightness() - 128) + 128;
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    /**
+     * 与Bitmap从565转换为8888时相同的高位复制
+     */
+    private static int expand(int value, int bits) {
+        return (value << (8 - bits)) | (value >> (2 * bits - 8));
+    }
+
+    private static int[] randomPixels(int count, Random random) {
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            pixels[i] = random.nextInt();
+        }
+        // 包含黑、白和纯色
+        int[] extremes = { 0xFF000000, 0xFFFFFFFF, 0x80FF0000, 0x0000FF00, 0xFF0000FF };
+        System.arraycopy(extremes, 0, pixels, 0, Math.min(count, extremes.length));
+        return pixels;
+    }
+}
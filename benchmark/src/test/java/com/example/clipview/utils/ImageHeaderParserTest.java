@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+import com.example.clipview.benchmark.HeaderFixtures;
+
+/**
+ * 图片头读取：内存中的文件头和按位置读取文件通道的结果一致
+ */
+public class ImageHeaderParserTest {
+    private static final String[] MIME_TYPES = { ImageHeaderParser.MIME_JPEG, ImageHeaderParser.MIME_JPEG,
+            ImageHeaderParser.MIME_JPEG, ImageHeaderParser.MIME_JPEG, ImageHeaderParser.MIME_JPEG,
+            ImageHeaderParser.MIME_PNG, ImageHeaderParser.MIME_WEBP, ImageHeaderParser.MIME_WEBP };
+    /** 文件通道中图片之前的字节数 */
+    private static final int PREFIX = 100;
+
+    @Test
+    public void parseBytes() {
+        byte[][] samples = HeaderFixtures.samples();
+        for (int i = 0; i < samples.length; i++) {
+            check(i, ImageHeaderParser.parse(samples[i], samples[i].length));
+        }
+    }
+
+    /**
+     * 含EXIF后48KB才出现SOF0的样本，超出第一次读取的窗口
+     */
+    @Test
+    public void probeChannel() throws IOException {
+        byte[][] samples = HeaderFixtures.samples();
+        for (int i = 0; i < samples.length; i++) {
+            File file = File.createTempFile("header", ".img");
+            try {
+                FileOutputStream out = new FileOutputStream(file);
+                out.write(new byte[PREFIX]);
+                out.write(samples[i]);
+                out.close();
+                RandomAccessFile input = new RandomAccessFile(file, "r");
+                try {
+                    input.seek(7);
+                    check(i, ImageHeaderParser.probe(input.getChannel(), PREFIX));
+                    assertEquals("position unchanged", 7, input.getFilePointer());
+                } finally {
+                    input.close();
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 截断在EXIF之后的文件头读不到宽高，但仍能读到方向
+     */
+    @Test
+    public void truncatedHeader() {
+        byte[] header = HeaderFixtures.jpeg(1080, 1920, 8, 48 * 1024);
+        int length = 16 * 1024;
+        assertNull(ImageHeaderParser.parse(header, length));
+        assertEquals(270, ImageHeaderParser.getExifOrientation(header, length));
+        assertNull(ImageHeaderParser.parse(header, 1));
+    }
+
+    @Test
+    public void unsupportedFormat() {
+        byte[] gif = { 'G', 'I', 'F', '8', '9', 'a', 10, 0, 10, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                0, 0, 0, 0, 0 };
+        assertNull(ImageHeaderParser.parse(gif, gif.length));
+        assertEquals(0, ImageHeaderParser.getExifOrientation(gif, gif.length));
+    }
+
+    @Test
+    public void exifThumbnail() {
+        byte[] thumbnail = { (byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, 5, 6, 7, 8, (byte) 0xFF, (byte) 0xD9 };
+        ImageHeaderParser.ImageInfo info = ImageHeaderParser.parse(jpegWithThumbnail(thumbnail, 0), Integer.MAX_VALUE);
+        assertNotNull(info);
+        assertEquals(4032, info.width);
+        assertEquals(3024, info.height);
+        assertEquals(90, info.orientation);
+        assertTrue(info.hasThumbnail());
+        // SOI、APP1标记和长度、"Exif\0\0"之后为TIFF头，缩略图位于TIFF头之后56字节
+        assertEquals(2 + 4 + 6 + 56, info.thumbnailOffset);
+        assertEquals(thumbnail.length, info.thumbnailLength);
+
+        // 缩略图超出APP1段时不使用
+        info = ImageHeaderParser.parse(jpegWithThumbnail(thumbnail, 1), Integer.MAX_VALUE);
+        assertNotNull(info);
+        assertFalse(info.hasThumbnail());
+    }
+
+    private static void check(int i, ImageHeaderParser.ImageInfo info) {
+        int[] expected = HeaderFixtures.EXPECTED[i];
+        String message = "sample " + i + ": " + info;
+        assertNotNull(message, info);
+        assertEquals(message, expected[0], info.width);
+        assertEquals(message, expected[1], info.height);
+        assertEquals(message, expected[2], info.orientation);
+        assertEquals(message, MIME_TYPES[i], info.mimeType);
+    }
+
+    /**
+     * 小端TIFF：IFD0只有方向6，IFD1给出缩略图偏移和长度，缩略图紧跟IFD1
+     *
+     * @param overflow
+     *            长度多写的字节数，使缩略图超出APP1段
+     */
+    private static byte[] jpegWithThumbnail(byte[] thumbnail, int overflow) {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        writeBytes(tiff, 'I', 'I', 42, 0);
+        writeIntLittleEndian(tiff, 8);
+        // IFD0，8~25
+        writeBytes(tiff, 1, 0);
+        writeBytes(tiff, 0x12, 0x01, 3, 0);
+        writeIntLittleEndian(tiff, 1);
+        writeIntLittleEndian(tiff, 6);
+        writeIntLittleEndian(tiff, 26);
+        // IFD1，26~55
+        writeBytes(tiff, 2, 0);
+        writeBytes(tiff, 0x01, 0x02, 4, 0);
+        writeIntLittleEndian(tiff, 1);
+        writeIntLittleEndian(tiff, 56);
+        writeBytes(tiff, 0x02, 0x02, 4, 0);
+        writeIntLittleEndian(tiff, 1);
+        writeIntLittleEndian(tiff, thumbnail.length + overflow);
+        writeIntLittleEndian(tiff, 0);
+        tiff.write(thumbnail, 0, thumbnail.length);
+
+        ByteArrayOutputStream exif = new ByteArrayOutputStream();
+        writeBytes(exif, 'E', 'x', 'i', 'f', 0, 0);
+        byte[] tiffBytes = tiff.toByteArray();
+        exif.write(tiffBytes, 0, tiffBytes.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeBytes(out, 0xFF, 0xD8);
+        HeaderFixtures.writeSegment(out, 0xE1, exif.toByteArray());
+        HeaderFixtures.writeSegment(out, 0xC0, new byte[] { 8, (byte) (3024 >> 8), (byte) 3024, (byte) (4032 >> 8),
+                (byte) 4032, 3, 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1 });
+        return out.toByteArray();
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, int... bytes) {
+        for (int b : bytes) {
+            out.write(b);
+        }
+    }
+
+    private static void writeIntLittleEndian(ByteArrayOutputStream out, int value) {
+        writeBytes(out, value, value >> 8, value >> 16, value >> 24);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * 流式PNG编码：编码后用ImageIO解码逐像素比较，并检查块结构、CRC和各行使用的滤波
+ */
+public class PngWriterTest {
+    private static final int[][] SIZES = { { 1, 1 }, { 37, 53 }, { 300, 200 }, { 640, 480 } };
+
+    @Test
+    public void roundTripOpaque() throws IOException, DataFormatException {
+        for (int[] size : SIZES) {
+            roundTrip(size[0], size[1], false);
+        }
+    }
+
+    @Test
+    public void roundTripAlpha() throws IOException, DataFormatException {
+        for (int[] size : SIZES) {
+            roundTrip(size[0], size[1], true);
+        }
+    }
+
+    @Test
+    public void rejectsWrongRowCount() throws IOException {
+        PngWriter writer = new PngWriter(new ByteArrayOutputStream(), 4, 2, false);
+        writer.writeRows(new int[4], 0, 4, 1);
+        try {
+            writer.finish();
+            fail("finish() with missing rows");
+        } catch (IllegalStateException e) {
+            // 预期
+        }
+        writer = new PngWriter(new ByteArrayOutputStream(), 4, 2, false);
+        try {
+            writer.writeRows(new int[12], 0, 4, 3);
+            fail("writeRows() past the last row");
+        } catch (IllegalStateException e) {
+            writer.abort();
+        }
+    }
+
+    private static void roundTrip(int width, int height, boolean hasAlpha) throws IOException, DataFormatException {
+        // 每行多留几个像素，检查stride和offset
+        int stride = width + 3;
+        int offset = 5;
+        int[] pixels = pixels(width, height, stride, offset, hasAlpha, new Random(width * 31 + height));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngWriter writer = new PngWriter(out, width, height, hasAlpha);
+        // 与分块导出一样按不等的行数分批写入
+        int y = 0;
+        for (int batch = 1; y < height; batch = batch % 7 + 1) {
+            int rows = Math.min(batch, height - y);
+            writer.writeRows(pixels, offset + y * stride, stride, rows);
+            y += rows;
+        }
+        writer.finish();
+        byte[] png = out.toByteArray();
+
+        String name = width + "x" + height + (hasAlpha ? " RGBA" : " RGB");
+        Set<Integer> filters = checkChunks(name, png, width, height, hasAlpha);
+        if (height >= 53) {
+            // 测试图案使每种滤波都被选中过
+            for (int filter = 0; filter <= 4; filter++) {
+                if (filter != 3) {
+                    assertTrue(name + " filter " + filter + " used", filters.contains(filter));
+                }
+            }
+        }
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull(name, image);
+        assertEquals(name, width, image.getWidth());
+        assertEquals(name, height, image.getHeight());
+        assertEquals(name, hasAlpha, image.getColorModel().hasAlpha());
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                int expected = pixels[offset + row * stride + x];
+                if (!hasAlpha) {
+                    expected |= 0xFF000000;
+                }
+                int actual = image.getRGB(x, row);
+                if (expected != actual) {
+                    fail(name + " pixel " + x + "," + row + " expected " + Integer.toHexString(expected) + " but was "
+                            + Integer.toHexString(actual));
+                }
+            }
+        }
+    }
+
+    /**
+     * 噪声、水平渐变、重复上一行、二维渐变交替的图案，分别适合None、Sub、Up、Paeth滤波
+     */
+    private static int[] pixels(int width, int height, int stride, int offset, boolean hasAlpha, Random random) {
+        int[] pixels = new int[offset + stride * height];
+        for (int y = 0; y < height; y++) {
+            int start = offset + y * stride;
+            int pattern = (y / 4) % 4;
+            for (int x = 0; x < width; x++) {
+                int color;
+                switch (pattern) {
+                case 0:
+                    color = random.nextInt();
+                    break;
+                case 1:
+                    color = ((x * 3) & 0xFF) << 16 | ((x * 5) & 0xFF) << 8 | ((x * 7 + y) & 0xFF);
+                    break;
+                case 2:
+                    color = y > 0 ? pixels[start - stride + x] : 0;
+                    break;
+                default:
+                    color = ((x * 2 + y * 3) & 0xFF) << 16 | ((x * y) & 0xFF) << 8 | ((x + y * 5) & 0xFF);
+                    break;
+                }
+                int alpha = hasAlpha ? (pattern == 0 ? random.nextInt(256) : (x + y) & 0xFF) : 0xFF;
+                pixels[start + x] = alpha << 24 | (color & 0xFFFFFF);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * 检查签名、IHDR、每个块的CRC，解压IDAT并返回各行使用的滤波
+     */
+    private static Set<Integer> checkChunks(String name, byte[] png, int width, int height, boolean hasAlpha)
+            throws DataFormatException {
+        byte[] signature = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+        for (int i = 0; i < signature.length; i++) {
+            assertEquals(name + " signature", signature[i], png[i]);
+        }
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        int position = signature.length;
+        String type = null;
+        boolean first = true;
+        while (position < png.length) {
+            int length = readInt(png, position);
+            type = new String(png, position + 4, 4, StandardCharsets.US_ASCII);
+            crc.reset();
+            crc.update(png, position + 4, 4 + length);
+            assertEquals(name + " " + type + " crc", (int) crc.getValue(), readInt(png, position + 8 + length));
+            if (first) {
+                assertEquals(name, "IHDR", type);
+                assertEquals(name, width, readInt(png, position + 8));
+                assertEquals(name, height, readInt(png, position + 12));
+                assertEquals(name, hasAlpha ? 6 : 2, png[position + 17]);
+                first = false;
+            } else if ("IDAT".equals(type)) {
+                idat.write(png, position + 8, length);
+            }
+            position += 12 + length;
+        }
+        assertEquals(name, png.length, position);
+        assertEquals(name, "IEND", type);
+
+        int rowBytes = width * (hasAlpha ? 4 : 3) + 1;
+        byte[] raw = new byte[rowBytes * height];
+        Inflater inflater = new Inflater();
+        inflater.setInput(idat.toByteArray());
+        int inflated = inflater.inflate(raw);
+        assertTrue(name + " stream end", inflater.finished());
+        inflater.end();
+        assertEquals(name, raw.length, inflated);
+        Set<Integer> filters = new HashSet<Integer>();
+        for (int y = 0; y < height; y++) {
+            filters.add(raw[y * rowBytes] & 0xFF);
+        }
+        return filters;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8
+                | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * 解码尺寸规划
+ */
+public class SizePlannerTest {
+
+    /**
+     * 原图宽、高，要求宽、高，期望的采样率、inDensity、inTargetDensity、输出宽、高
+     */
+    private static final int[][] TABLE = {
+            // 4:3相机原图，采样后按宽高同比例缩放
+            { 4032, 3024, 800, 600, 4, 1008, 800, 800, 600 },
+            // 旋转90度的同一张图：结果宽高互换
+            { 3024, 4032, 600, 800, 4, 756, 600, 600, 800 },
+            // 非2的幂比例，高先到达要求，以高为基准
+            { 3000, 2000, 700, 700, 2, 1000, 700, 1050, 700 },
+            // 旋转后以宽为基准
+            { 2000, 3000, 700, 700, 2, 1000, 700, 700, 1050 },
+            // 奇数尺寸采样后向上取整
+            { 4001, 3001, 1000, 750, 4, 1001, 1000, 1000, 750 },
+            // 极端宽高比，较短的一边决定采样率
+            { 8000, 1500, 400, 400, 2, 750, 400, 2133, 400 },
+            // 采样后恰好等于要求大小，不再缩放
+            { 2048, 1536, 512, 384, 4, 0, 0, 512, 384 },
+            // 原图小于要求，不放大
+            { 320, 240, 800, 600, 1, 0, 0, 320, 240 },
+            // 只有一边小于要求，同样不放大
+            { 1000, 200, 400, 400, 1, 0, 0, 1000, 200 },
+            // 旋转后的小图
+            { 240, 320, 600, 800, 1, 0, 0, 240, 320 },
+            // 无效尺寸原样返回
+            { -1, -1, 100, 100, 1, 0, 0, -1, -1 },
+            { 4032, 3024, 0, 0, 1, 0, 0, 4032, 3024 } };
+
+    @Test
+    public void planMatchesTable() {
+        for (int[] row : TABLE) {
+            SizePlanner.Plan plan = SizePlanner.plan(row[0], row[1], row[2], row[3]);
+            String message = row[0] + "x" + row[1] + " -> " + row[2] + "x" + row[3] + ": " + plan;
+            assertEquals(message, row[4], plan.sampleSize);
+            assertEquals(message, row[5], plan.density);
+            assertEquals(message, row[6], plan.targetDensity);
+            assertEquals(message, row[7], plan.outWidth);
+            assertEquals(message, row[8], plan.outHeight);
+        }
+    }
+
+    @Test
+    public void calculateSampleSize() {
+        assertEquals(1, SizePlanner.calculateSampleSize(1000, 1000));
+        assertEquals(1, SizePlanner.calculateSampleSize(1999, 1000));
+        assertEquals(2, SizePlanner.calculateSampleSize(2000, 1000));
+        assertEquals(2, SizePlanner.calculateSampleSize(3999, 1000));
+        assertEquals(4, SizePlanner.calculateSampleSize(4000, 1000));
+        assertEquals(1, SizePlanner.calculateSampleSize(100, 1000));
+        assertEquals(1, SizePlanner.calculateSampleSize(1000, 0));
+    }
+
+    /**
+     * 随机尺寸下的规划性质：2的幂采样，结果覆盖要求大小且至少一边相等；原图不够大时不缩放
+     */
+    @Test
+    public void planCoversRequest() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            int srcWidth = 1 + random.nextInt(12000);
+            int srcHeight = 1 + random.nextInt(12000);
+            int reqWidth = 1 + random.nextInt(2000);
+            int reqHeight = 1 + random.nextInt(2000);
+            SizePlanner.Plan plan = SizePlanner.plan(srcWidth, srcHeight, reqWidth, reqHeight);
+            String message = srcWidth + "x" + srcHeight + " -> " + reqWidth + "x" + reqHeight + ": " + plan;
+            assertEquals(message, 0, plan.sampleSize & (plan.sampleSize - 1));
+            // 采样率再翻倍就不能覆盖要求大小
+            int next = plan.sampleSize * 2;
+            assertTrue(message, srcWidth / next < reqWidth || srcHeight / next < reqHeight);
+            if (!plan.isScaled()) {
+                assertEquals(message, SizePlanner.sampledSize(srcWidth, plan.sampleSize), plan.outWidth);
+                assertEquals(message, SizePlanner.sampledSize(srcHeight, plan.sampleSize), plan.outHeight);
+                assertTrue(message, plan.outWidth <= reqWidth || plan.outHeight <= reqHeight);
+                continue;
+            }
+            assertTrue(message, plan.targetDensity < plan.density);
+            assertTrue(message, plan.outWidth >= reqWidth && plan.outHeight >= reqHeight);
+            assertTrue(message, plan.outWidth == reqWidth || plan.outHeight == reqHeight);
+        }
+    }
+}
@@ -18,25 +18,43 @@
 package com.example.clipview;
 
 import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import android.app.Activity;
 import android.graphics.Bitmap;
+import android.net.Uri;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.Window;
 import android.widget.Toast;
 
-import com.example.clipview.utils.BitmapUtils;
+import com.example.clipview.utils.BitmapExporter;
+import com.example.clipview.utils.BitmapLedger;
+import com.example.clipview.utils.DecodePlanner;
+import com.example.clipview.utils.DecodeResult;
+import com.example.clipview.utils.PreviewLoader;
+import com.example.clipview.utils.PreviewLoader.OnPreviewLoadListener;
 import com.example.clipview.view.ClipLayout;
 
-public class ClipActivity extends Activity implements OnClickListener {
+public class ClipActivity extends Activity implements OnClickListener, OnPreviewLoadListener, BitmapExporter.Callback {
+    private static final int CLIP_OUTPUT_SIZE = 1080;
+    private static final String CLIP_OUTPUT_FILE = "clip.jpg";
+    private static final int CLIP_OUTPUT_QUALITY = 90;
+    /** 上传头像的大小限制 */
+    private static final int CLIP_OUTPUT_MAX_KB = 200;
     ClipLayout mClipLayout;
+    private Uri mImageUri;
+    private PreviewLoader mPreviewLoader;
+    private Future<?> mExportFuture;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_clip_picture);
+        DecodePlanner.init(getApplicationContext());
         initView();
         initBitmap();
     }
@@ -48,25 +66,79 @@ public class ClipActivity extends Activity implements OnClickListener {
     }
 
     private void initBitmap() {
-        String imgPath = getIntent().getStringExtra(MainActivity.EXTRA_KEY_IMAGE_PATH);
-        File file = new File(imgPath);
-        if (file.exists()) {
-            Window window = getWindow();
-            mClipLayout.setSourceImage(BitmapUtils.createImageThumbnailScale(imgPath, 800), window);
+        mImageUri = getIntent().getData();
+        // 预览按屏幕大小解码，超出内存预算时由DecodePlanner缩小
+        DisplayMetrics dm = getResources().getDisplayMetrics();
+        mPreviewLoader = new PreviewLoader(getContentResolver(), mImageUri, Math.max(dm.widthPixels, dm.heightPixels),
+                this);
+        mPreviewLoader.execute();
+        // 放大后从原图分块解码，与预览解码并行打开
+        mClipLayout.setTileSource(mImageUri);
+    }
+
+    @Override
+    public void onPreviewLoaded(DecodeResult result, boolean isFinal) {
+        Window window = getWindow();
+        // Bitmap的所有权转移给ClipLayout，最终结果是快速预览的高清版本
+        if (isFinal) {
+            mClipLayout.upgradeSourceImage(result.getBitmap(), result.getOrientation(), window);
         } else {
-            finish();
+            mClipLayout.setSourceImage(result.getBitmap(), result.getOrientation(), window);
         }
     }
 
+    @Override
+    public void onPreviewFailed() {
+        finish();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mPreviewLoader != null) {
+            mPreviewLoader.cancel();
+            mPreviewLoader = null;
+        }
+        if (mExportFuture != null) {
+            mExportFuture.cancel(false);
+            mExportFuture = null;
+        }
         mClipLayout.onDestory();
+        BitmapLedger.getInstance().onOwnerDestroyed(this);
     }
 
     private void clipBitmap() {
-        Bitmap bitmap = mClipLayout.getBitmap();
-        Toast.makeText(getApplicationContext(), "clipBitmap() finish just handler the bitmap", Toast.LENGTH_SHORT).show();
+        // 导出中不再创建解码任务，API 10以下创建时就会在主线程截取预览图
+        if (mExportFuture != null) {
+            return;
+        }
+        Callable<Bitmap> decoder = mClipLayout.newClipDecoder(mImageUri, CLIP_OUTPUT_SIZE);
+        if (decoder == null) {
+            return;
+        }
+        File file = new File(getCacheDir(), CLIP_OUTPUT_FILE);
+        // 在后台解码截取区域并编码，超出大小限制时降低质量
+        mExportFuture = BitmapExporter.getInstance().export(decoder, file, Bitmap.CompressFormat.JPEG, CLIP_OUTPUT_QUALITY,
+                CLIP_OUTPUT_MAX_KB, this);
+    }
+
+    @Override
+    public void onExported(File file, int quality, int byteCount) {
+        mExportFuture = null;
+        if (isFinishing()) {
+            return;
+        }
+        Toast.makeText(getApplicationContext(), "clipBitmap() saved " + file + " quality=" + quality + " size=" + byteCount,
+                Toast.LENGTH_SHORT).show();
+    }
+
+    @Override
+    public void onExportFailed(Throwable t) {
+        mExportFuture = null;
+        if (isFinishing()) {
+            return;
+        }
+        Toast.makeText(getApplicationContext(), "clipBitmap() failed " + t.getMessage(), Toast.LENGTH_SHORT).show();
     }
 
     @Override
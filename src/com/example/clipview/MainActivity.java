@@ -17,62 +17,95 @@
 
 package com.example.clipview;
 
-import java.io.File;
+import java.lang.ref.WeakReference;
 
 import android.app.Activity;
-import android.content.ContentResolver;
+import android.content.AsyncQueryHandler;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
-import android.text.TextUtils;
 import android.view.View;
 import android.view.View.OnClickListener;
 
+import com.example.clipview.utils.DecodePlanner;
+import com.example.clipview.utils.ThumbnailCache;
+
 public class MainActivity extends Activity implements OnClickListener {
 
     private static final int REQUEST_CODE_TAKE_PHOTO = 2;
     private static final int REQUEST_CODE_CLIP_IMG = 3;
-    public static final String EXTRA_KEY_IMAGE_PATH = "extra_key_image_path";
+    private static final int TOKEN_INSERT_PHOTO = 1;
+    private static final int TOKEN_DELETE_PHOTO = 2;
+    private static final String STATE_PHOTO_URI = "photo_uri";
     private Uri mPhotoUri;
+    private PhotoQueryHandler mQueryHandler;
+    private boolean mInserting;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        DecodePlanner.init(getApplicationContext());
+        ThumbnailCache.init(getApplicationContext());
+        mQueryHandler = new PhotoQueryHandler(this);
+        if (savedInstanceState != null) {
+            // 拍照期间进程可能被回收
+            mPhotoUri = savedInstanceState.getParcelable(STATE_PHOTO_URI);
+        }
         findViewById(R.id.btn_take_photo).setOnClickListener(this);
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_PHOTO_URI, mPhotoUri);
+    }
+
     @Override
     public void onClick(View v) {
         int id = v.getId();
         switch (id) {
         case R.id.btn_take_photo:
-            ContentValues contentValues = new ContentValues();
-            mPhotoUri = MainActivity.this.getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, contentValues);
-            startTakePhotoActivity(MainActivity.this, REQUEST_CODE_TAKE_PHOTO, mPhotoUri);
+            if (mInserting) {
+                return;
+            }
+            // 在后台线程插入空记录，完成后再启动相机
+            mInserting = true;
+            mQueryHandler.startInsert(TOKEN_INSERT_PHOTO, null, MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                    new ContentValues());
             break;
         default:
             break;
         }
     }
 
+    private void onPhotoInserted(Uri photoUri) {
+        mInserting = false;
+        if (photoUri == null || isFinishing()) {
+            return;
+        }
+        mPhotoUri = photoUri;
+        startTakePhotoActivity(this, REQUEST_CODE_TAKE_PHOTO, photoUri);
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         switch (requestCode) {
         case REQUEST_CODE_TAKE_PHOTO:
             if (resultCode == RESULT_OK) {
-                String photoPath = getPhotoPath(this, mPhotoUri, data);
-                if (!TextUtils.isEmpty(photoPath)) {
-                    startClipPictureActivity(this, photoPath);
+                // 部分相机忽略EXTRA_OUTPUT，以返回的Uri为准
+                Uri photoUri = data != null && data.getData() != null ? data.getData() : mPhotoUri;
+                if (photoUri != null) {
+                    startClipPictureActivity(this, photoUri);
                 }
-            } else if (resultCode == RESULT_CANCELED) {
+            } else if (resultCode == RESULT_CANCELED && mPhotoUri != null) {
                 // clear inserted empty data
-                MainActivity.this.getContentResolver().delete(mPhotoUri, null, null);
+                mQueryHandler.startDelete(TOKEN_DELETE_PHOTO, null, mPhotoUri, null, null);
+                mPhotoUri = null;
             }
             break;
         case REQUEST_CODE_CLIP_IMG:
@@ -83,49 +116,39 @@ public class MainActivity extends Activity implements OnClickListener {
         }
     }
 
-    public static void startClipPictureActivity(Context context, String imgPath) {
-        Intent intent = new Intent(context, ClipActivity.class);
-        if (imgPath == null)
+    public static void startClipPictureActivity(Context context, Uri imageUri) {
+        if (imageUri == null)
             return;
-        intent.putExtra(EXTRA_KEY_IMAGE_PATH, imgPath);
+        Intent intent = new Intent(context, ClipActivity.class);
+        intent.setData(imageUri);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
         ((Activity) context).startActivityForResult(intent, REQUEST_CODE_CLIP_IMG);
     }
 
     private static void startTakePhotoActivity(Context context, int requestCode, final Uri photoUri) {
-        File file = new File(getPhotoPath(context, photoUri, null));
-        Uri fileUri = Uri.fromFile(file);
         Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
-        intent.putExtra(MediaStore.EXTRA_OUTPUT, fileUri);
+        intent.putExtra(MediaStore.EXTRA_OUTPUT, photoUri);
+        intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
         ((Activity) context).startActivityForResult(intent, requestCode);
     }
 
-    private static String getPhotoPath(Context context, Uri photoUri, Intent data) {
-        String photoPath = "";
-        ContentResolver cr = context.getContentResolver();
-        if (photoUri != null) {
-            Cursor cursor = cr.query(photoUri, null, null, null, null);
-            if (cursor != null && cursor.getCount() > 0) {
-                cursor.moveToFirst();
-                int pathIndex = cursor.getColumnIndex(MediaStore.Images.Media.DATA);
-                photoPath = cursor.getString(pathIndex);
-                cursor.close();
-            }
-        } else {
-            if (data != null) {
-                Uri uri = data.getData();
-                if (uri != null && !TextUtils.isEmpty(uri.getPath())) {
-                    photoPath = uri.getPath();
-                    if (!(new File(photoPath).exists())) {
-                        String[] proj = { MediaStore.Images.Media.DATA };
-                        Cursor actualimagecursor = cr.query(uri, proj, null, null, null);
-                        int actualImg = actualimagecursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-                        actualimagecursor.moveToFirst();
-                        if (actualimagecursor != null)
-                            photoPath = actualimagecursor.getString(actualImg);
-                    }
-                }
+    /**
+     * MediaStore的插入、删除在后台线程执行，只持有Activity的弱引用
+     */
+    private static class PhotoQueryHandler extends AsyncQueryHandler {
+        private final WeakReference<MainActivity> mActivity;
+
+        PhotoQueryHandler(MainActivity activity) {
+            super(activity.getContentResolver());
+            mActivity = new WeakReference<MainActivity>(activity);
+        }
+
+        @Override
+        protected void onInsertComplete(int token, Object cookie, Uri uri) {
+            MainActivity activity = mActivity.get();
+            if (activity != null) {
+                activity.onPhotoInserted(uri);
             }
         }
-        return photoPath;
     }
 }
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * 在后台线程中解码并导出图片到文件，支持JPEG、PNG、WebP。
+ * <p>
+ * 编码先写入复用的内存缓冲区，再一次写入临时文件并改名，失败时不会留下不完整的文件。
+ * 限制文件大小时对质量做二分查找，取不超过限制的最高质量，PNG为无损格式，质量不起作用。
+ * 导出任务依次执行，同一时间只占用一张图片的内存。
+ * <p>
+ * 超出内存的大尺寸截图用{@link #exportTiled}分块解码并流式写入PNG，不需要完整的Bitmap。
+ */
+public class BitmapExporter {
+    /** 不限制文件大小 */
+    public static final int NO_LIMIT = 0;
+
+    /** 分块导出的PNG没有质量参数，回调中的质量 */
+    private static final int LOSSLESS_QUALITY = 100;
+    private static final int FILE_BUFFER = 64 * 1024;
+
+    /** 缓冲区超过该大小时导出后释放 */
+    private static final int MAX_RETAINED_BUFFER = 4 * 1024 * 1024;
+    private static final int INITIAL_BUFFER = 64 * 1024;
+
+    private static BitmapExporter sInstance;
+
+    private final ExecutorService mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /** 只在导出线程中使用 */
+    private EncodeBuffer mBuffer = new EncodeBuffer();
+    private EncodeBuffer mBestBuffer = new EncodeBuffer();
+
+    public interface Callback {
+        /**
+         * 导出完成，在主线程回调
+         *
+         * @param file
+         * @param quality
+         *            实际使用的质量
+         * @param byteCount
+         *            文件字节数
+         */
+        void onExported(File file, int quality, int byteCount);
+
+        /**
+         * 解码失败、写文件失败或最低质量仍超出大小限制，在主线程回调
+         *
+         * @param t
+         */
+        void onExportFailed(Throwable t);
+    }
+
+    public static synchronized BitmapExporter getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapExporter();
+        }
+        return sInstance;
+    }
+
+    private BitmapExporter() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "BitmapExporter");
+            }
+        });
+    }
+
+    /**
+     * 在后台解码并导出，导出后Bitmap归还复用池
+     *
+     * @param source
+     *            在导出线程中调用，返回要导出的Bitmap
+     * @param file
+     *            目标文件，已存在时覆盖
+     * @param format
+     *            WebP需要4.0及以上，以下改用JPEG
+     * @param quality
+     *            0~100，限制大小时为最高质量
+     * @param maxKilobytes
+     *            文件大小上限，单位KB，{@link #NO_LIMIT}为不限制
+     * @param callback
+     * @return 可用于取消未开始的导出
+     */
+    public Future<?> export(final Callable<Bitmap> source, final File file, final Bitmap.CompressFormat format,
+            final int quality, final int maxKilobytes, final Callback callback) {
+        return mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                try {
+                    bitmap = source.call();
+                    if (bitmap == null) {
+                        throw new IOException("decode failed");
+                    }
+                    final int usedQuality = exportSync(bitmap, file, format, quality, maxKilobytes);
+                    final int byteCount = (int) file.length();
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onExported(file, usedQuality, byteCount);
+                        }
+                    });
+                } catch (final Throwable t) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onExportFailed(t);
+                        }
+                    });
+                } finally {
+                    BitmapPool.getInstance().put(bitmap);
+                }
+            }
+        });
+    }
+
+    /**
+     * 在后台分块解码截取区域并以PNG流式写入文件，内存占用与输出大小无关
+     *
+     * @param source
+     *            导出后关闭
+     * @param clipMatrix
+     *            预览图坐标到截取区域坐标的矩阵，调用时复制
+     * @param clipWidth
+     *            截取区域宽
+     * @param clipHeight
+     *            截取区域高
+     * @param previewWidth
+     * @param previewHeight
+     * @param size
+     *            输出最长边
+     * @param file
+     *            目标文件，已存在时覆盖
+     * @param callback
+     * @return 可用于取消未开始的导出
+     */
+    public Future<?> exportTiled(final DecodeSource source, Matrix clipMatrix, final int clipWidth,
+            final int clipHeight, final int previewWidth, final int previewHeight, final int size, final File file,
+            final Callback callback) {
+        final Matrix matrix = new Matrix(clipMatrix);
+        return mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeTiled(source, matrix, clipWidth, clipHeight, previewWidth, previewHeight, size, file);
+                    final int byteCount = (int) file.length();
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onExported(file, LOSSLESS_QUALITY, byteCount);
+                        }
+                    });
+                } catch (final Throwable t) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onExportFailed(t);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * 在当前线程导出，只能在导出线程中调用
+     *
+     * @return 实际使用的质量
+     * @throws IOException
+     *             写文件失败或最低质量仍超出大小限制
+     */
+    private int exportSync(Bitmap bitmap, File file, Bitmap.CompressFormat format, int quality, int maxKilobytes)
+            throws IOException {
+        try {
+            format = getSupportedFormat(format);
+            quality = Math.max(0, Math.min(100, quality));
+            if (maxKilobytes > NO_LIMIT) {
+                quality = encodeToLimit(bitmap, format, quality, maxKilobytes * 1024);
+            } else {
+                encode(bitmap, format, quality, mBestBuffer);
+            }
+            writeToFile(mBestBuffer, file);
+            return quality;
+        } finally {
+            trimBuffers();
+        }
+    }
+
+    /**
+     * 二分查找不超过大小限制的最高质量，结果在mBestBuffer中
+     */
+    private int encodeToLimit(Bitmap bitmap, Bitmap.CompressFormat format, int quality, int maxBytes) throws IOException {
+        encode(bitmap, format, quality, mBestBuffer);
+        if (mBestBuffer.size() <= maxBytes) {
+            return quality;
+        }
+        if (format == Bitmap.CompressFormat.PNG) {
+            throw new IOException("PNG size " + mBestBuffer.size() + " exceeds limit " + maxBytes);
+        }
+        int low = 0;
+        int high = quality - 1;
+        int best = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            encode(bitmap, format, mid, mBuffer);
+            if (mBuffer.size() <= maxBytes) {
+                best = mid;
+                EncodeBuffer temp = mBestBuffer;
+                mBestBuffer = mBuffer;
+                mBuffer = temp;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (best < 0) {
+            throw new IOException("size at quality 0 exceeds limit " + maxBytes);
+        }
+        return best;
+    }
+
+    private static void encode(Bitmap bitmap, Bitmap.CompressFormat format, int quality, ByteArrayOutputStream buffer)
+            throws IOException {
+        buffer.reset();
+        if (!bitmap.compress(format, quality, buffer)) {
+            throw new IOException("compress " + format + " failed");
+        }
+    }
+
+    /**
+     * 先写入临时文件再改名
+     */
+    private static void writeToFile(ByteArrayOutputStream buffer, File file) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("create dir failed " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        boolean success = false;
+        try {
+            out = new FileOutputStream(tmp);
+            buffer.writeTo(out);
+            out.close();
+            out = null;
+            success = (!file.exists() || file.delete()) && tmp.renameTo(file);
+            if (!success) {
+                throw new IOException("rename " + tmp + " failed");
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // 已在处理原异常
+                }
+            }
+            if (!success) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * 分块写入临时文件再改名
+     */
+    private static void writeTiled(DecodeSource source, Matrix clipMatrix, int clipWidth, int clipHeight,
+            int previewWidth, int previewHeight, int size, File file) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            source.close();
+            throw new IOException("create dir failed " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        boolean success = false;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp), FILE_BUFFER);
+            TiledExporter.export(source, clipMatrix, clipWidth, clipHeight, previewWidth, previewHeight, size, out);
+            out.close();
+            out = null;
+            success = (!file.exists() || file.delete()) && tmp.renameTo(file);
+            if (!success) {
+                throw new IOException("rename " + tmp + " failed");
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // 已在处理原异常
+                }
+            }
+            if (!success) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * 按数组容量而不是最后一次写入的长度判断，二分查找换入小结果后，之前扩大的数组同样释放
+     */
+    private void trimBuffers() {
+        if (mBuffer.capacity() > MAX_RETAINED_BUFFER) {
+            mBuffer = new EncodeBuffer();
+        } else {
+            mBuffer.reset();
+        }
+        if (mBestBuffer.capacity() > MAX_RETAINED_BUFFER) {
+            mBestBuffer = new EncodeBuffer();
+        } else {
+            mBestBuffer.reset();
+        }
+    }
+
+    /**
+     * 可以读取当前数组容量的编码缓冲区
+     */
+    private static final class EncodeBuffer extends ByteArrayOutputStream {
+        EncodeBuffer() {
+            super(INITIAL_BUFFER);
+        }
+
+        synchronized int capacity() {
+            return buf.length;
+        }
+    }
+
+    private static Bitmap.CompressFormat getSupportedFormat(Bitmap.CompressFormat format) {
+        if (format == null) {
+            return Bitmap.CompressFormat.JPEG;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH && "WEBP".equals(format.name())) {
+            return Bitmap.CompressFormat.JPEG;
+        }
+        return format;
+    }
+}
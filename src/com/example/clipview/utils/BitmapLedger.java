@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Bitmap内存账本，记录库中分配的每个Bitmap的大小和分配位置，通过弱引用跟踪其生命周期。
+ * <p>
+ * Bitmap被某个对象持有时用{@link #attach}登记持有者，归还复用池时解除；
+ * 持有者销毁时调用{@link #onOwnerDestroyed}，仍由其持有且未回收的Bitmap记为泄漏。
+ * 未经回收或归还就被GC回收的Bitmap计入{@link #getCollectedCount()}，说明释放不确定。
+ */
+public class BitmapLedger {
+    private static final String TAG = "BitmapLedger";
+    /** 最多保留的泄漏报告数 */
+    private static final int MAX_LEAKS = 100;
+
+    private static BitmapLedger sInstance;
+
+    private final Map<Bitmap, Record> mRecords = new WeakHashMap<Bitmap, Record>();
+    private final ReferenceQueue<Bitmap> mQueue = new ReferenceQueue<Bitmap>();
+    private final List<Record> mLeaks = new ArrayList<Record>();
+    private boolean mEnabled = true;
+    private boolean mCaptureStackTraces;
+
+    private long mLiveBytes;
+    private long mPeakBytes;
+    private int mTrackCount;
+    private int mReleaseCount;
+    private int mCollectedCount;
+
+    /**
+     * Bitmap的分配记录
+     */
+    public static final class Record extends WeakReference<Bitmap> {
+        private final String mSite;
+        private final int mByteSize;
+        private final int mWidth;
+        private final int mHeight;
+        private final long mTime;
+        private final Throwable mStackTrace;
+        private WeakReference<Object> mOwner;
+        private String mOwnerName;
+
+        Record(Bitmap bitmap, ReferenceQueue<Bitmap> queue, String site, Throwable stackTrace) {
+            super(bitmap, queue);
+            mSite = site;
+            mByteSize = BitmapPool.getByteSize(bitmap);
+            mWidth = bitmap.getWidth();
+            mHeight = bitmap.getHeight();
+            mTime = SystemClock.uptimeMillis();
+            mStackTrace = stackTrace;
+        }
+
+        /**
+         * 分配位置
+         */
+        public String getSite() {
+            return mSite;
+        }
+
+        public int getByteSize() {
+            return mByteSize;
+        }
+
+        /**
+         * 记录时的持有者类名，没有持有者时为null
+         */
+        public synchronized String getOwnerName() {
+            return mOwnerName;
+        }
+
+        /**
+         * 分配时的调用栈，未开启{@link BitmapLedger#setCaptureStackTraces}时为null
+         */
+        public Throwable getStackTrace() {
+            return mStackTrace;
+        }
+
+        synchronized void setOwner(Object owner) {
+            mOwner = owner != null ? new WeakReference<Object>(owner) : null;
+            mOwnerName = owner != null ? owner.getClass().getSimpleName() : null;
+        }
+
+        synchronized boolean isOwnedBy(Object owner) {
+            return mOwner != null && mOwner.get() == owner;
+        }
+
+        @Override
+        public String toString() {
+            return "Bitmap[" + mWidth + "x" + mHeight + "," + mByteSize + " bytes,site=" + mSite + ",owner="
+                    + getOwnerName() + ",age=" + (SystemClock.uptimeMillis() - mTime) + "ms]";
+        }
+    }
+
+    public static synchronized BitmapLedger getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapLedger();
+        }
+        return sInstance;
+    }
+
+    /**
+     * 关闭后不再记录新分配的Bitmap
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * 记录分配时的调用栈，开销较大，仅调试时开启
+     */
+    public synchronized void setCaptureStackTraces(boolean capture) {
+        mCaptureStackTraces = capture;
+    }
+
+    /**
+     * 记录新分配的Bitmap，已记录的忽略
+     *
+     * @param bitmap
+     * @param site
+     *            分配位置
+     */
+    public synchronized void track(Bitmap bitmap, String site) {
+        if (!mEnabled || bitmap == null || bitmap.isRecycled() || mRecords.containsKey(bitmap)) {
+            return;
+        }
+        poll();
+        Record record = new Record(bitmap, mQueue, site, mCaptureStackTraces ? new Throwable(site) : null);
+        mRecords.put(bitmap, record);
+        mTrackCount++;
+        mLiveBytes += record.mByteSize;
+        if (mLiveBytes > mPeakBytes) {
+            mPeakBytes = mLiveBytes;
+        }
+    }
+
+    /**
+     * 登记Bitmap的持有者
+     *
+     * @param bitmap
+     * @param owner
+     */
+    public synchronized void attach(Bitmap bitmap, Object owner) {
+        Record record = bitmap != null ? mRecords.get(bitmap) : null;
+        if (record != null) {
+            record.setOwner(owner);
+        }
+    }
+
+    /**
+     * 解除持有者，归还复用池时调用
+     *
+     * @param bitmap
+     */
+    public synchronized void detach(Bitmap bitmap) {
+        attach(bitmap, null);
+    }
+
+    /**
+     * Bitmap已回收，不再计入存活大小
+     *
+     * @param bitmap
+     */
+    public synchronized void release(Bitmap bitmap) {
+        Record record = bitmap != null ? mRecords.remove(bitmap) : null;
+        if (record != null) {
+            record.clear();
+            mLiveBytes -= record.mByteSize;
+            mReleaseCount++;
+        }
+    }
+
+    /**
+     * 持有者已销毁，返回仍由其持有且未回收的Bitmap，同时记录为泄漏
+     *
+     * @param owner
+     * @return
+     */
+    public synchronized List<Record> onOwnerDestroyed(Object owner) {
+        sweep();
+        List<Record> leaks = null;
+        for (Record record : mRecords.values()) {
+            if (record.isOwnedBy(owner)) {
+                if (leaks == null) {
+                    leaks = new ArrayList<Record>();
+                }
+                leaks.add(record);
+                Log.w(TAG, "leaked after " + owner.getClass().getSimpleName() + " destroyed: " + record,
+                        record.mStackTrace);
+            }
+        }
+        if (leaks == null) {
+            return Collections.emptyList();
+        }
+        mLeaks.addAll(leaks);
+        while (mLeaks.size() > MAX_LEAKS) {
+            mLeaks.remove(0);
+        }
+        return leaks;
+    }
+
+    /**
+     * 存活Bitmap的总字节数，包括复用池中的Bitmap
+     */
+    public synchronized long getLiveBytes() {
+        sweep();
+        return mLiveBytes;
+    }
+
+    /**
+     * 存活字节数的峰值
+     */
+    public synchronized long getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    /**
+     * 重置峰值为当前存活大小
+     */
+    public synchronized void resetPeak() {
+        sweep();
+        mPeakBytes = mLiveBytes;
+    }
+
+    public synchronized int getLiveCount() {
+        sweep();
+        return mRecords.size();
+    }
+
+    /**
+     * 当前存活的Bitmap记录
+     */
+    public synchronized List<Record> getLiveRecords() {
+        sweep();
+        return new ArrayList<Record>(mRecords.values());
+    }
+
+    /**
+     * 历次{@link #onOwnerDestroyed}发现的泄漏，最多保留{@value #MAX_LEAKS}条
+     */
+    public synchronized List<Record> getLeaks() {
+        return new ArrayList<Record>(mLeaks);
+    }
+
+    /**
+     * 未回收或归还就被GC回收的Bitmap数
+     */
+    public synchronized int getCollectedCount() {
+        poll();
+        return mCollectedCount;
+    }
+
+    /**
+     * 清除GC已回收和在账本外被回收的Bitmap记录
+     */
+    private void sweep() {
+        poll();
+        for (Iterator<Map.Entry<Bitmap, Record>> it = mRecords.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Bitmap, Record> entry = it.next();
+            if (entry.getKey().isRecycled()) {
+                it.remove();
+                Record record = entry.getValue();
+                record.clear();
+                mLiveBytes -= record.mByteSize;
+                mReleaseCount++;
+            }
+        }
+    }
+
+    private void poll() {
+        Record record;
+        while ((record = (Record) mQueue.poll()) != null) {
+            mLiveBytes -= record.mByteSize;
+            mCollectedCount++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        sweep();
+        return "BitmapLedger[live=" + mRecords.size() + "/" + mLiveBytes + " bytes,peak=" + mPeakBytes + " bytes,tracked="
+                + mTrackCount + ",released=" + mReleaseCount + ",collected=" + mCollectedCount + ",leaks=" + mLeaks.size()
+                + "]";
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Bitmap复用池，按Config和字节大小分组，超出容量时按最近最少使用淘汰。
+ * <p>
+ * 4.4及以上按字节大小复用（{@link Bitmap#reconfigure}），以下要求宽高和Config完全一致。
+ */
+public class BitmapPool {
+    /** 复用时允许的最大浪费倍数，避免小图占用大块内存 */
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private static BitmapPool sInstance;
+
+    private final long mMaxSize;
+    private long mCurrentSize;
+    private final Map<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>> mGroups = new HashMap<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>>();
+    private final LinkedHashSet<Bitmap> mLruBitmaps = new LinkedHashSet<Bitmap>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * 默认池，容量为最大可用内存的1/8
+     *
+     * @return
+     */
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param maxSize
+     *            池容量，单位字节
+     */
+    public BitmapPool(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * 获取已清空的Bitmap，池中没有可复用的Bitmap时新建
+     *
+     * @param width
+     * @param height
+     * @param config
+     * @return
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = getDirty(width, height, config);
+        if (bitmap != null) {
+            bitmap.eraseColor(0);
+            return bitmap;
+        }
+        bitmap = Bitmap.createBitmap(width, height, config);
+        BitmapLedger.getInstance().track(bitmap, "BitmapPool.get");
+        return bitmap;
+    }
+
+    /**
+     * 获取未清空的Bitmap，用于完整覆盖的绘制或{@link BitmapFactory.Options#inBitmap}，
+     * 没有可复用的Bitmap时返回null
+     *
+     * @param width
+     * @param height
+     * @param config
+     * @return
+     */
+    public synchronized Bitmap getDirty(int width, int height, Bitmap.Config config) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        config = normalize(config);
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = mGroups.get(config);
+        Bitmap result = null;
+        if (sizes != null) {
+            int byteSize = getByteSize(width, height, config);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                Integer key = sizes.ceilingKey(byteSize);
+                if (key != null && key <= byteSize * MAX_SIZE_MULTIPLE) {
+                    result = removeFirst(sizes, key);
+                    reconfigure(result, width, height, config);
+                }
+            } else {
+                LinkedList<Bitmap> bitmaps = sizes.get(byteSize);
+                if (bitmaps != null) {
+                    for (Iterator<Bitmap> it = bitmaps.iterator(); it.hasNext();) {
+                        Bitmap bitmap = it.next();
+                        if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                            it.remove();
+                            if (bitmaps.isEmpty()) {
+                                sizes.remove(byteSize);
+                            }
+                            result = bitmap;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        if (result == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        mLruBitmaps.remove(result);
+        mCurrentSize -= getByteSize(result);
+        return result;
+    }
+
+    /**
+     * 为解码参数设置可复用的Bitmap，宽高为解码后的预期大小
+     *
+     * @param options
+     * @param width
+     * @param height
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void setInBitmap(BitmapFactory.Options options, int width, int height) {
+        // 4.4以下要求inSampleSize为1且宽高完全一致，解码结果宽高无法预先确定，不复用
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+        options.inMutable = true;
+        options.inBitmap = getDirty(width, height, options.inPreferredConfig);
+    }
+
+    /**
+     * 归还Bitmap，不可复用或超出容量时回收
+     *
+     * @param bitmap
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (mLruBitmaps.contains(bitmap)) {
+            return;
+        }
+        int byteSize = getByteSize(bitmap);
+        if (!bitmap.isMutable() || byteSize > mMaxSize) {
+            recycle(bitmap);
+            return;
+        }
+        BitmapLedger.getInstance().detach(bitmap);
+        Bitmap.Config config = normalize(bitmap.getConfig());
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = mGroups.get(config);
+        if (sizes == null) {
+            sizes = new TreeMap<Integer, LinkedList<Bitmap>>();
+            mGroups.put(config, sizes);
+        }
+        LinkedList<Bitmap> bitmaps = sizes.get(byteSize);
+        if (bitmaps == null) {
+            bitmaps = new LinkedList<Bitmap>();
+            sizes.put(byteSize, bitmaps);
+        }
+        bitmaps.addLast(bitmap);
+        mLruBitmaps.add(bitmap);
+        mCurrentSize += byteSize;
+        mPutCount++;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * 淘汰最久未使用的Bitmap直到不超过指定大小
+     *
+     * @param maxSize
+     */
+    public synchronized void trimToSize(long maxSize) {
+        Iterator<Bitmap> it = mLruBitmaps.iterator();
+        while (mCurrentSize > maxSize && it.hasNext()) {
+            Bitmap bitmap = it.next();
+            it.remove();
+            int byteSize = getByteSize(bitmap);
+            TreeMap<Integer, LinkedList<Bitmap>> sizes = mGroups.get(normalize(bitmap.getConfig()));
+            LinkedList<Bitmap> bitmaps = sizes.get(byteSize);
+            bitmaps.remove(bitmap);
+            if (bitmaps.isEmpty()) {
+                sizes.remove(byteSize);
+            }
+            mCurrentSize -= byteSize;
+            mEvictionCount++;
+            recycle(bitmap);
+        }
+    }
+
+    /**
+     * 清空复用池
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getCurrentSize() {
+        return mCurrentSize;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getPutCount() {
+        return mPutCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return "BitmapPool[size=" + mCurrentSize + ",maxSize=" + mMaxSize + ",hits=" + mHitCount + ",misses=" + mMissCount
+                + ",puts=" + mPutCount + ",evictions=" + mEvictionCount + ",hitRate=" + hitPercent + "%]";
+    }
+
+    private static void recycle(Bitmap bitmap) {
+        BitmapLedger.getInstance().release(bitmap);
+        bitmap.recycle();
+    }
+
+    private static Bitmap removeFirst(TreeMap<Integer, LinkedList<Bitmap>> sizes, Integer key) {
+        LinkedList<Bitmap> bitmaps = sizes.get(key);
+        Bitmap bitmap = bitmaps.removeFirst();
+        if (bitmaps.isEmpty()) {
+            sizes.remove(key);
+        }
+        return bitmap;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height || bitmap.getConfig() != config) {
+            bitmap.reconfigure(width, height, config);
+        }
+    }
+
+    private static Bitmap.Config normalize(Bitmap.Config config) {
+        return config != null ? config : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Bitmap占用的字节数，4.4及以上为实际分配大小
+     *
+     * @param bitmap
+     * @return
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public static int getByteSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * 指定宽高和Config的Bitmap所需字节数
+     */
+    public static int getByteSize(int width, int height, Bitmap.Config config) {
+        return width * height * getBytesPerPixel(config);
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
@@ -17,46 +17,90 @@
 
 package com.example.clipview.utils;
 
-import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import android.app.Activity;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.BitmapFactory.Options;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
-import android.graphics.ColorMatrix;
-import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.net.Uri;
-import android.os.ParcelFileDescriptor;
+import android.util.DisplayMetrics;
 import android.util.Log;
 
 public class BitmapUtils {
+    /** EXIF内嵌缩略图与原图宽高比允许的相对误差 */
+    private static final float EXIF_THUMBNAIL_ASPECT_TOLERANCE = 0.02f;
+
+    /**
+     * 解码结果的色彩调整，为全局状态，作用于之后的所有缩略图和预览解码。
+     * 默认沿用原先缩略图饱和度提高到1.3倍的效果，不需要时设为{@link ColorAdjustment#IDENTITY}
+     */
+    private static volatile ColorAdjustment sColorAdjustment = new ColorAdjustment(1.3f, 0, 1);
+
+    /**
+     * 设置全局色彩调整，{@link ColorAdjustment#IDENTITY}为不调整。
+     * 缩略图缓存的key包含色彩调整，修改后会重新解码，不会取到旧色彩的缓存
+     * 
+     * @param adjustment
+     */
+    public static void setColorAdjustment(ColorAdjustment adjustment) {
+        sColorAdjustment = adjustment != null ? adjustment : ColorAdjustment.IDENTITY;
+    }
+
+    public static ColorAdjustment getColorAdjustment() {
+        return sColorAdjustment;
+    }
+
+    /** 解码各阶段的回调，为null时不统计 */
+    private static volatile DecodeListener sDecodeListener;
+
+    /**
+     * 设置解码各阶段的回调，如{@link DecodeMetrics#getInstance()}，null为不统计
+     * 
+     * @param listener
+     */
+    public static void setDecodeListener(DecodeListener listener) {
+        sDecodeListener = listener;
+    }
+
+    public static DecodeListener getDecodeListener() {
+        return sDecodeListener;
+    }
+
+    /**
+     * 按屏幕大小解码图片
+     * 
+     * @param pathUri
+     * @param activity
+     * @return
+     */
     public static Bitmap decodeBitmapFromPathUri(final Uri pathUri, final Activity activity) {
-        return decodeBitmapFromPathUri(pathUri, activity, true);
+        DisplayMetrics dm = activity.getResources().getDisplayMetrics();
+        return decodeBitmapFromPathUri(pathUri, activity, Math.max(dm.widthPixels, dm.heightPixels));
     }
 
-    public static Bitmap decodeBitmapFromPathUri(final Uri pathUri, final Activity activity, boolean isLow) {
-        int size = 800;
-        return compressImage(size, 0, true, isLow, new IBitMapReaderCallBack() {
-            @Override
-            public Bitmap getBitMap(Options options) {
-                try {
-                    ParcelFileDescriptor parcelFileDescriptor = activity.getContentResolver().openFileDescriptor(pathUri, "r");
-                    FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-                    return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
-                } catch (Throwable t) {
-                    if (t != null)
-                        Log.e("exception", "BitmapUtil.decodeBitmapFromPathUri(Uri pathUri, Activity activity) Exception " + t.getMessage());
-                    return null;
-                }
-            }
-        });
+    /**
+     * @param pathUri
+     * @param activity
+     * @param size
+     *            区域大小
+     * @return
+     */
+    public static Bitmap decodeBitmapFromPathUri(final Uri pathUri, final Activity activity, int size) {
+        return getBitmap(compressImage(size, true, true, false, DecodePlanner.getDefault(),
+                DecodeSource.fromUri(activity.getContentResolver(), pathUri)));
     }
 
     /**
-     * 按比例生成图片缩略图
+     * 按比例生成图片缩略图，初始化{@link ThumbnailCache}后结果会被缓存共享，不要回收
      * 
      * @param filePath
      * @param size
@@ -64,31 +108,49 @@ public class BitmapUtils {
      * @return
      */
     public static Bitmap createImageThumbnailScale(final String filePath, int size) {
-        return createImageThumbnailScale(filePath, size, true);
+        return getCachedThumbnail(filePath, size, true);
     }
 
     /**
-     * 按比例生成图片缩略图
+     * 按比例生成图片缩略图，解码完成后关闭数据源
      * 
-     * @param filePath
+     * @param source
      * @param size
      *            区域大小
-     * @param isLow
-     *            是低品质图片
      * @return
      */
-    public static Bitmap createImageThumbnailScale(final String filePath, int size, boolean isLow) {
-        return compressImage(size, 0, true, isLow, new IBitMapReaderCallBack() {
-            @Override
-            public Bitmap getBitMap(Options options) {
-                return BitmapFactory.decodeFile(filePath, options);
-            }
-        });
+    public static Bitmap createImageThumbnailScale(DecodeSource source, int size) {
+        return getBitmap(compressImage(size, true, true, true, DecodePlanner.getDefault(), source));
+    }
+
+    /**
+     * 按比例解码预览图，EXIF方向不作用于像素，随结果返回由显示端旋转
+     * 
+     * @param source
+     * @param size
+     *            区域大小
+     * @return 解码失败时为null
+     */
+    public static DecodeResult decodePreview(DecodeSource source, int size) {
+        return decodePreview(source, size, DecodePlanner.getDefault());
+    }
+
+    /**
+     * 按比例解码预览图，按指定规划器的内存预算决定采样率和Config
+     * 
+     * @param source
+     * @param size
+     *            区域大小
+     * @param planner
+     * @return 解码失败时为null，{@link DecodeResult#getPlan()}为实际采用的规划
+     */
+    public static DecodeResult decodePreview(DecodeSource source, int size, DecodePlanner planner) {
+        return compressImage(size, false, true, false, planner, source);
     }
 
     /**
      * 不按比例生成图片缩略图，按假定显示最大分辨率{@code MAX_NUM_PIXELS_THUMBNAIL}来计算inSampleSize；
-     * 再按指定宽高生成缩略图
+     * 再按指定宽高生成缩略图。初始化{@link ThumbnailCache}后结果会被缓存共享，不要回收
      * 
      * @param filePath
      * @param size
@@ -96,65 +158,309 @@ public class BitmapUtils {
      * @return
      */
     public static Bitmap createImageThumbnail(final String filePath, int size) {
-        return createImageThumbnail(filePath, size, true);
+        return getCachedThumbnail(filePath, size, false);
     }
 
     /**
-     * 不按比例生成图片缩略图，按假定显示最大分辨率{@code MAX_NUM_PIXELS_THUMBNAIL}来计算inSampleSize；
-     * 再按指定宽高生成缩略图
+     * 不按比例生成图片缩略图，解码完成后关闭数据源
      * 
-     * @param filePath
+     * @param source
      * @param size
      *            区域大小
-     * @param isLow
-     *            是低品质图片
      * @return
      */
-    public static Bitmap createImageThumbnail(final String filePath, int size, boolean isLow) {
-        return compressImage(size, 0, false, isLow, new IBitMapReaderCallBack() {
+    public static Bitmap createImageThumbnail(DecodeSource source, int size) {
+        return getBitmap(compressImage(size, true, false, true, DecodePlanner.getDefault(), source));
+    }
+
+    /**
+     * 批量生成缩略图，并行解码，按输入顺序在主线程回调
+     * 
+     * @param filePaths
+     * @param size
+     *            区域大小
+     * @param scale
+     *            是否按比例生成，否则居中截取
+     * @param callback
+     * @return 可用于取消整个批次
+     */
+    public static ThumbnailBatch createImageThumbnails(List<String> filePaths, int size, boolean scale,
+            ThumbnailBatch.Callback callback) {
+        ThumbnailBatch batch = new ThumbnailBatch(filePaths, size, scale, callback);
+        batch.start();
+        return batch;
+    }
+
+    /**
+     * 经{@link ThumbnailCache}获取缩略图，缓存未初始化时直接解码
+     */
+    private static Bitmap getCachedThumbnail(final String filePath, final int size, final boolean scale) {
+        ThumbnailCache cache = ThumbnailCache.getInstance();
+        String key = cache != null && filePath != null ? ThumbnailCache.buildKey(filePath, size, scale,
+                sColorAdjustment) : null;
+        if (key == null) {
+            return getBitmap(compressImage(size, true, scale, true, DecodePlanner.getDefault(),
+                    DecodeSource.fromFile(filePath)));
+        }
+        return cache.get(key, new Callable<Bitmap>() {
             @Override
-            public Bitmap getBitMap(Options options) {
-                return BitmapFactory.decodeFile(filePath, options);
+            public Bitmap call() {
+                return getBitmap(compressImage(size, true, scale, true, DecodePlanner.getDefault(),
+                        DecodeSource.fromFile(filePath)));
             }
         });
     }
 
+    private static Bitmap getBitmap(DecodeResult result) {
+        return result != null ? result.getBitmap() : null;
+    }
+
+    /**
+     * 按截取区域从原图中解码截图，只解码截取区域，不解码整张原图
+     * 
+     * @param filePath
+     *            原图路径
+     * @param clipRect
+     *            截取区域，相对于预览图坐标
+     * @param previewWidth
+     *            预览图宽
+     * @param previewHeight
+     *            预览图高
+     * @param degrees
+     *            旋转角度
+     * @param size
+     *            输出图片最大边长，超出内存预算时缩小
+     * @return
+     */
+    public static Bitmap decodeClipRegion(String filePath, Rect clipRect, int previewWidth, int previewHeight, int degrees, int size) {
+        return decodeClipRegion(DecodeSource.fromFile(filePath), clipRect, previewWidth, previewHeight, degrees, size);
+    }
+
+    /**
+     * 按截取区域从数据源中解码截图，解码完成后关闭数据源
+     * 
+     * @see #decodeClipRegion(String, Rect, int, int, int, int)
+     */
+    public static Bitmap decodeClipRegion(DecodeSource source, Rect clipRect, int previewWidth, int previewHeight, int degrees, int size) {
+        if (clipRect == null) {
+            source.close();
+            return null;
+        }
+        Matrix clipMatrix = new Matrix();
+        int[] clipSize = new int[2];
+        ClipTransform.rotateClipMatrix(clipRect, degrees, clipMatrix, clipSize);
+        return decodeClipRegion(source, clipMatrix, clipSize[0], clipSize[1], previewWidth, previewHeight, size);
+    }
+
+    /**
+     * 按截取矩阵从数据源中解码截图，支持任意旋转角度，只解码截取区域的外接矩形，解码完成后关闭数据源
+     * 
+     * @param source
+     * @param clipMatrix
+     *            预览图坐标到截取区域坐标的矩阵
+     * @param clipWidth
+     *            截取区域宽
+     * @param clipHeight
+     *            截取区域高
+     * @param previewWidth
+     *            预览图宽
+     * @param previewHeight
+     *            预览图高
+     * @param size
+     *            输出图片最大边长，超出内存预算时缩小
+     * @return 非直角旋转时四角超出原图的部分为透明；API 10以下没有区域解码器，为null
+     */
+    public static Bitmap decodeClipRegion(DecodeSource source, Matrix clipMatrix, int clipWidth, int clipHeight,
+            int previewWidth, int previewHeight, int size) {
+        if (clipMatrix == null || clipWidth <= 0 || clipHeight <= 0 || previewWidth <= 0 || previewHeight <= 0 || size <= 0) {
+            source.close();
+            return null;
+        }
+        DecodeListener listener = sDecodeListener;
+        if (!DecodeSource.isRegionDecoderSupported()) {
+            source.close();
+            notifyFailure(listener, DecodeListener.STAGE_BOUNDS, DecodeListener.FAILURE_UNSUPPORTED, null);
+            return null;
+        }
+        BitmapRegionDecoder decoder = null;
+        Bitmap regionBitmap = null;
+        int stage = DecodeListener.STAGE_BOUNDS;
+        long start = System.nanoTime();
+        try {
+            decoder = source.newRegionDecoder();
+            if (listener != null) {
+                listener.onStage(stage, System.nanoTime() - start, 0, 1, null);
+            }
+
+            ClipTransform transform = new ClipTransform();
+            if (!transform.set(clipMatrix, clipWidth, clipHeight, previewWidth, previewHeight, decoder.getWidth(),
+                    decoder.getHeight(), size)) {
+                notifyFailure(listener, stage, DecodeListener.FAILURE_INVALID_ARGUMENT, null);
+                return null;
+            }
+            Rect region = transform.region;
+
+            // 区域解码器不能按密度缩放，只取规划中的采样率和Config，内存预算不足时缩小输出
+            int[] req = new int[2];
+            transform.getRequiredSize(req);
+            // 区域解码前不知道原图格式，按可能有透明度处理
+            DecodePlanner.Plan plan = DecodePlanner.getDefault().plan(region.width(), region.height(), req[0], req[1], true);
+            int reqMaxEdge = Math.max(req[0], req[1]);
+            int targetMaxEdge = Math.max(plan.targetWidth, plan.targetHeight);
+            if (targetMaxEdge < reqMaxEdge) {
+                float shrink = (float) targetMaxEdge / (float) reqMaxEdge;
+                transform.setOutputSize(Math.max(1, (int) (transform.outputWidth * shrink)),
+                        Math.max(1, (int) (transform.outputHeight * shrink)));
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = plan.sizePlan.sampleSize;
+            options.inPreferredConfig = plan.config;
+            stage = DecodeListener.STAGE_DECODE;
+            start = System.nanoTime();
+            regionBitmap = decoder.decodeRegion(region, options);
+            if (regionBitmap == null) {
+                notifyFailure(listener, stage, DecodeListener.FAILURE_UNSUPPORTED, null);
+                return null;
+            }
+            if (listener != null) {
+                listener.onStage(stage, System.nanoTime() - start, BitmapPool.getByteSize(regionBitmap), options.inSampleSize,
+                        regionBitmap.getConfig());
+            }
+            BitmapLedger ledger = BitmapLedger.getInstance();
+            ledger.track(regionBitmap, "BitmapUtils.decodeClipRegion");
+
+            // 采样后剩余的缩放与旋转合并为一次变换
+            stage = DecodeListener.STAGE_TRANSFORM;
+            start = System.nanoTime();
+            Matrix matrix = new Matrix();
+            transform.getTileMatrix(region.left, region.top, options.inSampleSize, matrix);
+            Bitmap bitmap;
+            if (matrix.isIdentity() && regionBitmap.getWidth() == transform.outputWidth
+                    && regionBitmap.getHeight() == transform.outputHeight) {
+                bitmap = regionBitmap;
+            } else {
+                Bitmap.Config config = regionBitmap.getConfig();
+                if (config == null || !transform.isRectilinear()) {
+                    config = Bitmap.Config.ARGB_8888;
+                }
+                bitmap = BitmapPool.getInstance().get(transform.outputWidth, transform.outputHeight, config);
+                new Canvas(bitmap).drawBitmap(regionBitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+                ledger.track(bitmap, "BitmapUtils.decodeClipRegion");
+                BitmapPool.getInstance().put(regionBitmap);
+            }
+            regionBitmap = null;
+            if (listener != null) {
+                listener.onStage(stage, System.nanoTime() - start, BitmapPool.getByteSize(bitmap), 1, bitmap.getConfig());
+            }
+            return bitmap;
+        } catch (Throwable t) {
+            if (t != null)
+                Log.e("exception", "BitmapUtil.decodeClipRegion(DecodeSource source, Matrix clipMatrix) Exception " + t.getMessage());
+            notifyFailure(listener, stage, getFailureCause(t), t);
+            return null;
+        } finally {
+            if (regionBitmap != null && !regionBitmap.isRecycled()) {
+                BitmapPool.getInstance().put(regionBitmap);
+            }
+            if (decoder != null) {
+                decoder.recycle();
+            }
+            source.close();
+        }
+    }
 
-    private static int calculateInSampleSize(float outWidth, float outHeight, float reqWidth, float reqHeight) {
-        int inSampleSize = 1;
-        if (reqHeight == 0 || reqWidth == 0) {
-            return inSampleSize;
+    /**
+     * 在Bitmap上原地调整色彩，RGB_565直接处理565像素，其余按行分条读写ARGB像素
+     */
+    private static void adjustColor(Bitmap bitmap, ColorAdjustment adjustment, DecodeListener listener) {
+        if (adjustment.isIdentity()) {
+            return;
+        }
+        long start = System.nanoTime();
+        adjustColor(bitmap, adjustment);
+        if (listener != null) {
+            listener.onStage(DecodeListener.STAGE_COLOR, System.nanoTime() - start, BitmapPool.getByteSize(bitmap), 1,
+                    bitmap.getConfig());
         }
-        if (outHeight > reqHeight || outWidth > reqWidth) {
-            final int heightRatio = Math.round(outHeight / reqHeight);
-            final int widthRatio = Math.round(outWidth / reqWidth);
-            inSampleSize = heightRatio < widthRatio ? heightRatio : widthRatio;
+    }
+
+    private static void adjustColor(final Bitmap bitmap, ColorAdjustment adjustment) {
+        final int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (bitmap.getConfig() == Bitmap.Config.RGB_565 && bitmap.getRowBytes() == width * 2) {
+            short[] pixels = new short[width * height];
+            ShortBuffer buffer = ShortBuffer.wrap(pixels);
+            bitmap.copyPixelsToBuffer(buffer);
+            adjustment.apply565(pixels, width, height);
+            buffer.rewind();
+            bitmap.copyPixelsFromBuffer(buffer);
+            return;
         }
+        adjustment.apply(new ColorAdjustment.PixelRows() {
+            @Override
+            public void read(int[] buffer, int y, int rows) {
+                bitmap.getPixels(buffer, 0, width, 0, y, width, rows);
+            }
 
-        final float totalPixels = outWidth * outHeight;
-        final float totalReqPixelsCap = reqWidth * reqHeight * 2;
+            @Override
+            public void write(int[] buffer, int y, int rows) {
+                bitmap.setPixels(buffer, 0, width, 0, y, width, rows);
+            }
+        }, width, height);
+    }
 
-        while (totalPixels / (inSampleSize * inSampleSize) > totalReqPixelsCap) {
-            inSampleSize++;
+    /**
+     * 按最长边不超过size等比缩小，不放大，结果写入out[0]、out[1]
+     */
+    static void fitSize(int width, int height, int size, int[] out) {
+        int maxEdge = Math.max(width, height);
+        if (maxEdge > size) {
+            out[0] = Math.max(1, (int) ((long) width * size / maxEdge));
+            out[1] = Math.max(1, (int) ((long) height * size / maxEdge));
+        } else {
+            out[0] = width;
+            out[1] = height;
         }
+    }
 
-        return inSampleSize;
+    private static void notifyFailure(DecodeListener listener, int stage, int cause, Throwable t) {
+        if (listener != null) {
+            listener.onFailure(stage, cause, t);
+        }
     }
 
-    private static Matrix getMatrix(int orientation) {
-        Matrix matrix = new Matrix();
-        if (orientation == 90 || orientation == 180 || orientation == 270) {
-            matrix.postRotate(orientation);
+    private static int getFailureCause(Throwable t) {
+        if (t instanceof OutOfMemoryError) {
+            return DecodeListener.FAILURE_OUT_OF_MEMORY;
+        } else if (t instanceof IOException) {
+            return DecodeListener.FAILURE_IO;
+        } else if (t instanceof IllegalArgumentException) {
+            return DecodeListener.FAILURE_INVALID_ARGUMENT;
         }
-        return matrix;
+        return DecodeListener.FAILURE_UNKNOWN;
     }
 
-    private static Bitmap compressImage(float size, int orientation, boolean scale, boolean isLow, IBitMapReaderCallBack bitMapReaderCallBack) {
-        Bitmap bmp = null;
+    /**
+     * @param applyOrientation
+     *            EXIF方向是否作用于像素，否则随结果返回
+     * @param embeddedThumbnail
+     *            是否尝试从EXIF内嵌缩略图解码
+     * @param planner
+     *            按内存预算决定采样率、Config和目标大小
+     */
+    private static DecodeResult compressImage(float size, boolean applyOrientation, boolean scale,
+            boolean embeddedThumbnail, DecodePlanner planner, DecodeSource source) {
+        DecodeListener listener = sDecodeListener;
+        // 失败时所在阶段，解码和变换阶段由decodeScaled()更新
+        int[] stage = { DecodeListener.STAGE_BOUNDS };
+        long start = System.nanoTime();
         try {
             BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            bmp = bitMapReaderCallBack.getBitMap(options);
+            source.decodeBounds(options);
+            int sourceWidth = options.outWidth;
+            int sourceHeight = options.outHeight;
+            int orientation = applyOrientation ? source.getOrientation() : 0;
+            int remainOrientation = applyOrientation ? 0 : source.getOrientation();
 
             float actualHeight = options.outHeight;
             float actualWidth = options.outWidth;
@@ -163,8 +469,13 @@ public class BitmapUtils {
             float destWidth = size;
             // 解析过程出错，options.outHeight = -1
             if (actualHeight <= 0 || actualWidth <= 0 || size <= 0) {
+                notifyFailure(listener, stage[0], size <= 0 ? DecodeListener.FAILURE_INVALID_ARGUMENT
+                        : DecodeListener.FAILURE_UNSUPPORTED, null);
                 return null;
             }
+            if (listener != null) {
+                listener.onStage(stage[0], System.nanoTime() - start, 0, 1, null);
+            }
             if (scale) {
                 if (actualHeight > actualWidth) {
                     destWidth = (actualWidth * size) / actualHeight;
@@ -175,74 +486,223 @@ public class BitmapUtils {
                 }
             }
 
-            options.inSampleSize = calculateInSampleSize((float) options.outWidth, (float) options.outHeight, destWidth, destHeight);
-            options.inJustDecodeBounds = false;
-            options.inPurgeable = true;
-            options.inInputShareable = true;
+            if (embeddedThumbnail) {
+                try {
+                    DecodeResult result = decodeExifThumbnail(source, (int) destWidth, (int) destHeight, scale,
+                            orientation, remainOrientation, sourceWidth, sourceHeight, planner, listener, stage);
+                    if (result != null) {
+                        return result;
+                    }
+                } catch (OutOfMemoryError e) {
+                    // 缩略图解码失败不影响原图，释放内存后按降级步骤解码原图
+                    Log.w("BitmapUtils", "decode exif thumbnail out of memory");
+                    releaseMemory();
+                }
+            }
+
+            // 2的幂采样在DCT域完成，剩余缩放由解码器按密度完成；超出预算时降低Config或目标大小
+            DecodePlanner.Plan basePlan = planner.plan(options.outWidth, options.outHeight, (int) destWidth, (int) destHeight,
+                    DecodePlanner.mayHaveAlpha(options.outMimeType));
+            int retryStep = DecodePlanner.RETRY_NONE;
+            while (true) {
+                DecodePlanner.Plan decodePlan = planner.degrade(basePlan, sourceWidth, sourceHeight, retryStep);
+                try {
+                    return decodeScaled(source, decodePlan, scale, orientation, remainOrientation, sourceWidth, sourceHeight,
+                            listener, stage);
+                } catch (OutOfMemoryError e) {
+                    // 预算估计不足：释放复用池和缓存后逐步降级重试
+                    if (retryStep == DecodePlanner.RETRY_SMALLER_TARGET || !source.isRepeatable()) {
+                        throw e;
+                    }
+                    retryStep++;
+                    Log.w("BitmapUtils", "compressImage out of memory with " + decodePlan + ", retry step " + retryStep);
+                    releaseMemory();
+                }
+            }
+        } catch (Throwable t) {
+            if (t != null)
+                Log.e("exception", "BitmapUtil.compressImage(DecodeSource source) Exception " + t.getMessage());
+            notifyFailure(listener, stage[0], getFailureCause(t), t);
+            return null;
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * EXIF内嵌缩略图不小于目标大小且宽高比与原图一致时，从缩略图解码，不解码原图
+     * 
+     * @return 没有可用的缩略图或解码失败时为null，由调用方解码原图
+     */
+    private static DecodeResult decodeExifThumbnail(DecodeSource source, int reqWidth, int reqHeight, boolean scale,
+            int orientation, int remainOrientation, int sourceWidth, int sourceHeight, DecodePlanner planner,
+            DecodeListener listener, int[] stage) {
+        DecodeSource thumbnail = null;
+        try {
+            byte[] data = source.readExifThumbnail();
+            if (data == null) {
+                return null;
+            }
+            thumbnail = DecodeSource.fromBytes(data);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            if (!thumbnail.decodeBounds(options) || options.outWidth < reqWidth || options.outHeight < reqHeight) {
+                return null;
+            }
+            // 部分相机的缩略图固定为4:3并带黑边，宽高比不一致时不使用
+            float sourceAspect = (float) sourceWidth / sourceHeight;
+            float aspect = (float) options.outWidth / options.outHeight;
+            if (Math.abs(aspect - sourceAspect) > sourceAspect * EXIF_THUMBNAIL_ASPECT_TOLERANCE) {
+                return null;
+            }
+            DecodePlanner.Plan plan = planner.plan(options.outWidth, options.outHeight, reqWidth, reqHeight,
+                    DecodePlanner.mayHaveAlpha(options.outMimeType));
+            return decodeScaled(thumbnail, plan, scale, orientation, remainOrientation, sourceWidth, sourceHeight,
+                    listener, stage);
+        } catch (IOException e) {
+            Log.w("BitmapUtils", "decode exif thumbnail failed " + e.getMessage());
+            return null;
+        } finally {
+            if (thumbnail != null) {
+                thumbnail.close();
+            }
+        }
+    }
+
+    /**
+     * 按规划解码一次并完成缩放、截取、旋转和色彩调整，中间结果在返回前归还复用池
+     * 
+     * @param stage
+     *            写入当前阶段，供失败时上报
+     * @throws OutOfMemoryError
+     *             由调用方降级重试
+     */
+    private static DecodeResult decodeScaled(DecodeSource source, DecodePlanner.Plan decodePlan, boolean scale,
+            int orientation, int remainOrientation, int sourceWidth, int sourceHeight, DecodeListener listener, int[] stage)
+            throws IOException {
+        Bitmap bmp = null;
+        Bitmap resultBitmap = null;
+        try {
+            SizePlanner.Plan plan = decodePlan.sizePlan;
+            Bitmap.Config config = decodePlan.config;
+            int targetWidth = decodePlan.targetWidth;
+            int targetHeight = decodePlan.targetHeight;
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = plan.sampleSize;
+            options.inPreferredConfig = config;
+            if (plan.isScaled()) {
+                options.inScaled = true;
+                options.inDensity = plan.density;
+                options.inTargetDensity = plan.targetDensity;
+            }
+            stage[0] = DecodeListener.STAGE_DECODE;
+            long start = System.nanoTime();
             options.inTempStorage = new byte[16 * 1024];
+            BitmapPool pool = BitmapPool.getInstance();
+            pool.setInBitmap(options, plan.outWidth, plan.outHeight);
+            // 复用的Bitmap不能是purgeable
+            options.inPurgeable = options.inBitmap == null;
 
-            Bitmap scaledBitmap = null;
+            try {
+                bmp = source.decode(options);
+            } catch (IllegalArgumentException e) {
+                // 复用的Bitmap不满足解码要求，放弃复用重新解码
+                if (options.inBitmap == null)
+                    throw e;
+                pool.put(options.inBitmap);
+                options.inBitmap = null;
+                bmp = source.decode(options);
+            }
+            if (bmp == null) {
+                notifyFailure(listener, stage[0], DecodeListener.FAILURE_UNSUPPORTED, null);
+                return null;
+            }
+            if (listener != null) {
+                listener.onStage(stage[0], System.nanoTime() - start, BitmapPool.getByteSize(bmp), options.inSampleSize,
+                        bmp.getConfig());
+            }
+            BitmapLedger ledger = BitmapLedger.getInstance();
+            ledger.track(bmp, "BitmapUtils.compressImage");
+            // 按密度解码后Bitmap带有目标密度，恢复为屏幕密度避免显示时再次缩放
+            bmp.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+            if (scale && Math.abs(bmp.getWidth() - targetWidth) <= 1 && Math.abs(bmp.getHeight() - targetHeight) <= 1) {
+                // 解码器已缩放到目标大小，忽略取整误差，不再重新采样
+                targetWidth = bmp.getWidth();
+                targetHeight = bmp.getHeight();
+            }
 
-            bmp = bitMapReaderCallBack.getBitMap(options);
-            if (bmp == null)
-                return bmp;
-            scaledBitmap = Bitmap.createBitmap((int) destWidth, (int) destHeight, isLow ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+            boolean rotate = orientation == 90 || orientation == 180 || orientation == 270;
+            boolean swap = orientation == 90 || orientation == 270;
+            int finalWidth = swap ? targetHeight : targetWidth;
+            int finalHeight = swap ? targetWidth : targetHeight;
 
-            float ratioX = destWidth / (float) options.outWidth;
-            float ratioY = destHeight / (float) options.outHeight;
-            float middleX = destWidth / 2.0f;
-            float middleY = destHeight / 2.0f;
+            float ratioX = targetWidth / (float) bmp.getWidth();
+            float ratioY = targetHeight / (float) bmp.getHeight();
             if (!scale) {
-                // 计算非缩放下的放大倍数及放大后中心点
+                // 非缩放模式取较大倍数，居中截取
                 ratioX = ratioX > ratioY ? ratioX : ratioY;
                 ratioY = ratioX;
-                middleX = (((float) options.outWidth) * ratioX) / 2.0f;
-                middleY = (((float) options.outHeight) * ratioY) / 2.0f;
             }
 
-            Matrix scaleMatrix = new Matrix();
-            scaleMatrix.setScale(ratioX, ratioY, middleX, middleY);
-
-            ColorMatrix mSaturationMatrix = new ColorMatrix();
-            mSaturationMatrix.reset(); // 设为默认值
-            mSaturationMatrix.setSaturation(1.3f);
-
-            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
-            paint.setColorFilter(new ColorMatrixColorFilter(mSaturationMatrix));
+            // 缩放、居中截取、旋转合并为一次变换：原图中心 -> 缩放 -> 旋转 -> 目标中心
+            stage[0] = DecodeListener.STAGE_TRANSFORM;
+            start = System.nanoTime();
+            Matrix matrix = new Matrix();
+            matrix.setTranslate(-bmp.getWidth() / 2.0f, -bmp.getHeight() / 2.0f);
+            matrix.postScale(ratioX, ratioY);
+            if (rotate) {
+                matrix.postRotate(orientation);
+            }
+            matrix.postTranslate(finalWidth / 2.0f, finalHeight / 2.0f);
 
-            Canvas canvas = new Canvas(scaledBitmap);
-            canvas.setMatrix(scaleMatrix);
+            ColorAdjustment adjustment = sColorAdjustment;
+            if (bmp.getConfig() == config && matrix.isIdentity() && (adjustment.isIdentity() || bmp.isMutable())) {
+                // 解码结果已是最终大小，无需再绘制，直接调整色彩
+                stage[0] = DecodeListener.STAGE_COLOR;
+                adjustColor(bmp, adjustment, listener);
+                Bitmap result = bmp;
+                bmp = null;
+                return new DecodeResult(result, remainOrientation, sourceWidth, sourceHeight, decodePlan);
+            }
 
-            float x = middleX - ((float) bmp.getWidth()) / 2.0f;
-            float y = middleY - ((float) bmp.getHeight()) / 2.0f;
-            if (!scale) {
-                // 计算截取图片中心缩放中心坐标
-                if (bmp.getWidth() > bmp.getHeight()) {
-                    x = x - ((bmp.getWidth() - bmp.getHeight()) / 2.0f);
-                } else {
-                    y = y - ((bmp.getHeight() - bmp.getWidth()) / 2.0f);
-                }
+            resultBitmap = pool.getDirty(finalWidth, finalHeight, config);
+            if (resultBitmap == null) {
+                resultBitmap = Bitmap.createBitmap(finalWidth, finalHeight, config);
+                ledger.track(resultBitmap, "BitmapUtils.compressImage");
+            } else if (bmp.hasAlpha()) {
+                // 原图完整覆盖目标区域，只有带透明度时需要清空
+                resultBitmap.eraseColor(0);
+            }
+            Canvas canvas = new Canvas(resultBitmap);
+            canvas.drawBitmap(bmp, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+            if (listener != null) {
+                listener.onStage(stage[0], System.nanoTime() - start, BitmapPool.getByteSize(resultBitmap), 1, config);
             }
-            canvas.drawBitmap(bmp, x, y, paint);
-            Matrix matrix = getMatrix(orientation);
-            scaledBitmap = Bitmap.createBitmap(scaledBitmap, 0, 0, scaledBitmap.getWidth(), scaledBitmap.getHeight(), matrix, true);
+            stage[0] = DecodeListener.STAGE_COLOR;
+            adjustColor(resultBitmap, adjustment, listener);
 
-            return scaledBitmap;
-        } catch (Throwable t) {
-            if (t != null)
-                Log.e("exception", "BitmapUtil.decodeBitmapFromPath(String path, Activity activity) Exception " + t.getMessage());
-            return null;
+            Bitmap result = resultBitmap;
+            resultBitmap = null;
+            return new DecodeResult(result, remainOrientation, sourceWidth, sourceHeight, decodePlan);
         } finally {
+            // 中间结果立即归还复用池，不依赖GC；失败时未返回的结果同样归还
             if (bmp != null && !bmp.isRecycled()) {
-                bmp.recycle();
-                bmp = null;
-                System.gc();
+                BitmapPool.getInstance().put(bmp);
+            }
+            if (resultBitmap != null && !resultBitmap.isRecycled()) {
+                BitmapPool.getInstance().put(resultBitmap);
             }
         }
     }
 
-    private interface IBitMapReaderCallBack {
-        public Bitmap getBitMap(BitmapFactory.Options options);
+    /**
+     * 释放复用池和内存缓存中的Bitmap，内存不足重试前调用
+     */
+    private static void releaseMemory() {
+        BitmapPool.getInstance().clear();
+        ThumbnailCache cache = ThumbnailCache.getInstance();
+        if (cache != null) {
+            cache.evictMemory();
+        }
     }
 
 }
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+/**
+ * 截图框相关的几何计算，不依赖Android，可在普通JVM上运行和测试。
+ * <p>
+ * 矩阵为Matrix.getValues()得到的9个值，矩形为按{@link #LEFT}、{@link #TOP}、{@link #RIGHT}、
+ * {@link #BOTTOM}排列的数组。结果写入调用者传入的数组，不创建对象。
+ */
+public final class ClipGeometry {
+    public static final int LEFT = 0;
+    public static final int TOP = 1;
+    public static final int RIGHT = 2;
+    public static final int BOTTOM = 3;
+
+    private static final int MSCALE_X = 0;
+    private static final int MSKEW_X = 1;
+    private static final int MTRANS_X = 2;
+    private static final int MSKEW_Y = 3;
+    private static final int MSCALE_Y = 4;
+    private static final int MTRANS_Y = 5;
+    private static final int MPERSP_0 = 6;
+    private static final int MPERSP_1 = 7;
+    private static final int MPERSP_2 = 8;
+
+    /** 逆变换后的浮点误差，单位为图片像素 */
+    private static final float EPSILON = 0.01f;
+
+    private ClipGeometry() {
+    }
+
+    /**
+     * 图片经矩阵变换后在屏幕上的可视区域，即四个角的外接矩形，屏幕左上角为top，右下角为bottom
+     *
+     * @param values
+     *            矩阵
+     * @param width
+     *            图片宽
+     * @param height
+     *            图片高
+     * @param out
+     */
+    public static void visibleRect(float[] values, int width, int height, float[] out) {
+        width = (int) (width * values[MPERSP_2]);
+        height = (int) (height * values[MPERSP_2]);
+        int left = (int) values[MTRANS_X];
+        int top = (int) values[MTRANS_Y];
+        // 右上、左下、右下三个角，直角旋转时其中两个与左上角或右下角重合
+        int x1 = (int) (left + width * values[MSCALE_X]);
+        int y1 = (int) (top + width * values[MSKEW_Y]);
+        int x2 = (int) (left + height * values[MSKEW_X]);
+        int y2 = (int) (top + height * values[MSCALE_Y]);
+        int x3 = (int) (left + width * values[MSCALE_X] + height * values[MSKEW_X]);
+        int y3 = (int) (top + width * values[MSKEW_Y] + height * values[MSCALE_Y]);
+        out[LEFT] = Math.min(Math.min(left, x1), Math.min(x2, x3));
+        out[TOP] = Math.min(Math.min(top, y1), Math.min(y2, y3));
+        out[RIGHT] = Math.max(Math.max(left, x1), Math.max(x2, x3));
+        out[BOTTOM] = Math.max(Math.max(top, y1), Math.max(y2, y3));
+    }
+
+    /**
+     * 仿射矩阵求逆，忽略透视分量
+     *
+     * @param values
+     * @param out
+     *            长度为9，可以与values相同
+     * @return 不可逆时为false，out不变
+     */
+    public static boolean invert(float[] values, float[] out) {
+        float a = values[MSCALE_X];
+        float b = values[MSKEW_X];
+        float c = values[MSKEW_Y];
+        float d = values[MSCALE_Y];
+        float tx = values[MTRANS_X];
+        float ty = values[MTRANS_Y];
+        float det = a * d - b * c;
+        if (det == 0 || Float.isNaN(det) || Float.isInfinite(det)) {
+            return false;
+        }
+        float invDet = 1 / det;
+        out[MSCALE_X] = d * invDet;
+        out[MSKEW_X] = -b * invDet;
+        out[MTRANS_X] = (b * ty - d * tx) * invDet;
+        out[MSKEW_Y] = -c * invDet;
+        out[MSCALE_Y] = a * invDet;
+        out[MTRANS_Y] = (c * tx - a * ty) * invDet;
+        out[MPERSP_0] = 0;
+        out[MPERSP_1] = 0;
+        out[MPERSP_2] = 1;
+        return true;
+    }
+
+    /**
+     * 矩形经仿射矩阵变换后四个角的外接矩形，与Matrix.mapRect(RectF)一致
+     *
+     * @param values
+     * @param rect
+     * @param out
+     *            可以与rect相同
+     */
+    public static void mapRect(float[] values, float[] rect, float[] out) {
+        float a = values[MSCALE_X];
+        float b = values[MSKEW_X];
+        float c = values[MSKEW_Y];
+        float d = values[MSCALE_Y];
+        float left = rect[LEFT];
+        float top = rect[TOP];
+        float right = rect[RIGHT];
+        float bottom = rect[BOTTOM];
+        float x0 = a * left + b * top;
+        float y0 = c * left + d * top;
+        float x1 = a * right + b * top;
+        float y1 = c * right + d * top;
+        float x2 = a * left + b * bottom;
+        float y2 = c * left + d * bottom;
+        float x3 = a * right + b * bottom;
+        float y3 = c * right + d * bottom;
+        out[LEFT] = Math.min(Math.min(x0, x1), Math.min(x2, x3)) + values[MTRANS_X];
+        out[TOP] = Math.min(Math.min(y0, y1), Math.min(y2, y3)) + values[MTRANS_Y];
+        out[RIGHT] = Math.max(Math.max(x0, x1), Math.max(x2, x3)) + values[MTRANS_X];
+        out[BOTTOM] = Math.max(Math.max(y0, y1), Math.max(y2, y3)) + values[MTRANS_Y];
+    }
+
+    /**
+     * 图片是否完全覆盖截图框：截图框四个角经逆矩阵变换后都在图片内。支持任意旋转角度
+     *
+     * @param values
+     *            矩阵
+     * @param width
+     *            图片宽
+     * @param height
+     *            图片高
+     * @param clipRect
+     *            截图框
+     * @param inverse
+     *            长度为9的临时数组
+     * @return
+     */
+    public static boolean covers(float[] values, int width, int height, float[] clipRect, float[] inverse) {
+        if (!invert(values, inverse)) {
+            return false;
+        }
+        return isMappedInside(inverse, clipRect[LEFT], clipRect[TOP], width, height)
+                && isMappedInside(inverse, clipRect[RIGHT], clipRect[TOP], width, height)
+                && isMappedInside(inverse, clipRect[LEFT], clipRect[BOTTOM], width, height)
+                && isMappedInside(inverse, clipRect[RIGHT], clipRect[BOTTOM], width, height);
+    }
+
+    private static boolean isMappedInside(float[] inverse, float x, float y, int width, int height) {
+        float mappedX = inverse[MSCALE_X] * x + inverse[MSKEW_X] * y + inverse[MTRANS_X];
+        float mappedY = inverse[MSKEW_Y] * x + inverse[MSCALE_Y] * y + inverse[MTRANS_Y];
+        return mappedX >= -EPSILON && mappedY >= -EPSILON && mappedX <= width + EPSILON
+                && mappedY <= height + EPSILON;
+    }
+
+    /**
+     * 截图框对应的图片区域：图片可视区域与截图框的交叉区域经逆矩阵变换后的外接矩形，限制在图片内。
+     * 直角旋转时与原先按最近、最远角推算的结果一致，其他角度时为旋转后截取区域的外接矩形
+     *
+     * @param values
+     *            矩阵
+     * @param width
+     *            图片宽
+     * @param height
+     *            图片高
+     * @param clipRect
+     *            截图框
+     * @param inverse
+     *            长度为9的临时数组
+     * @param out
+     * @return 没有交叉或矩阵不可逆时为false
+     */
+    public static boolean cropRegion(float[] values, int width, int height, float[] clipRect, float[] inverse,
+            float[] out) {
+        visibleRect(values, width, height, out);
+        if (!intersect(out, clipRect) || !invert(values, inverse)) {
+            return false;
+        }
+        mapRect(inverse, out, out);
+        out[LEFT] = Math.max(0, out[LEFT]);
+        out[TOP] = Math.max(0, out[TOP]);
+        out[RIGHT] = Math.min(width, out[RIGHT]);
+        out[BOTTOM] = Math.min(height, out[BOTTOM]);
+        return out[LEFT] < out[RIGHT] && out[TOP] < out[BOTTOM];
+    }
+
+    /**
+     * 凸四边形在竖直条带left &lt;= x &lt;= right内的上下范围，用于只解码旋转后的输出条真正覆盖的原图块
+     *
+     * @param quad
+     *            按顺序排列的四个顶点x0, y0, x1, y1, ...，与Matrix.mapPoints()的结果相同
+     * @param left
+     * @param right
+     * @param out
+     *            上、下边界
+     * @return 与条带不相交时为false
+     */
+    public static boolean slabExtent(float[] quad, float left, float right, float[] out) {
+        float top = Float.MAX_VALUE;
+        float bottom = -Float.MAX_VALUE;
+        for (int i = 0; i < 8; i += 2) {
+            float x0 = quad[i];
+            float y0 = quad[i + 1];
+            float dx = quad[(i + 2) % 8] - x0;
+            float dy = quad[(i + 3) % 8] - y0;
+            // 边裁剪到条带内的参数范围
+            float from = 0;
+            float to = 1;
+            if (dx == 0) {
+                if (x0 < left || x0 > right) {
+                    continue;
+                }
+            } else {
+                float t0 = (left - x0) / dx;
+                float t1 = (right - x0) / dx;
+                from = Math.max(from, Math.min(t0, t1));
+                to = Math.min(to, Math.max(t0, t1));
+                if (from > to) {
+                    continue;
+                }
+            }
+            float yFrom = y0 + dy * from;
+            float yTo = y0 + dy * to;
+            top = Math.min(top, Math.min(yFrom, yTo));
+            bottom = Math.max(bottom, Math.max(yFrom, yTo));
+        }
+        if (top > bottom) {
+            return false;
+        }
+        out[0] = top;
+        out[1] = bottom;
+        return true;
+    }
+
+    /**
+     * 与RectF.intersect(RectF)一致，有交叉时将rect改为交叉区域
+     *
+     * @return 是否有交叉
+     */
+    public static boolean intersect(float[] rect, float[] other) {
+        if (rect[LEFT] < other[RIGHT] && other[LEFT] < rect[RIGHT] && rect[TOP] < other[BOTTOM]
+                && other[TOP] < rect[BOTTOM]) {
+            if (rect[LEFT] < other[LEFT]) {
+                rect[LEFT] = other[LEFT];
+            }
+            if (rect[TOP] < other[TOP]) {
+                rect[TOP] = other[TOP];
+            }
+            if (rect[RIGHT] > other[RIGHT]) {
+                rect[RIGHT] = other[RIGHT];
+            }
+            if (rect[BOTTOM] > other[BOTTOM]) {
+                rect[BOTTOM] = other[BOTTOM];
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 平移回弹修正：按交叉区域露出截图框的位置计算回弹后的平移量
+     *
+     * @param insert
+     *            回弹前图片可视区域与截图框的交叉区域
+     * @param snapRect
+     *            截图框
+     * @param fromX
+     *            回弹前的平移x
+     * @param fromY
+     *            回弹前的平移y
+     * @param toX
+     *            无法修正时使用的平移x
+     * @param toY
+     *            无法修正时使用的平移y
+     * @param out
+     *            结果平移x、y
+     */
+    public static void fixTranslation(float[] insert, float[] snapRect, float fromX, float fromY, float toX, float toY,
+            float[] out) {
+        float left = insert[LEFT];
+        float top = insert[TOP];
+        float right = insert[RIGHT];
+        float bottom = insert[BOTTOM];
+        float snapLeft = snapRect[LEFT];
+        float snapTop = snapRect[TOP];
+        float snapRight = snapRect[RIGHT];
+        float snapBottom = snapRect[BOTTOM];
+        boolean hasInsert = (right - left) * (bottom - top) > 0;
+
+        int fromLeft = (int) fromX;
+        int fromTop = (int) fromY;
+        int resultLeft = fromLeft;
+        int resultTop = fromTop;
+
+        if (isInside(snapRect, left, top)) {
+            resultLeft += snapLeft - left;
+            resultTop += snapTop - top;
+        } else if (isInside(snapRect, right, top)) {
+            resultLeft += snapRight - right;
+            resultTop += snapTop - top;
+        } else if (isInside(snapRect, left, bottom)) {
+            resultLeft += snapLeft - left;
+            resultTop += snapBottom - bottom;
+        } else if (isInside(snapRect, right, bottom)) {
+            resultLeft += snapRight - right;
+            resultTop += snapBottom - bottom;
+        } else if (left > snapLeft && left <= snapRight && top <= snapTop && bottom >= snapBottom) {
+            resultLeft += snapLeft - left;
+        } else if (hasInsert && right < snapRight && right >= snapLeft && top <= snapTop && bottom >= snapBottom) {
+            resultLeft += snapRight - right;
+        } else if (hasInsert && top > snapTop && top <= snapBottom && left <= snapLeft && right >= snapRight) {
+            resultTop += snapTop - top;
+        } else if (hasInsert && bottom < snapBottom && bottom >= snapTop && left <= snapLeft && right >= snapRight) {
+            resultTop += snapBottom - bottom;
+        } else {
+            resultLeft = (int) toX;
+            resultTop = (int) toY;
+        }
+        out[0] = resultLeft;
+        out[1] = resultTop;
+    }
+
+    private static boolean isInside(float[] rect, float x, float y) {
+        return x < rect[RIGHT] && x > rect[LEFT] && y < rect[BOTTOM] && y > rect[TOP];
+    }
+}
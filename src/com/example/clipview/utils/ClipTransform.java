@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * 截取区域从预览图到原图、再到输出图片的映射。
+ * <p>
+ * 截取矩阵把预览图坐标变换到截取区域坐标，求逆后将截取区域映射回原图，
+ * 得到需要解码的原图区域（外接矩形）和原图到输出的矩阵，支持任意旋转角度。
+ */
+final class ClipTransform {
+    /** 需要解码的原图区域 */
+    final Rect region = new Rect();
+    /** 原图坐标到输出坐标 */
+    final Matrix sourceToOutput = new Matrix();
+    int outputWidth;
+    int outputHeight;
+
+    private final Matrix mSourceToClip = new Matrix();
+    private final Matrix mOutputToSource = new Matrix();
+    private final float[] mValues = new float[9];
+    private final float[] mInverse = new float[9];
+    private final float[] mRect = new float[4];
+    private int mClipWidth;
+    private int mClipHeight;
+    /** 原图一个像素在截取区域中的边长 */
+    private float mPixelSize;
+
+    /**
+     * @param clipMatrix
+     *            预览图坐标到截取区域坐标
+     * @param clipWidth
+     *            截取区域宽
+     * @param clipHeight
+     *            截取区域高
+     * @param previewWidth
+     * @param previewHeight
+     * @param sourceWidth
+     * @param sourceHeight
+     * @param size
+     *            输出最长边，不超过原图分辨率
+     * @return 截取区域不在原图内时为false
+     */
+    boolean set(Matrix clipMatrix, int clipWidth, int clipHeight, int previewWidth, int previewHeight,
+            int sourceWidth, int sourceHeight, int size) {
+        if (clipWidth <= 0 || clipHeight <= 0 || previewWidth <= 0 || previewHeight <= 0 || size <= 0) {
+            return false;
+        }
+        mSourceToClip.setScale((float) previewWidth / (float) sourceWidth, (float) previewHeight
+                / (float) sourceHeight);
+        mSourceToClip.postConcat(clipMatrix);
+        mSourceToClip.getValues(mValues);
+        if (!ClipGeometry.invert(mValues, mInverse)) {
+            return false;
+        }
+        mRect[ClipGeometry.LEFT] = 0;
+        mRect[ClipGeometry.TOP] = 0;
+        mRect[ClipGeometry.RIGHT] = clipWidth;
+        mRect[ClipGeometry.BOTTOM] = clipHeight;
+        ClipGeometry.mapRect(mInverse, mRect, mRect);
+        region.set((int) Math.floor(mRect[ClipGeometry.LEFT]), (int) Math.floor(mRect[ClipGeometry.TOP]),
+                (int) Math.ceil(mRect[ClipGeometry.RIGHT]), (int) Math.ceil(mRect[ClipGeometry.BOTTOM]));
+        if (!region.intersect(0, 0, sourceWidth, sourceHeight) || region.isEmpty()) {
+            return false;
+        }
+        mClipWidth = clipWidth;
+        mClipHeight = clipHeight;
+        mPixelSize = mSourceToClip.mapRadius(1);
+        int[] fit = new int[2];
+        BitmapUtils.fitSize(Math.max(1, Math.round(clipWidth / mPixelSize)),
+                Math.max(1, Math.round(clipHeight / mPixelSize)), size, fit);
+        setOutputSize(fit[0], fit[1]);
+        return true;
+    }
+
+    /**
+     * 修改输出大小，用于内存不足时缩小
+     */
+    void setOutputSize(int width, int height) {
+        outputWidth = width;
+        outputHeight = height;
+        sourceToOutput.set(mSourceToClip);
+        sourceToOutput.postScale((float) width / (float) mClipWidth, (float) height / (float) mClipHeight);
+        sourceToOutput.invert(mOutputToSource);
+    }
+
+    /**
+     * @return 输出一个像素对应的原图像素数，不小于1
+     */
+    float getSourcePixelsPerOutput() {
+        return mClipWidth / mPixelSize / outputWidth;
+    }
+
+    /**
+     * 解码区域按输出大小需要的宽高，用于选择采样率
+     *
+     * @param out
+     */
+    void getRequiredSize(int[] out) {
+        float ratio = getSourcePixelsPerOutput();
+        out[0] = Math.max(1, Math.round(region.width() / ratio));
+        out[1] = Math.max(1, Math.round(region.height() / ratio));
+    }
+
+    /**
+     * 旋转角度是否为直角，否则输出的四角可能在原图外，需要透明度
+     */
+    boolean isRectilinear() {
+        return sourceToOutput.rectStaysRect();
+    }
+
+    /**
+     * 采样解码块到输出的矩阵
+     *
+     * @param left
+     *            解码块在原图中的左边
+     * @param top
+     *            解码块在原图中的上边
+     * @param sampleSize
+     * @param out
+     */
+    void getTileMatrix(int left, int top, int sampleSize, Matrix out) {
+        out.setScale(sampleSize, sampleSize);
+        out.postTranslate(left, top);
+        out.postConcat(sourceToOutput);
+    }
+
+    /**
+     * 输出坐标的点对应的原图坐标。任意角度旋转时输出矩形对应原图上的四边形，而不是其外接矩形
+     *
+     * @param points
+     *            x0, y0, x1, y1, ...，结果写回
+     */
+    void mapToSource(float[] points) {
+        mOutputToSource.mapPoints(points);
+    }
+
+    /**
+     * 直角旋转的截取区域对应的截取矩阵，与旋转后平移到原点的Bitmap.createBitmap()相同
+     *
+     * @param clipRect
+     *            预览图上的截取区域
+     * @param degrees
+     *            0、90、180、270
+     * @param out
+     * @param size
+     *            截取区域宽高
+     */
+    static void rotateClipMatrix(Rect clipRect, int degrees, Matrix out, int[] size) {
+        out.setTranslate(-clipRect.left, -clipRect.top);
+        out.postRotate(degrees);
+        RectF bounds = new RectF(clipRect);
+        out.mapRect(bounds);
+        out.postTranslate(-bounds.left, -bounds.top);
+        size[0] = Math.round(bounds.width());
+        size[1] = Math.round(bounds.height());
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 色彩调整，不依赖Android，可在普通JVM上运行和测试。
+ * <p>
+ * 饱和度、亮度、对比度合并为一个3x3矩阵加偏移，矩阵的每个系数预先按通道取值计算成查找表，
+ * 每个像素只做查表和加法。大图按行分条在线程池中并行处理。
+ */
+public final class ColorAdjustment {
+    /** 不调整 */
+    public static final ColorAdjustment IDENTITY = new ColorAdjustment(1, 0, 1);
+
+    /** 每条的行数 */
+    private static final int STRIPE_ROWS = 32;
+    /** 少于该像素数时不并行 */
+    private static final int PARALLEL_THRESHOLD = 256 * 256;
+    private static final int FIXED_SHIFT = 16;
+    private static final int FIXED_HALF = 1 << (FIXED_SHIFT - 1);
+    private static final int THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService sExecutor;
+
+    private final float mSaturation;
+    private final float mBrightness;
+    private final float mContrast;
+    private final boolean mIdentity;
+
+    /** ARGB_8888查找表，[输出通道*3+输入通道][0..255] */
+    private final int[][] mTables = new int[9][];
+    /** RGB_565查找表，输入为5/6位通道值 */
+    private final int[][] mTables565 = new int[9][];
+    /** 三个通道相同的定点数偏移，含四舍五入 */
+    private final int mOffset;
+
+    /**
+     * 接收并写回一组像素行
+     */
+    public interface PixelRows {
+        /**
+         * 读取[y, y + rows)行到buffer
+         */
+        void read(int[] buffer, int y, int rows);
+
+        /**
+         * 将buffer写回[y, y + rows)行
+         */
+        void write(int[] buffer, int y, int rows);
+    }
+
+    /**
+     * @param saturation
+     *            饱和度，1为不调整
+     * @param brightness
+     *            亮度偏移，-255~255，0为不调整
+     * @param contrast
+     *            对比度，以128为中心缩放，1为不调整
+     */
+    public ColorAdjustment(float saturation, float brightness, float contrast) {
+        mSaturation = saturation;
+        mBrightness = brightness;
+        mContrast = contrast;
+        mIdentity = saturation == 1 && brightness == 0 && contrast == 1;
+
+        // 与ColorMatrix.setSaturation()相同的亮度权重
+        float invSat = 1 - saturation;
+        float r = 0.213f * invSat;
+        float g = 0.715f * invSat;
+        float b = 0.072f * invSat;
+        float[] matrix = {
+                r + saturation, g, b,
+                r, g + saturation, b,
+                r, g, b + saturation };
+        // 亮度、对比度：out = contrast * (sat(in) + brightness - 128) + 128
+        float offset = contrast * (brightness - 128) + 128;
+        for (int i = 0; i < 9; i++) {
+            float coefficient = matrix[i] * contrast;
+            int bits = (i % 3) == 1 ? 6 : 5;
+            mTables[i] = buildTable(coefficient, 256, 8);
+            mTables565[i] = buildTable(coefficient, 1 << bits, bits);
+        }
+        mOffset = Math.round(offset * (1 << FIXED_SHIFT)) + FIXED_HALF;
+    }
+
+    /**
+     * 按输入值生成定点数查找表，位数不足8位的通道先扩展到8位
+     */
+    private static int[] buildTable(float coefficient, int size, int bits) {
+        int[] table = new int[size];
+        for (int v = 0; v < size; v++) {
+            int value = bits == 8 ? v : (v << (8 - bits)) | (v >> (2 * bits - 8));
+            table[v] = Math.round(coefficient * value * (1 << FIXED_SHIFT));
+        }
+        return table;
+    }
+
+    public boolean isIdentity() {
+        return mIdentity;
+    }
+
+    public float getSaturation() {
+        return mSaturation;
+    }
+
+    public float getBrightness() {
+        return mBrightness;
+    }
+
+    public float getContrast() {
+        return mContrast;
+    }
+
+    /**
+     * 调整ARGB像素，透明度不变
+     *
+     * @param pixels
+     * @param offset
+     * @param count
+     */
+    public void applyRange(int[] pixels, int offset, int count) {
+        if (mIdentity) {
+            return;
+        }
+        final int[] rr = mTables[0], rg = mTables[1], rb = mTables[2];
+        final int[] gr = mTables[3], gg = mTables[4], gb = mTables[5];
+        final int[] br = mTables[6], bg = mTables[7], bb = mTables[8];
+        final int o = mOffset;
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            int color = pixels[i];
+            int r = (color >> 16) & 0xFF;
+            int g = (color >> 8) & 0xFF;
+            int b = color & 0xFF;
+            int nr = clamp((rr[r] + rg[g] + rb[b] + o) >> FIXED_SHIFT);
+            int ng = clamp((gr[r] + gg[g] + gb[b] + o) >> FIXED_SHIFT);
+            int nb = clamp((br[r] + bg[g] + bb[b] + o) >> FIXED_SHIFT);
+            pixels[i] = (color & 0xFF000000) | (nr << 16) | (ng << 8) | nb;
+        }
+    }
+
+    /**
+     * 调整RGB_565像素
+     *
+     * @param pixels
+     * @param offset
+     * @param count
+     */
+    public void applyRange565(short[] pixels, int offset, int count) {
+        if (mIdentity) {
+            return;
+        }
+        final int[] rr = mTables565[0], rg = mTables565[1], rb = mTables565[2];
+        final int[] gr = mTables565[3], gg = mTables565[4], gb = mTables565[5];
+        final int[] br = mTables565[6], bg = mTables565[7], bb = mTables565[8];
+        final int o = mOffset;
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            int color = pixels[i] & 0xFFFF;
+            int r = color >> 11;
+            int g = (color >> 5) & 0x3F;
+            int b = color & 0x1F;
+            int nr = clamp((rr[r] + rg[g] + rb[b] + o) >> FIXED_SHIFT);
+            int ng = clamp((gr[r] + gg[g] + gb[b] + o) >> FIXED_SHIFT);
+            int nb = clamp((br[r] + bg[g] + bb[b] + o) >> FIXED_SHIFT);
+            pixels[i] = (short) (((nr >> 3) << 11) | ((ng >> 2) << 5) | (nb >> 3));
+        }
+    }
+
+    /**
+     * 按行分条并行调整整幅ARGB像素
+     *
+     * @param pixels
+     * @param width
+     * @param height
+     */
+    public void apply(final int[] pixels, final int width, int height) {
+        if (mIdentity) {
+            return;
+        }
+        forEachStripe(width, height, new StripeTask() {
+            @Override
+            public void run(int y, int rows, int[] buffer) {
+                applyRange(pixels, y * width, rows * width);
+            }
+        }, false);
+    }
+
+    /**
+     * 按行分条并行调整整幅RGB_565像素
+     *
+     * @param pixels
+     * @param width
+     * @param height
+     */
+    public void apply565(final short[] pixels, final int width, int height) {
+        if (mIdentity) {
+            return;
+        }
+        forEachStripe(width, height, new StripeTask() {
+            @Override
+            public void run(int y, int rows, int[] buffer) {
+                applyRange565(pixels, y * width, rows * width);
+            }
+        }, false);
+    }
+
+    /**
+     * 按行分条并行调整，每条读入各线程自己的缓冲区处理后写回
+     *
+     * @param rows
+     * @param width
+     * @param height
+     */
+    public void apply(final PixelRows rows, final int width, int height) {
+        if (mIdentity) {
+            return;
+        }
+        forEachStripe(width, height, new StripeTask() {
+            @Override
+            public void run(int y, int count, int[] buffer) {
+                rows.read(buffer, y, count);
+                applyRange(buffer, 0, count * width);
+                rows.write(buffer, y, count);
+            }
+        }, true);
+    }
+
+    private interface StripeTask {
+        void run(int y, int rows, int[] buffer);
+    }
+
+    private static void forEachStripe(final int width, final int height, final StripeTask task, final boolean needBuffer) {
+        final int stripes = (height + STRIPE_ROWS - 1) / STRIPE_ROWS;
+        int workers = (long) width * height < PARALLEL_THRESHOLD ? 1 : Math.min(THREAD_COUNT, stripes);
+        final AtomicInteger next = new AtomicInteger();
+        if (workers <= 1) {
+            runStripes(next, stripes, width, height, task, needBuffer);
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(workers - 1);
+        final Throwable[] error = new Throwable[1];
+        ExecutorService executor = getExecutor();
+        for (int i = 0; i < workers - 1; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runStripes(next, stripes, width, height, task, needBuffer);
+                    } catch (Throwable t) {
+                        synchronized (error) {
+                            error[0] = t;
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        // 调用线程同样参与处理
+        runStripes(next, stripes, width, height, task, needBuffer);
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (error) {
+            if (error[0] != null) {
+                throw new RuntimeException(error[0]);
+            }
+        }
+    }
+
+    private static void runStripes(AtomicInteger next, int stripes, int width, int height, StripeTask task, boolean needBuffer) {
+        int[] buffer = needBuffer ? new int[width * STRIPE_ROWS] : null;
+        int stripe;
+        while ((stripe = next.getAndIncrement()) < stripes) {
+            int y = stripe * STRIPE_ROWS;
+            task.run(y, Math.min(STRIPE_ROWS, height - y), buffer);
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ColorAdjustment #" + mCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * 只由三个参数决定，跨进程不变，用作缩略图缓存key的一部分
+     */
+    @Override
+    public String toString() {
+        return "ColorAdjustment[saturation=" + mSaturation + ",brightness=" + mBrightness + ",contrast=" + mContrast + "]";
+    }
+}
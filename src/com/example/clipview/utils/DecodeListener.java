@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import android.graphics.Bitmap;
+
+/**
+ * 解码各阶段的耗时和失败回调，在解码线程中调用，实现应尽量轻量。
+ *
+ * @see BitmapUtils#setDecodeListener(DecodeListener)
+ * @see DecodeMetrics
+ */
+public interface DecodeListener {
+    /** 读取文件头，获取原图宽高和EXIF方向 */
+    int STAGE_BOUNDS = 0;
+    /** 解码像素，包括采样和解码器内的缩放 */
+    int STAGE_DECODE = 1;
+    /** 缩放、截取、旋转到目标大小 */
+    int STAGE_TRANSFORM = 2;
+    /** 色彩调整 */
+    int STAGE_COLOR = 3;
+    int STAGE_COUNT = 4;
+
+    /** 格式不支持或数据损坏，解码器返回null */
+    int FAILURE_UNSUPPORTED = 0;
+    /** 读取数据出错 */
+    int FAILURE_IO = 1;
+    /** 内存不足 */
+    int FAILURE_OUT_OF_MEMORY = 2;
+    /** 参数错误，如复用的Bitmap不满足要求 */
+    int FAILURE_INVALID_ARGUMENT = 3;
+    /** 其它异常 */
+    int FAILURE_UNKNOWN = 4;
+    int FAILURE_COUNT = 5;
+
+    /**
+     * 一个阶段完成
+     *
+     * @param stage
+     *            STAGE_*
+     * @param nanos
+     *            耗时，单位纳秒
+     * @param byteCount
+     *            阶段输出Bitmap的字节数，没有输出时为0
+     * @param sampleSize
+     *            解码使用的inSampleSize，其它阶段为1
+     * @param config
+     *            阶段输出Bitmap的Config，没有输出时为null
+     */
+    void onStage(int stage, long nanos, int byteCount, int sampleSize, Bitmap.Config config);
+
+    /**
+     * 一个阶段失败，之后的阶段不再进行
+     *
+     * @param stage
+     *            STAGE_*
+     * @param cause
+     *            FAILURE_*
+     * @param t
+     *            异常，解码器返回null时为null
+     */
+    void onFailure(int stage, int cause, Throwable t);
+}
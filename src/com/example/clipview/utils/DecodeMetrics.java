@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+
+/**
+ * 默认的解码统计，按阶段汇总耗时直方图、字节数、采样率、Config和失败原因。
+ * <p>
+ * 耗时直方图第i个桶统计[2^(i-1), 2^i)微秒的次数，第0个桶为不足1微秒。
+ */
+public class DecodeMetrics implements DecodeListener {
+    private static final int BUCKET_COUNT = 32;
+    private static final int SAMPLE_BUCKET_COUNT = 16;
+    private static final String[] STAGE_NAMES = { "bounds", "decode", "transform", "color" };
+    private static final String[] FAILURE_NAMES = { "unsupported", "io", "oom", "invalidArgument", "unknown" };
+    private static final Bitmap.Config[] CONFIGS = Bitmap.Config.values();
+
+    private static DecodeMetrics sInstance;
+
+    private final long[][] mHistograms = new long[STAGE_COUNT][BUCKET_COUNT];
+    private final long[] mCounts = new long[STAGE_COUNT];
+    private final long[] mTotalNanos = new long[STAGE_COUNT];
+    private final long[] mMaxNanos = new long[STAGE_COUNT];
+    private final long[] mTotalBytes = new long[STAGE_COUNT];
+    private final long[][] mFailures = new long[STAGE_COUNT][FAILURE_COUNT];
+    /** 第i个桶为inSampleSize = 2^i */
+    private final long[] mSampleSizes = new long[SAMPLE_BUCKET_COUNT];
+    /** 按Config.ordinal()统计解码输出 */
+    private final long[] mConfigs = new long[CONFIGS.length];
+
+    public static synchronized DecodeMetrics getInstance() {
+        if (sInstance == null) {
+            sInstance = new DecodeMetrics();
+        }
+        return sInstance;
+    }
+
+    @Override
+    public synchronized void onStage(int stage, long nanos, int byteCount, int sampleSize, Bitmap.Config config) {
+        mHistograms[stage][bucketOf(nanos / 1000)]++;
+        mCounts[stage]++;
+        mTotalNanos[stage] += nanos;
+        if (nanos > mMaxNanos[stage]) {
+            mMaxNanos[stage] = nanos;
+        }
+        mTotalBytes[stage] += byteCount;
+        if (stage == STAGE_DECODE) {
+            mSampleSizes[Math.max(0, Math.min(SAMPLE_BUCKET_COUNT - 1, bucketOf(sampleSize) - 1))]++;
+            if (config != null) {
+                mConfigs[config.ordinal()]++;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onFailure(int stage, int cause, Throwable t) {
+        mFailures[stage][cause]++;
+    }
+
+    /**
+     * 值所在的桶，0为0，i为[2^(i-1), 2^i)
+     */
+    private static int bucketOf(long value) {
+        if (value <= 0) {
+            return 0;
+        }
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * 阶段的耗时直方图副本
+     *
+     * @param stage
+     * @return
+     */
+    public synchronized long[] getHistogram(int stage) {
+        return mHistograms[stage].clone();
+    }
+
+    public synchronized long getCount(int stage) {
+        return mCounts[stage];
+    }
+
+    public synchronized long getTotalNanos(int stage) {
+        return mTotalNanos[stage];
+    }
+
+    public synchronized long getMaxNanos(int stage) {
+        return mMaxNanos[stage];
+    }
+
+    public synchronized long getTotalBytes(int stage) {
+        return mTotalBytes[stage];
+    }
+
+    public synchronized long getFailureCount(int stage, int cause) {
+        return mFailures[stage][cause];
+    }
+
+    /**
+     * 按直方图估算的耗时百分位，取所在桶的上界
+     *
+     * @param stage
+     * @param percentile
+     *            0~100
+     * @return 单位纳秒，没有记录时为0
+     */
+    public synchronized long getPercentileNanos(int stage, float percentile) {
+        long count = mCounts[stage];
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        long[] histogram = mHistograms[stage];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return Math.min(mMaxNanos[stage], (1L << i) * 1000);
+            }
+        }
+        return mMaxNanos[stage];
+    }
+
+    /**
+     * 清空统计
+     */
+    public synchronized void reset() {
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            Arrays.fill(mHistograms[stage], 0);
+            Arrays.fill(mFailures[stage], 0);
+        }
+        Arrays.fill(mCounts, 0);
+        Arrays.fill(mTotalNanos, 0);
+        Arrays.fill(mMaxNanos, 0);
+        Arrays.fill(mTotalBytes, 0);
+        Arrays.fill(mSampleSizes, 0);
+        Arrays.fill(mConfigs, 0);
+    }
+
+    /**
+     * 输出统计，每个阶段一行，另有直方图、采样率和Config分布
+     *
+     * @param writer
+     */
+    public synchronized void dump(PrintWriter writer) {
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            long count = mCounts[stage];
+            writer.print(STAGE_NAMES[stage]);
+            writer.print(": count=" + count);
+            writer.print(" avg=" + (count != 0 ? mTotalNanos[stage] / count / 1000 : 0) + "us");
+            writer.print(" p50=" + getPercentileNanos(stage, 50) / 1000 + "us");
+            writer.print(" p90=" + getPercentileNanos(stage, 90) / 1000 + "us");
+            writer.print(" p99=" + getPercentileNanos(stage, 99) / 1000 + "us");
+            writer.print(" max=" + mMaxNanos[stage] / 1000 + "us");
+            writer.print(" bytes=" + mTotalBytes[stage]);
+            for (int cause = 0; cause < FAILURE_COUNT; cause++) {
+                if (mFailures[stage][cause] != 0) {
+                    writer.print(" " + FAILURE_NAMES[cause] + "=" + mFailures[stage][cause]);
+                }
+            }
+            writer.println();
+            writer.print("  histogram(us):");
+            long[] histogram = mHistograms[stage];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                if (histogram[i] != 0) {
+                    writer.print(" <" + (1L << i) + "=" + histogram[i]);
+                }
+            }
+            writer.println();
+        }
+        writer.print("sampleSize:");
+        for (int i = 0; i < SAMPLE_BUCKET_COUNT; i++) {
+            if (mSampleSizes[i] != 0) {
+                writer.print(" " + (1 << i) + "=" + mSampleSizes[i]);
+            }
+        }
+        writer.println();
+        writer.print("config:");
+        for (int i = 0; i < CONFIGS.length; i++) {
+            if (mConfigs[i] != 0) {
+                writer.print(" " + CONFIGS[i] + "=" + mConfigs[i]);
+            }
+        }
+        writer.println();
+        writer.flush();
+    }
+
+    @Override
+    public String toString() {
+        StringWriter writer = new StringWriter();
+        dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+}
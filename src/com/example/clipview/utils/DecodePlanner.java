@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+
+/**
+ * 按内存预算规划解码：同时决定采样率和Config。
+ * <p>
+ * 优先ARGB_8888；超出预算且原图没有透明度时改用RGB_565；仍超出时按比例缩小目标大小直到不超过预算。
+ * 预算默认为可用堆大小（Runtime最大内存与ActivityManager.getMemoryClass()中较小者）的1/8。
+ * <p>
+ * 预算只是估计，解码仍内存不足时由{@link #degrade}按{@link #RETRY_SAMPLE_SIZE}、{@link #RETRY_RGB_565}、
+ * {@link #RETRY_SMALLER_TARGET}的顺序逐步降级重试，每一步都叠加前面的降级。
+ */
+public class DecodePlanner {
+    /** 未降级 */
+    public static final int RETRY_NONE = 0;
+    /** 采样率加倍，解码后再放大到目标大小 */
+    public static final int RETRY_SAMPLE_SIZE = 1;
+    /** 改用RGB_565，透明度丢失 */
+    public static final int RETRY_RGB_565 = 2;
+    /** 目标大小减半，采样率再加倍 */
+    public static final int RETRY_SMALLER_TARGET = 3;
+
+    /** 单次解码占可用堆的比例 */
+    private static final int BUDGET_DIVISOR = 8;
+
+    private static DecodePlanner sDefault;
+
+    private final long mByteBudget;
+
+    /**
+     * 规划结果
+     */
+    public static final class Plan {
+        /** 采样率及解码器内的缩放 */
+        public final SizePlanner.Plan sizePlan;
+        public final Bitmap.Config config;
+        /** 按预算调整后的目标宽 */
+        public final int targetWidth;
+        /** 按预算调整后的目标高 */
+        public final int targetHeight;
+        /** 解码结果的预期字节数 */
+        public final long byteCount;
+        /** 是否因预算降低了Config或目标大小 */
+        public final boolean budgetLimited;
+        /** 内存不足后的降级步骤，{@link DecodePlanner#RETRY_NONE}等 */
+        public final int retryStep;
+
+        Plan(SizePlanner.Plan sizePlan, Bitmap.Config config, int targetWidth, int targetHeight, long byteCount,
+                boolean budgetLimited, int retryStep) {
+            this.sizePlan = sizePlan;
+            this.config = config;
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.byteCount = byteCount;
+            this.budgetLimited = budgetLimited;
+            this.retryStep = retryStep;
+        }
+
+        @Override
+        public String toString() {
+            return "DecodePlan[" + sizePlan + ",config=" + config + ",target=" + targetWidth + "x" + targetHeight
+                    + ",bytes=" + byteCount + (budgetLimited ? ",budgetLimited" : "") + (retryStep != RETRY_NONE ? ",retry="
+                    + retryStep : "") + "]";
+        }
+    }
+
+    /**
+     * 按应用的内存等级初始化默认规划器
+     *
+     * @param context
+     */
+    public static synchronized void init(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long heap = Runtime.getRuntime().maxMemory();
+        if (am != null) {
+            heap = Math.min(heap, am.getMemoryClass() * 1024L * 1024L);
+        }
+        sDefault = new DecodePlanner(heap / BUDGET_DIVISOR);
+    }
+
+    /**
+     * 默认规划器，未初始化时只按Runtime最大内存计算预算
+     *
+     * @return
+     */
+    public static synchronized DecodePlanner getDefault() {
+        if (sDefault == null) {
+            sDefault = new DecodePlanner(Runtime.getRuntime().maxMemory() / BUDGET_DIVISOR);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param byteBudget
+     *            单次解码结果的最大字节数
+     */
+    public DecodePlanner(long byteBudget) {
+        mByteBudget = Math.max(1, byteBudget);
+    }
+
+    public long getByteBudget() {
+        return mByteBudget;
+    }
+
+    /**
+     * 规划解码，解码结果覆盖目标大小（见{@link SizePlanner#plan}），且不超过预算
+     *
+     * @param srcWidth
+     *            原图宽
+     * @param srcHeight
+     *            原图高
+     * @param reqWidth
+     *            要求覆盖的宽
+     * @param reqHeight
+     *            要求覆盖的高
+     * @param hasAlpha
+     *            原图可能有透明度，不能用RGB_565
+     * @return
+     */
+    public Plan plan(int srcWidth, int srcHeight, int reqWidth, int reqHeight, boolean hasAlpha) {
+        SizePlanner.Plan sizePlan = SizePlanner.plan(srcWidth, srcHeight, reqWidth, reqHeight);
+        Bitmap.Config config = Bitmap.Config.ARGB_8888;
+        long byteCount = byteCount(sizePlan, config);
+        if (byteCount <= mByteBudget) {
+            return new Plan(sizePlan, config, reqWidth, reqHeight, byteCount, false, RETRY_NONE);
+        }
+        if (!hasAlpha) {
+            config = Bitmap.Config.RGB_565;
+            byteCount = byteCount(sizePlan, config);
+        }
+        // 按面积比例缩小目标，直到不超过预算
+        while (byteCount > mByteBudget && (reqWidth > 1 || reqHeight > 1)) {
+            double factor = Math.sqrt((double) mByteBudget / byteCount);
+            reqWidth = Math.max(1, Math.min(reqWidth - 1, (int) (reqWidth * factor)));
+            reqHeight = Math.max(1, Math.min(reqHeight - 1, (int) (reqHeight * factor)));
+            sizePlan = SizePlanner.plan(srcWidth, srcHeight, reqWidth, reqHeight);
+            byteCount = byteCount(sizePlan, config);
+        }
+        return new Plan(sizePlan, config, reqWidth, reqHeight, byteCount, true, RETRY_NONE);
+    }
+
+    /**
+     * 内存不足后的降级规划
+     *
+     * @param plan
+     *            未降级的规划
+     * @param srcWidth
+     *            原图宽
+     * @param srcHeight
+     *            原图高
+     * @param retryStep
+     *            {@link #RETRY_SAMPLE_SIZE}、{@link #RETRY_RGB_565}或{@link #RETRY_SMALLER_TARGET}，叠加前面的步骤
+     * @return
+     */
+    public Plan degrade(Plan plan, int srcWidth, int srcHeight, int retryStep) {
+        if (retryStep <= RETRY_NONE) {
+            return plan;
+        }
+        int sampleSize = plan.sizePlan.sampleSize * 2;
+        int targetWidth = plan.targetWidth;
+        int targetHeight = plan.targetHeight;
+        Bitmap.Config config = retryStep >= RETRY_RGB_565 ? Bitmap.Config.RGB_565 : plan.config;
+        if (retryStep >= RETRY_SMALLER_TARGET) {
+            sampleSize *= 2;
+            targetWidth = Math.max(1, targetWidth / 2);
+            targetHeight = Math.max(1, targetHeight / 2);
+        }
+        // 不再由解码器按密度缩放，剩余缩放在变换中完成
+        SizePlanner.Plan sizePlan = new SizePlanner.Plan(sampleSize, 0, 0, SizePlanner.sampledSize(srcWidth, sampleSize),
+                SizePlanner.sampledSize(srcHeight, sampleSize));
+        return new Plan(sizePlan, config, targetWidth, targetHeight, byteCount(sizePlan, config), plan.budgetLimited,
+                retryStep);
+    }
+
+    /**
+     * 按解码器返回的MIME类型判断原图是否可能有透明度，只有JPEG确定没有
+     *
+     * @param mimeType
+     *            BitmapFactory.Options.outMimeType
+     * @return
+     */
+    public static boolean mayHaveAlpha(String mimeType) {
+        return !"image/jpeg".equals(mimeType);
+    }
+
+    private static long byteCount(SizePlanner.Plan sizePlan, Bitmap.Config config) {
+        return (long) sizePlan.outWidth * sizePlan.outHeight * (config == Bitmap.Config.RGB_565 ? 2 : 4);
+    }
+
+    @Override
+    public String toString() {
+        return "DecodePlanner[budget=" + mByteBudget + "]";
+    }
+}
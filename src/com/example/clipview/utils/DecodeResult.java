@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import android.graphics.Bitmap;
+
+/**
+ * 解码结果，Bitmap及其元数据
+ */
+public class DecodeResult {
+    private final Bitmap mBitmap;
+    private final int mOrientation;
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private final DecodePlanner.Plan mPlan;
+
+    public DecodeResult(Bitmap bitmap, int orientation, int sourceWidth, int sourceHeight, DecodePlanner.Plan plan) {
+        mBitmap = bitmap;
+        mOrientation = orientation;
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mPlan = plan;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    /**
+     * Bitmap显示时还需要顺时针旋转的角度，像素未旋转
+     *
+     * @return 0、90、180、270
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * 原图宽，未旋转
+     */
+    public int getSourceWidth() {
+        return mSourceWidth;
+    }
+
+    /**
+     * 原图高，未旋转
+     */
+    public int getSourceHeight() {
+        return mSourceHeight;
+    }
+
+    /**
+     * 解码采用的规划：采样率、Config、按预算调整后的目标大小
+     */
+    public DecodePlanner.Plan getPlan() {
+        return mPlan;
+    }
+
+    /**
+     * 解码成功时所在的降级步骤，内存充足时为{@link DecodePlanner#RETRY_NONE}
+     *
+     * @return {@link DecodePlanner#RETRY_NONE}、{@link DecodePlanner#RETRY_SAMPLE_SIZE}、
+     *         {@link DecodePlanner#RETRY_RGB_565}或{@link DecodePlanner#RETRY_SMALLER_TARGET}
+     */
+    public int getRetryStep() {
+        return mPlan != null ? mPlan.retryStep : DecodePlanner.RETRY_NONE;
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+
+/**
+ * 图片解码数据源。数据源只打开一次，先读取图片头，再在同一句柄上解码像素，
+ * 使用完毕后由{@link #close()}关闭。
+ * <p>
+ * 可定位的文件句柄直接回到起点重新读取；不可定位的流（管道、网络流等）
+ * 通过带缓冲的可回退流读取图片头。
+ * <p>
+ * JPEG、PNG、WebP的宽高和方向由{@link ImageHeaderParser}直接从文件头读取，不经过原生解码器；
+ * {@link #fromFile}的结果在{@link ImageHeaderIndex}初始化后记录在索引中，文件未修改时不再读取文件头；
+ * Uri和句柄拿不到修改时间，每次都读取文件头。
+ */
+public abstract class DecodeSource implements Closeable {
+    /** 读取图片头时允许回退的最大字节数 */
+    private static final int HEADER_MARK_LIMIT = 64 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    /** 解析EXIF时读取的文件头大小 */
+    private static final int HEADER_PROBE_SIZE = 16 * 1024;
+
+    private InputStream mInput;
+    private FileInputStream mSeekableInput;
+    private long mStartPosition;
+    private RewindableInputStream mStream;
+    private boolean mClosed;
+    private int mOrientation;
+    private long mThumbnailOffset;
+    private int mThumbnailLength;
+
+    /**
+     * 本地文件
+     *
+     * @param filePath
+     * @return
+     */
+    public static DecodeSource fromFile(final String filePath) {
+        return new DecodeSource() {
+            @Override
+            protected InputStream onOpen() throws IOException {
+                return new FileInputStream(filePath);
+            }
+
+            @Override
+            protected String getFilePath() {
+                return filePath;
+            }
+        };
+    }
+
+    /**
+     * 文件句柄，句柄由调用方持有，{@link #close()}不会关闭该句柄
+     *
+     * @param fileDescriptor
+     * @return
+     */
+    public static DecodeSource fromFileDescriptor(final FileDescriptor fileDescriptor) {
+        return new DecodeSource() {
+            @Override
+            protected InputStream onOpen() throws IOException {
+                return new FileInputStream(fileDescriptor);
+            }
+
+            @Override
+            protected boolean ownsInput() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * content://、file:// 等Uri
+     *
+     * @param resolver
+     * @param uri
+     * @return
+     */
+    public static DecodeSource fromUri(final ContentResolver resolver, final Uri uri) {
+        return new DecodeSource() {
+            @Override
+            protected InputStream onOpen() throws IOException {
+                ParcelFileDescriptor parcelFileDescriptor = resolver.openFileDescriptor(uri, "r");
+                if (parcelFileDescriptor == null) {
+                    throw new FileNotFoundException("openFileDescriptor returned null for " + uri);
+                }
+                return new ParcelFileDescriptor.AutoCloseInputStream(parcelFileDescriptor);
+            }
+        };
+    }
+
+    /**
+     * 内存中的图片数据
+     *
+     * @param data
+     * @return
+     */
+    public static DecodeSource fromBytes(final byte[] data) {
+        return new DecodeSource() {
+            @Override
+            protected InputStream onOpen() throws IOException {
+                return new ByteArrayInputStream(data);
+            }
+
+            @Override
+            public boolean decodeBounds(BitmapFactory.Options options) throws IOException {
+                checkNotClosed();
+                ImageHeaderParser.ImageInfo info = ImageHeaderParser.parse(data, data.length);
+                if (info != null) {
+                    setBounds(options, info);
+                    return true;
+                }
+                setOrientation(ImageHeaderParser.getExifOrientation(data, data.length));
+                options.inJustDecodeBounds = true;
+                try {
+                    BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                } finally {
+                    options.inJustDecodeBounds = false;
+                }
+                return options.outWidth > 0 && options.outHeight > 0;
+            }
+
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) throws IOException {
+                checkNotClosed();
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
+
+            @Override
+            public BitmapRegionDecoder newRegionDecoder() throws IOException {
+                checkNotClosed();
+                checkRegionDecoderSupported();
+                return BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+            }
+
+            @Override
+            protected byte[] readRange(long offset, int length) throws IOException {
+                checkNotClosed();
+                if (offset < 0 || offset + length > data.length) {
+                    return null;
+                }
+                byte[] range = new byte[length];
+                System.arraycopy(data, (int) offset, range, 0, length);
+                return range;
+            }
+        };
+    }
+
+    /**
+     * 任意输入流，流由数据源接管，{@link #close()}时关闭
+     *
+     * @param inputStream
+     * @return
+     */
+    public static DecodeSource fromStream(final InputStream inputStream) {
+        return new DecodeSource() {
+            @Override
+            protected InputStream onOpen() throws IOException {
+                return inputStream;
+            }
+        };
+    }
+
+    /**
+     * 打开底层输入，每个数据源只调用一次
+     */
+    protected abstract InputStream onOpen() throws IOException;
+
+    /**
+     * 本地文件路径，用于查询{@link ImageHeaderIndex}
+     *
+     * @return 不是本地文件时为null
+     */
+    protected String getFilePath() {
+        return null;
+    }
+
+    /**
+     * {@link #close()}时是否关闭{@link #onOpen()}返回的输入
+     */
+    protected boolean ownsInput() {
+        return true;
+    }
+
+    /**
+     * 读取图片宽高及EXIF方向，读取后数据源回到起点
+     *
+     * @param options
+     * @return 是否成功读取到宽高
+     * @throws IOException
+     */
+    public boolean decodeBounds(BitmapFactory.Options options) throws IOException {
+        ensureOpen();
+        ImageHeaderParser.ImageInfo info;
+        byte[] header = null;
+        int headerLength = 0;
+        if (mSeekableInput != null) {
+            info = probeFile();
+        } else {
+            header = new byte[HEADER_PROBE_SIZE];
+            headerLength = readHeader(header);
+            info = ImageHeaderParser.parse(header, headerLength);
+        }
+        if (info != null) {
+            setBounds(options, info);
+            return true;
+        }
+
+        // 不支持的格式交由原生解码器读取。不可定位的流只解码已读入的文件头，
+        // 不读过起点处的标记范围，宽高不在文件头内时返回false
+        if (header == null) {
+            header = new byte[HEADER_PROBE_SIZE];
+            headerLength = readHeader(header);
+        }
+        setOrientation(ImageHeaderParser.getExifOrientation(header, headerLength));
+        options.inJustDecodeBounds = true;
+        try {
+            if (mSeekableInput != null) {
+                BitmapFactory.decodeFileDescriptor(mSeekableInput.getFD(), null, options);
+                rewind();
+            } else {
+                BitmapFactory.decodeByteArray(header, 0, headerLength, options);
+            }
+        } finally {
+            options.inJustDecodeBounds = false;
+        }
+        return options.outWidth > 0 && options.outHeight > 0;
+    }
+
+    /**
+     * 按位置读取文件头，本地文件先查索引
+     */
+    private ImageHeaderParser.ImageInfo probeFile() throws IOException {
+        String filePath = getFilePath();
+        ImageHeaderIndex index = filePath != null ? ImageHeaderIndex.getInstance() : null;
+        File file = null;
+        if (index != null) {
+            file = new File(filePath);
+            ImageHeaderParser.ImageInfo info = index.get(file);
+            if (info != null) {
+                return info;
+            }
+        }
+        ImageHeaderParser.ImageInfo info = ImageHeaderParser.probe(mSeekableInput.getChannel(), mStartPosition);
+        if (info != null && index != null) {
+            index.put(file, info);
+        }
+        return info;
+    }
+
+    protected final void setBounds(BitmapFactory.Options options, ImageHeaderParser.ImageInfo info) {
+        setOrientation(info.orientation);
+        mThumbnailOffset = info.thumbnailOffset;
+        mThumbnailLength = info.thumbnailLength;
+        options.outWidth = info.width;
+        options.outHeight = info.height;
+        options.outMimeType = info.mimeType;
+    }
+
+    /**
+     * {@link #decodeBounds}读取到的EXIF方向，显示时需要顺时针旋转的角度
+     *
+     * @return
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    protected final void setOrientation(int orientation) {
+        mOrientation = orientation;
+    }
+
+    /**
+     * 读取{@link #decodeBounds}找到的EXIF内嵌JPEG缩略图，不改变读取位置
+     *
+     * @return 没有缩略图或数据源不能按位置读取时为null
+     * @throws IOException
+     */
+    public byte[] readExifThumbnail() throws IOException {
+        if (mThumbnailLength <= 0) {
+            return null;
+        }
+        return readRange(mThumbnailOffset, mThumbnailLength);
+    }
+
+    /**
+     * 按位置读取图片中的一段数据，不可定位的流不支持
+     *
+     * @param offset
+     *            相对于图片起点
+     * @param length
+     * @return 不支持或数据不足时为null
+     * @throws IOException
+     */
+    protected byte[] readRange(long offset, int length) throws IOException {
+        ensureOpen();
+        if (mSeekableInput == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        FileChannel channel = mSeekableInput.getChannel();
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, mStartPosition + offset + buffer.position());
+            if (count <= 0) {
+                return null;
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 从起点读取文件头，不改变读取位置
+     *
+     * @param header
+     * @return 读取到的字节数
+     * @throws IOException
+     */
+    protected int readHeader(byte[] header) throws IOException {
+        ensureOpen();
+        int total = 0;
+        if (mSeekableInput != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            FileChannel channel = mSeekableInput.getChannel();
+            while (buffer.hasRemaining()) {
+                int count = channel.read(buffer, mStartPosition + buffer.position());
+                if (count <= 0) {
+                    break;
+                }
+            }
+            return buffer.position();
+        }
+        int length = Math.min(header.length, HEADER_MARK_LIMIT);
+        while (total < length) {
+            int count = mStream.read(header, total, length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        mStream.reset();
+        return total;
+    }
+
+    /**
+     * 解码像素。不可定位的流解码后不能再次读取
+     *
+     * @param options
+     * @return
+     * @throws IOException
+     */
+    public Bitmap decode(BitmapFactory.Options options) throws IOException {
+        ensureOpen();
+        rewind();
+        if (mSeekableInput != null) {
+            return BitmapFactory.decodeFileDescriptor(mSeekableInput.getFD(), null, options);
+        }
+        mStream.releaseMark();
+        return BitmapFactory.decodeStream(mStream, null, options);
+    }
+
+    /**
+     * 能否再次调用{@link #decode}，用于解码失败后重试。不可定位的流解码后不能回到起点
+     *
+     * @return
+     */
+    public boolean isRepeatable() {
+        return mStream == null;
+    }
+
+    /**
+     * BitmapRegionDecoder需要2.3.3（API 10）及以上，以下只能解码整张采样后的图片
+     */
+    public static boolean isRegionDecoderSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1;
+    }
+
+    /**
+     * 在同一句柄上创建区域解码器，解码器由调用方回收
+     *
+     * @return
+     * @throws IOException
+     *             打开失败，或系统不支持区域解码，见{@link #isRegionDecoderSupported()}
+     */
+    public BitmapRegionDecoder newRegionDecoder() throws IOException {
+        checkRegionDecoderSupported();
+        ensureOpen();
+        rewind();
+        if (mSeekableInput != null) {
+            return BitmapRegionDecoder.newInstance(mSeekableInput.getFD(), false);
+        }
+        mStream.releaseMark();
+        return BitmapRegionDecoder.newInstance(mStream, false);
+    }
+
+    private static void checkRegionDecoderSupported() throws IOException {
+        if (!isRegionDecoderSupported()) {
+            throw new IOException("BitmapRegionDecoder requires API " + Build.VERSION_CODES.GINGERBREAD_MR1
+                    + ", running " + Build.VERSION.SDK_INT);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mInput != null && ownsInput()) {
+            try {
+                mInput.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        mInput = null;
+        mSeekableInput = null;
+        mStream = null;
+    }
+
+    protected final void checkNotClosed() throws IOException {
+        if (mClosed) {
+            throw new IOException("DecodeSource already closed");
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        checkNotClosed();
+        if (mInput != null) {
+            return;
+        }
+        mInput = onOpen();
+        if (mInput == null) {
+            throw new FileNotFoundException("DecodeSource opened no input");
+        }
+        if (mInput instanceof FileInputStream) {
+            FileInputStream fileInput = (FileInputStream) mInput;
+            try {
+                mStartPosition = fileInput.getChannel().position();
+                mSeekableInput = fileInput;
+                return;
+            } catch (IOException e) {
+                // 管道等不可定位的句柄，按流处理
+            }
+        }
+        mStream = new RewindableInputStream(mInput);
+    }
+
+    private void rewind() throws IOException {
+        if (mSeekableInput != null) {
+            mSeekableInput.getChannel().position(mStartPosition);
+        } else {
+            mStream.reset();
+        }
+    }
+
+    /**
+     * 起点处固定标记的缓冲流，解码器内部的mark()调用不会覆盖该标记，
+     * 保证读取图片头后可以回到起点
+     */
+    private static class RewindableInputStream extends BufferedInputStream {
+        private boolean mMarkLocked;
+
+        RewindableInputStream(InputStream in) {
+            super(in, BUFFER_SIZE);
+            super.mark(HEADER_MARK_LIMIT);
+            mMarkLocked = true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            if (!mMarkLocked) {
+                super.mark(readlimit);
+            }
+        }
+
+        /**
+         * 最后一次读取前释放起点标记，避免缓冲区随标记增长
+         */
+        synchronized void releaseMark() {
+            mMarkLocked = false;
+        }
+    }
+}
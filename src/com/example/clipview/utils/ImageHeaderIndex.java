@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * 图片头信息的持久化索引，key为路径，文件长度和修改时间不变时直接返回上次读取的结果，不再读取文件头。
+ * <p>
+ * 按最近使用顺序保留固定条数，修改后在后台线程合并写入缓存目录下的索引文件。
+ * 只用于{@link DecodeSource#fromFile}，使用文件路径解码的应用需先调用{@link #init}。
+ */
+public class ImageHeaderIndex {
+    private static final String TAG = "ImageHeaderIndex";
+    private static final String INDEX_FILE = "image_headers.idx";
+    private static final int VERSION = 2;
+    private static final int DEFAULT_MAX_ENTRIES = 512;
+
+    private static ImageHeaderIndex sInstance;
+
+    private final File mFile;
+    private final int mMaxEntries;
+    private final LinkedHashMap<String, Entry> mEntries;
+    private final ExecutorService mWriter;
+    private boolean mLoaded;
+    private boolean mSavePending;
+
+    private static final class Entry {
+        final long length;
+        final long lastModified;
+        final ImageHeaderParser.ImageInfo info;
+
+        Entry(long length, long lastModified, ImageHeaderParser.ImageInfo info) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.info = info;
+        }
+    }
+
+    /**
+     * 初始化默认索引
+     *
+     * @param context
+     */
+    public static synchronized void init(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImageHeaderIndex(new File(context.getCacheDir(), INDEX_FILE), DEFAULT_MAX_ENTRIES);
+        }
+    }
+
+    /**
+     * @return 未初始化时为null
+     */
+    public static synchronized ImageHeaderIndex getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param file
+     *            索引文件
+     * @param maxEntries
+     *            最多保留的条数
+     */
+    public ImageHeaderIndex(File file, int maxEntries) {
+        mFile = file;
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param file
+     * @return 没有记录或文件已修改时为null
+     */
+    public ImageHeaderParser.ImageInfo get(File file) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            ensureLoaded();
+            Entry entry = mEntries.get(file.getPath());
+            if (entry == null) {
+                return null;
+            }
+            if (entry.length != length || entry.lastModified != lastModified) {
+                mEntries.remove(file.getPath());
+                return null;
+            }
+            return entry.info;
+        }
+    }
+
+    /**
+     * 记录文件的图片头信息，稍后在后台写入索引文件
+     *
+     * @param file
+     * @param info
+     */
+    public void put(File file, ImageHeaderParser.ImageInfo info) {
+        long lastModified = file.lastModified();
+        if (lastModified == 0) {
+            return;
+        }
+        Entry entry = new Entry(file.length(), lastModified, info);
+        synchronized (this) {
+            ensureLoaded();
+            mEntries.put(file.getPath(), entry);
+            trimToSize();
+            if (mSavePending) {
+                return;
+            }
+            mSavePending = true;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mEntries.size() > mMaxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * 首次使用时读取索引文件，文件损坏或版本不符时丢弃
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                int width = in.readInt();
+                int height = in.readInt();
+                int orientation = in.readInt();
+                String mimeType = in.readUTF();
+                long thumbnailOffset = in.readLong();
+                int thumbnailLength = in.readInt();
+                mEntries.put(path, new Entry(length, lastModified, new ImageHeaderParser.ImageInfo(width, height,
+                        orientation, mimeType, thumbnailOffset, thumbnailLength)));
+            }
+            trimToSize();
+        } catch (IOException e) {
+            Log.w(TAG, "read index failed " + e.getMessage());
+            mEntries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * 写入临时文件再改名，只在写入线程中调用
+     */
+    private void save() {
+        List<Map.Entry<String, Entry>> snapshot;
+        synchronized (this) {
+            mSavePending = false;
+            snapshot = new ArrayList<Map.Entry<String, Entry>>(mEntries.entrySet());
+        }
+        File dir = mFile.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            return;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean success = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> item : snapshot) {
+                Entry entry = item.getValue();
+                out.writeUTF(item.getKey());
+                out.writeLong(entry.length);
+                out.writeLong(entry.lastModified);
+                out.writeInt(entry.info.width);
+                out.writeInt(entry.info.height);
+                out.writeInt(entry.info.orientation);
+                out.writeUTF(entry.info.mimeType);
+                out.writeLong(entry.info.thumbnailOffset);
+                out.writeInt(entry.info.thumbnailLength);
+            }
+            out.close();
+            out = null;
+            success = tmp.renameTo(mFile);
+        } catch (IOException e) {
+            Log.w(TAG, "write index failed " + e.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            if (!success) {
+                tmp.delete();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImageHeaderIndex[entries=" + mEntries.size() + "/" + mMaxEntries + "]";
+    }
+}
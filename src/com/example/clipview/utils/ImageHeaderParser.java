@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 图片头解析，不依赖Android，只读取文件开头的少量字节。
+ * <p>
+ * {@link #probe}不经过原生解码器，直接从JPEG（SOFn、APP1/EXIF）、PNG（IHDR）、WebP（VP8、VP8L、VP8X）
+ * 的文件头读取宽高、EXIF方向和MIME类型。JPEG的SOFn在大段EXIF之后时，按段长度定位读取，不读取中间的数据。
+ * JPEG的EXIF中IFD1带有内嵌缩略图时同时记录其位置。
+ */
+public final class ImageHeaderParser {
+    public static final String MIME_JPEG = "image/jpeg";
+    public static final String MIME_PNG = "image/png";
+    public static final String MIME_WEBP = "image/webp";
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    /** readTiff()结果中的下标 */
+    private static final int TIFF_ORIENTATION = 0;
+    private static final int TIFF_THUMBNAIL_OFFSET = 1;
+    private static final int TIFF_THUMBNAIL_LENGTH = 2;
+    /** 每次定位读取的字节数 */
+    private static final int PROBE_SIZE = 16 * 1024;
+
+    /**
+     * 图片头信息
+     */
+    public static final class ImageInfo {
+        /** 原图宽，未旋转 */
+        public final int width;
+        /** 原图高，未旋转 */
+        public final int height;
+        /** EXIF方向，显示时需要顺时针旋转的角度 */
+        public final int orientation;
+        public final String mimeType;
+        /** EXIF内嵌JPEG缩略图相对于图片起点的位置，没有时为0 */
+        public final long thumbnailOffset;
+        /** EXIF内嵌JPEG缩略图的字节数，没有时为0 */
+        public final int thumbnailLength;
+
+        public ImageInfo(int width, int height, int orientation, String mimeType) {
+            this(width, height, orientation, mimeType, 0, 0);
+        }
+
+        public ImageInfo(int width, int height, int orientation, String mimeType, long thumbnailOffset,
+                int thumbnailLength) {
+            this.width = width;
+            this.height = height;
+            this.orientation = orientation;
+            this.mimeType = mimeType;
+            this.thumbnailOffset = thumbnailOffset;
+            this.thumbnailLength = thumbnailLength;
+        }
+
+        public boolean hasThumbnail() {
+            return thumbnailLength > 0;
+        }
+
+        @Override
+        public String toString() {
+            return "ImageInfo[" + width + "x" + height + ",orientation=" + orientation + "," + mimeType
+                    + (hasThumbnail() ? ",thumbnail=" + thumbnailOffset + "+" + thumbnailLength : "") + "]";
+        }
+    }
+
+    private ImageHeaderParser() {
+    }
+
+    /**
+     * 读取JPEG的EXIF方向，返回显示时需要顺时针旋转的角度
+     *
+     * @param data
+     *            文件开头的字节
+     * @param length
+     *            有效字节数
+     * @return 0、90、180、270，没有EXIF方向时为0
+     */
+    public static int getExifOrientation(byte[] data, int length) {
+        length = Math.min(length, data.length);
+        if (length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != 0xD8) {
+            return 0;
+        }
+        int offset = 2;
+        while (offset + 4 <= length) {
+            if ((data[offset] & 0xFF) != 0xFF) {
+                return 0;
+            }
+            int marker = data[offset + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // 填充字节
+                offset++;
+                continue;
+            }
+            offset += 2;
+            if (marker == 0xD9 || marker == 0xDA) {
+                // EOI、SOS之后不会再有EXIF
+                return 0;
+            }
+            if ((marker >= 0xD0 && marker <= 0xD7) || marker == 0x01) {
+                // 没有长度的独立标记
+                continue;
+            }
+            int segmentLength = readUnsignedShort(data, offset, false);
+            if (segmentLength < 2) {
+                return 0;
+            }
+            if (marker == 0xE1 && segmentLength >= 8 && isExifHeader(data, offset + 2, length)) {
+                int end = Math.min(offset + segmentLength, length);
+                int[] tiff = new int[3];
+                readTiff(data, offset + 8, end, tiff);
+                return toDegrees(tiff[TIFF_ORIENTATION]);
+            }
+            offset += segmentLength;
+        }
+        return 0;
+    }
+
+    /**
+     * 从内存中的文件头读取图片信息
+     *
+     * @param data
+     *            文件开头的字节
+     * @param length
+     *            有效字节数
+     * @return 不支持的格式或字节不足时为null
+     */
+    public static ImageInfo parse(byte[] data, int length) {
+        try {
+            return probe(new Window(data, Math.min(length, data.length)));
+        } catch (IOException e) {
+            // 内存数据不会读取失败
+            return null;
+        }
+    }
+
+    /**
+     * 按位置读取文件头，不改变通道的读取位置
+     *
+     * @param channel
+     * @param start
+     *            图片在通道中的起点
+     * @return 不支持的格式或文件头不完整时为null，此时应交由原生解码器读取
+     * @throws IOException
+     */
+    public static ImageInfo probe(FileChannel channel, long start) throws IOException {
+        return probe(new Window(channel, start));
+    }
+
+    private static ImageInfo probe(Window window) throws IOException {
+        if (!window.ensure(0, 2)) {
+            return null;
+        }
+        byte[] data = window.data;
+        if ((data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8) {
+            return probeJpeg(window);
+        }
+        if (window.ensure(0, 24) && (data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G'
+                && data[12] == 'I' && data[13] == 'H' && data[14] == 'D' && data[15] == 'R') {
+            return newInfo(readInt(data, 16, false), readInt(data, 20, false), 0, MIME_PNG);
+        }
+        if (window.ensure(0, 30) && isFourCc(data, 0, "RIFF") && isFourCc(data, 8, "WEBP")) {
+            return probeWebp(data);
+        }
+        return null;
+    }
+
+    /**
+     * 依次读取JPEG各段，取APP1中的EXIF方向，直到第一个SOFn
+     */
+    private static ImageInfo probeJpeg(Window window) throws IOException {
+        long position = 2;
+        int orientation = 0;
+        long thumbnailOffset = 0;
+        int thumbnailLength = 0;
+        boolean exifRead = false;
+        while (window.ensure(position, 4)) {
+            byte[] data = window.data;
+            int index = window.index(position);
+            if ((data[index] & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = data[index + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // 填充字节
+                position++;
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // SOS之前没有SOFn
+                return null;
+            }
+            if ((marker >= 0xD0 && marker <= 0xD7) || marker == 0x01) {
+                position += 2;
+                continue;
+            }
+            int segmentLength = readUnsignedShort(data, index + 2, false);
+            if (segmentLength < 2) {
+                return null;
+            }
+            if (isStartOfFrame(marker)) {
+                if (!window.ensure(position + 4, 5)) {
+                    return null;
+                }
+                index = window.index(position + 4);
+                // 高度为0时由DNL段给出，交由原生解码器
+                int width = readUnsignedShort(window.data, index + 3, false);
+                int height = readUnsignedShort(window.data, index + 1, false);
+                if (width <= 0 || height <= 0) {
+                    return null;
+                }
+                return new ImageInfo(width, height, orientation, MIME_JPEG, thumbnailOffset, thumbnailLength);
+            }
+            if (marker == 0xE1 && !exifRead && segmentLength >= 8) {
+                int count = Math.min(segmentLength - 2, PROBE_SIZE);
+                if (window.ensure(position + 4, count)) {
+                    index = window.index(position + 4);
+                    if (isExifHeader(window.data, index, index + count)) {
+                        exifRead = true;
+                        int[] tiff = new int[3];
+                        readTiff(window.data, index + 6, index + count, tiff);
+                        orientation = toDegrees(tiff[TIFF_ORIENTATION]);
+                        // 缩略图偏移相对于TIFF头，须完整位于APP1段内
+                        long tiffPosition = position + 10;
+                        long start = tiffPosition + (tiff[TIFF_THUMBNAIL_OFFSET] & 0xFFFFFFFFL);
+                        long length = tiff[TIFF_THUMBNAIL_LENGTH] & 0xFFFFFFFFL;
+                        if (tiff[TIFF_THUMBNAIL_OFFSET] != 0 && length > 0
+                                && start + length <= position + 2 + segmentLength) {
+                            thumbnailOffset = start;
+                            thumbnailLength = (int) length;
+                        }
+                    }
+                }
+            }
+            position += 2 + segmentLength;
+        }
+        return null;
+    }
+
+    /**
+     * SOF0~SOF15，不包括DHT（C4）、JPG（C8）、DAC（CC）
+     */
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static ImageInfo probeWebp(byte[] data) {
+        if (isFourCc(data, 12, "VP8 ")) {
+            // 有损：关键帧起始码之后为14位宽高
+            if ((data[23] & 0xFF) != 0x9D || (data[24] & 0xFF) != 0x01 || (data[25] & 0xFF) != 0x2A) {
+                return null;
+            }
+            return newInfo(readUnsignedShort(data, 26, true) & 0x3FFF, readUnsignedShort(data, 28, true) & 0x3FFF, 0,
+                    MIME_WEBP);
+        } else if (isFourCc(data, 12, "VP8L")) {
+            // 无损：签名之后为14位的宽-1、高-1
+            if ((data[20] & 0xFF) != 0x2F) {
+                return null;
+            }
+            int bits = readInt(data, 21, true);
+            return newInfo((bits & 0x3FFF) + 1, ((bits >> 14) & 0x3FFF) + 1, 0, MIME_WEBP);
+        } else if (isFourCc(data, 12, "VP8X")) {
+            // 扩展格式：24位的画布宽-1、高-1
+            return newInfo(readUnsignedInt24(data, 24) + 1, readUnsignedInt24(data, 27) + 1, 0, MIME_WEBP);
+        }
+        return null;
+    }
+
+    private static ImageInfo newInfo(int width, int height, int orientation, String mimeType) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        return new ImageInfo(width, height, orientation, mimeType);
+    }
+
+    private static boolean isFourCc(byte[] data, int offset, String fourCc) {
+        for (int i = 0; i < 4; i++) {
+            if (data[offset + i] != fourCc.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readUnsignedInt24(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16);
+    }
+
+    /**
+     * EXIF方向值转换为顺时针旋转角度，镜像方向只取旋转部分
+     */
+    public static int toDegrees(int exifOrientation) {
+        switch (exifOrientation) {
+        case 3:
+        case 4:
+            return 180;
+        case 5:
+        case 6:
+            return 90;
+        case 7:
+        case 8:
+            return 270;
+        default:
+            return 0;
+        }
+    }
+
+    private static boolean isExifHeader(byte[] data, int offset, int length) {
+        return offset + 6 <= length && data[offset] == 'E' && data[offset + 1] == 'x' && data[offset + 2] == 'i'
+                && data[offset + 3] == 'f' && data[offset + 4] == 0 && data[offset + 5] == 0;
+    }
+
+    /**
+     * 读取TIFF结构IFD0中的方向值和IFD1中的缩略图位置
+     *
+     * @param out
+     *            依次为方向值、缩略图相对于TIFF头的偏移、缩略图字节数，没有时为0
+     */
+    private static void readTiff(byte[] data, int tiffStart, int end, int[] out) {
+        out[TIFF_ORIENTATION] = 0;
+        out[TIFF_THUMBNAIL_OFFSET] = 0;
+        out[TIFF_THUMBNAIL_LENGTH] = 0;
+        if (tiffStart + 8 > end) {
+            return;
+        }
+        boolean littleEndian;
+        if (data[tiffStart] == 'I' && data[tiffStart + 1] == 'I') {
+            littleEndian = true;
+        } else if (data[tiffStart] == 'M' && data[tiffStart + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return;
+        }
+        if (readUnsignedShort(data, tiffStart + 2, littleEndian) != 42) {
+            return;
+        }
+        int ifdStart = offsetOf(tiffStart, readInt(data, tiffStart + 4, littleEndian), end);
+        if (ifdStart + 2 > end) {
+            return;
+        }
+        int entryCount = readUnsignedShort(data, ifdStart, littleEndian);
+        for (int i = 0; i < entryCount; i++) {
+            int entry = ifdStart + 2 + i * 12;
+            if (entry + 12 > end) {
+                return;
+            }
+            if (readUnsignedShort(data, entry, littleEndian) == TAG_ORIENTATION) {
+                out[TIFF_ORIENTATION] = readUnsignedShort(data, entry + 8, littleEndian);
+            }
+        }
+
+        // IFD0之后为IFD1的偏移，IFD1描述内嵌缩略图
+        int next = ifdStart + 2 + entryCount * 12;
+        if (next + 4 > end) {
+            return;
+        }
+        int nextOffset = readInt(data, next, littleEndian);
+        if (nextOffset == 0) {
+            return;
+        }
+        ifdStart = offsetOf(tiffStart, nextOffset, end);
+        if (ifdStart + 2 > end) {
+            return;
+        }
+        entryCount = readUnsignedShort(data, ifdStart, littleEndian);
+        int thumbnailOffset = 0;
+        int thumbnailLength = 0;
+        for (int i = 0; i < entryCount; i++) {
+            int entry = ifdStart + 2 + i * 12;
+            if (entry + 12 > end) {
+                return;
+            }
+            int tag = readUnsignedShort(data, entry, littleEndian);
+            if (tag == TAG_THUMBNAIL_OFFSET) {
+                thumbnailOffset = readInt(data, entry + 8, littleEndian);
+            } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                thumbnailLength = readInt(data, entry + 8, littleEndian);
+            }
+        }
+        out[TIFF_THUMBNAIL_OFFSET] = thumbnailOffset;
+        out[TIFF_THUMBNAIL_LENGTH] = thumbnailLength;
+    }
+
+    /**
+     * TIFF中的无符号偏移转换为数组下标，超出有效数据时为end
+     */
+    private static int offsetOf(int tiffStart, int offset, int end) {
+        return (int) Math.min(tiffStart + (offset & 0xFFFFFFFFL), end);
+    }
+
+    /**
+     * 文件头的读取窗口，内存数据为整个窗口，文件通道在窗口外时按位置重新读取
+     */
+    private static final class Window {
+        private final FileChannel mChannel;
+        private final long mStart;
+        final byte[] data;
+        /** data[0]相对于起点的位置 */
+        private long mOffset;
+        private int mLength;
+
+        Window(byte[] data, int length) {
+            mChannel = null;
+            mStart = 0;
+            this.data = data;
+            mLength = length;
+        }
+
+        Window(FileChannel channel, long start) throws IOException {
+            mChannel = channel;
+            mStart = start;
+            data = new byte[PROBE_SIZE];
+            read(0);
+        }
+
+        /**
+         * 保证[position, position + count)在窗口内
+         *
+         * @return 文件在此之前结束时为false
+         */
+        boolean ensure(long position, int count) throws IOException {
+            if (position >= mOffset && position + count <= mOffset + mLength) {
+                return true;
+            }
+            if (mChannel == null || count > data.length) {
+                return false;
+            }
+            read(position);
+            return count <= mLength;
+        }
+
+        int index(long position) {
+            return (int) (position - mOffset);
+        }
+
+        private void read(long position) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                int count = mChannel.read(buffer, mStart + position + buffer.position());
+                if (count <= 0) {
+                    break;
+                }
+            }
+            mOffset = position;
+            mLength = buffer.position();
+        }
+    }
+
+    static int readUnsignedShort(byte[] data, int offset, boolean littleEndian) {
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    static int readInt(byte[] data, int offset, boolean littleEndian) {
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        int b2 = data[offset + 2] & 0xFF;
+        int b3 = data[offset + 3] & 0xFF;
+        return littleEndian ? (b3 << 24) | (b2 << 16) | (b1 << 8) | b0 : (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+    }
+}
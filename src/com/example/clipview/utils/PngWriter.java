@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 流式PNG编码，按行写入ARGB像素，不需要整张图片在内存中，不依赖Android。
+ * <p>
+ * 输出8位RGB或RGBA，每行按libpng的启发式从None、Sub、Up、Paeth中选择绝对值和最小的滤波。
+ * 内存占用为两行像素和一个IDAT块缓冲区。
+ */
+public final class PngWriter {
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_PAETH = 4;
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBytesPerPixel;
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mHeader = new byte[8];
+
+    private byte[] mRow;
+    private byte[] mPreviousRow;
+    /** 滤波后的一行，第0个字节为滤波类型 */
+    private final byte[] mFiltered;
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private int mChunkLength;
+    private int mRowCount;
+    private boolean mFinished;
+
+    /**
+     * 写入文件头
+     *
+     * @param out
+     *            不会被关闭
+     * @param width
+     * @param height
+     * @param hasAlpha
+     *            是否写入透明度
+     * @throws IOException
+     */
+    public PngWriter(OutputStream out, int width, int height, boolean hasAlpha) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("invalid size " + width + "x" + height);
+        }
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mBytesPerPixel = hasAlpha ? 4 : 3;
+        int rowBytes = width * mBytesPerPixel;
+        mRow = new byte[rowBytes];
+        mPreviousRow = new byte[rowBytes];
+        mFiltered = new byte[rowBytes + 1];
+        mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+        out.write(SIGNATURE);
+        byte[] ihdr = new byte[13];
+        writeInt(ihdr, 0, width);
+        writeInt(ihdr, 4, height);
+        ihdr[8] = 8;
+        ihdr[9] = (byte) (hasAlpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+        ihdr[10] = 0;
+        ihdr[11] = 0;
+        ihdr[12] = 0;
+        writeChunk("IHDR", ihdr, ihdr.length);
+    }
+
+    /**
+     * 写入若干行未预乘的ARGB像素
+     *
+     * @param pixels
+     * @param offset
+     *            第一个像素的位置
+     * @param stride
+     *            每行间隔的像素数
+     * @param rows
+     * @throws IOException
+     */
+    public void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+        if (mFinished || mRowCount + rows > mHeight) {
+            throw new IllegalStateException("too many rows " + (mRowCount + rows) + " > " + mHeight);
+        }
+        for (int r = 0; r < rows; r++) {
+            packRow(pixels, offset + r * stride);
+            filterRow();
+            mDeflater.setInput(mFiltered, 0, mFiltered.length);
+            while (!mDeflater.needsInput()) {
+                drain();
+            }
+            byte[] temp = mPreviousRow;
+            mPreviousRow = mRow;
+            mRow = temp;
+            mRowCount++;
+        }
+    }
+
+    /**
+     * 写入剩余数据和文件尾，不关闭输出流
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        if (mRowCount != mHeight) {
+            throw new IllegalStateException("wrote " + mRowCount + " of " + mHeight + " rows");
+        }
+        mFinished = true;
+        try {
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                drain();
+            }
+            writeChunk("IEND", mChunk, 0);
+            mOut.flush();
+        } finally {
+            mDeflater.end();
+        }
+    }
+
+    /**
+     * 放弃编码，释放Deflater
+     */
+    public void abort() {
+        mFinished = true;
+        mDeflater.end();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    private void packRow(int[] pixels, int offset) {
+        byte[] row = mRow;
+        int end = offset + mWidth;
+        int j = 0;
+        if (mBytesPerPixel == 4) {
+            for (int i = offset; i < end; i++) {
+                int color = pixels[i];
+                row[j++] = (byte) (color >> 16);
+                row[j++] = (byte) (color >> 8);
+                row[j++] = (byte) color;
+                row[j++] = (byte) (color >>> 24);
+            }
+        } else {
+            for (int i = offset; i < end; i++) {
+                int color = pixels[i];
+                row[j++] = (byte) (color >> 16);
+                row[j++] = (byte) (color >> 8);
+                row[j++] = (byte) color;
+            }
+        }
+    }
+
+    /**
+     * 选择绝对值和最小的滤波写入mFiltered
+     */
+    private void filterRow() {
+        byte[] row = mRow;
+        byte[] prev = mPreviousRow;
+        int bpp = mBytesPerPixel;
+        int length = row.length;
+        long sumNone = 0;
+        long sumSub = 0;
+        long sumUp = 0;
+        long sumPaeth = 0;
+        for (int i = 0; i < length; i++) {
+            int x = row[i] & 0xFF;
+            int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int b = prev[i] & 0xFF;
+            int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+            sumNone += Math.abs((byte) x);
+            sumSub += Math.abs((byte) (x - a));
+            sumUp += Math.abs((byte) (x - b));
+            sumPaeth += Math.abs((byte) (x - paeth(a, b, c)));
+        }
+        int filter = FILTER_NONE;
+        long best = sumNone;
+        if (sumSub < best) {
+            best = sumSub;
+            filter = FILTER_SUB;
+        }
+        if (sumUp < best) {
+            best = sumUp;
+            filter = FILTER_UP;
+        }
+        if (sumPaeth < best) {
+            filter = FILTER_PAETH;
+        }
+
+        byte[] out = mFiltered;
+        out[0] = (byte) filter;
+        for (int i = 0; i < length; i++) {
+            int x = row[i] & 0xFF;
+            int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int b = prev[i] & 0xFF;
+            int predictor;
+            switch (filter) {
+            case FILTER_SUB:
+                predictor = a;
+                break;
+            case FILTER_UP:
+                predictor = b;
+                break;
+            case FILTER_PAETH:
+                predictor = paeth(a, b, i >= bpp ? prev[i - bpp] & 0xFF : 0);
+                break;
+            default:
+                predictor = 0;
+                break;
+            }
+            out[i + 1] = (byte) (x - predictor);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * 取出压缩数据，写满一块时输出IDAT
+     */
+    private void drain() throws IOException {
+        int count = mDeflater.deflate(mChunk, mChunkLength, CHUNK_SIZE - mChunkLength);
+        mChunkLength += count;
+        if (mChunkLength == CHUNK_SIZE || (mDeflater.finished() && mChunkLength > 0)) {
+            writeChunk("IDAT", mChunk, mChunkLength);
+            mChunkLength = 0;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        writeInt(mHeader, 0, length);
+        for (int i = 0; i < 4; i++) {
+            mHeader[4 + i] = (byte) type.charAt(i);
+        }
+        mOut.write(mHeader, 0, 8);
+        mOut.write(data, 0, length);
+        mCrc.reset();
+        mCrc.update(mHeader, 4, 4);
+        mCrc.update(data, 0, length);
+        writeInt(mHeader, 0, (int) mCrc.getValue());
+        mOut.write(mHeader, 0, 4);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
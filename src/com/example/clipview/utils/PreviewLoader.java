@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.AsyncTask;
+
+/**
+ * 后台渐进加载预览图：先解码一张很小的快速预览，再解码完整预览。
+ * <p>
+ * 图片以Uri指定，直接从其文件句柄解码，不查询文件路径。
+ * 回调都在主线程，{@link #cancel(boolean)}后不再回调，已解码的Bitmap归还复用池。
+ */
+public class PreviewLoader extends AsyncTask<Void, DecodeResult, DecodeResult> {
+    /** 快速预览大小 */
+    private static final int QUICK_SIZE = 200;
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final int mSize;
+    private OnPreviewLoadListener mListener;
+    /** 已解码、尚未交给主线程的完整预览，取消时由onCancelled()归还 */
+    private DecodeResult mResult;
+
+    public interface OnPreviewLoadListener {
+        /**
+         * 预览图已解码，Bitmap交由监听者处理
+         *
+         * @param result
+         * @param isFinal
+         *            是否为完整预览
+         */
+        void onPreviewLoaded(DecodeResult result, boolean isFinal);
+
+        /**
+         * 无法打开或解码失败
+         */
+        void onPreviewFailed();
+    }
+
+    /**
+     * @param resolver
+     * @param uri
+     *            content://或file://
+     * @param size
+     *            完整预览大小，超出内存预算时缩小
+     * @param listener
+     */
+    public PreviewLoader(ContentResolver resolver, Uri uri, int size, OnPreviewLoadListener listener) {
+        mResolver = resolver;
+        mUri = uri;
+        mSize = size;
+        mListener = listener;
+    }
+
+    @Override
+    protected DecodeResult doInBackground(Void... params) {
+        if (mUri == null) {
+            return null;
+        }
+        if (mSize > QUICK_SIZE) {
+            DecodeResult quick = BitmapUtils.decodePreview(DecodeSource.fromUri(mResolver, mUri), QUICK_SIZE);
+            if (quick != null) {
+                // 取消后publishProgress()不一定回调，由这里归还
+                synchronized (this) {
+                    if (isCancelled()) {
+                        release(quick);
+                    } else {
+                        publishProgress(quick);
+                    }
+                }
+            }
+        }
+        if (isCancelled()) {
+            return null;
+        }
+        DecodeResult result = BitmapUtils.decodePreview(DecodeSource.fromUri(mResolver, mUri), mSize);
+        synchronized (this) {
+            if (isCancelled()) {
+                release(result);
+                return null;
+            }
+            mResult = result;
+        }
+        return result;
+    }
+
+    @Override
+    protected void onProgressUpdate(DecodeResult... values) {
+        if (isCancelled() || mListener == null) {
+            release(values[0]);
+            return;
+        }
+        mListener.onPreviewLoaded(values[0], false);
+    }
+
+    @Override
+    protected void onPostExecute(DecodeResult result) {
+        takeResult();
+        if (mListener == null) {
+            release(result);
+            return;
+        }
+        if (result == null) {
+            mListener.onPreviewFailed();
+        } else {
+            mListener.onPreviewLoaded(result, true);
+        }
+    }
+
+    /**
+     * API 11以上取消时回调，结果与mResult相同，统一在onCancelled()中归还
+     */
+    @Override
+    protected void onCancelled(DecodeResult result) {
+        onCancelled();
+    }
+
+    /**
+     * API 11以下取消时只回调这个方法，且可能早于doInBackground()结束，之后解码完成的结果由doInBackground()归还
+     */
+    @Override
+    protected void onCancelled() {
+        mListener = null;
+        release(takeResult());
+    }
+
+    /**
+     * 取消加载，生命周期结束时调用
+     */
+    public void cancel() {
+        synchronized (this) {
+            mListener = null;
+            cancel(false);
+        }
+    }
+
+    private synchronized DecodeResult takeResult() {
+        DecodeResult result = mResult;
+        mResult = null;
+        return result;
+    }
+
+    private static void release(DecodeResult result) {
+        if (result != null) {
+            BitmapPool.getInstance().put(result.getBitmap());
+        }
+    }
+}
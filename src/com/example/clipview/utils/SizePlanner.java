@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+/**
+ * 解码尺寸规划，不依赖Android。
+ * <p>
+ * 先取解码器能在DCT域完成的最大2的幂采样率，剩余的缩放交给
+ * inDensity/inTargetDensity在解码器内完成，解码结果即为目标大小。
+ */
+public final class SizePlanner {
+
+    private SizePlanner() {
+    }
+
+    /**
+     * 解码规划结果
+     */
+    public static final class Plan {
+        /** 2的幂采样率 */
+        public final int sampleSize;
+        /** BitmapFactory.Options.inDensity，0为不缩放 */
+        public final int density;
+        /** BitmapFactory.Options.inTargetDensity，0为不缩放 */
+        public final int targetDensity;
+        /** 解码器输出的预期宽 */
+        public final int outWidth;
+        /** 解码器输出的预期高 */
+        public final int outHeight;
+
+        Plan(int sampleSize, int density, int targetDensity, int outWidth, int outHeight) {
+            this.sampleSize = sampleSize;
+            this.density = density;
+            this.targetDensity = targetDensity;
+            this.outWidth = outWidth;
+            this.outHeight = outHeight;
+        }
+
+        public boolean isScaled() {
+            return density != 0 && targetDensity != 0 && density != targetDensity;
+        }
+
+        @Override
+        public String toString() {
+            return "Plan[sample=" + sampleSize + ",density=" + density + "->" + targetDensity + ",out=" + outWidth + "x"
+                    + outHeight + "]";
+        }
+    }
+
+    /**
+     * 规划解码参数，解码结果宽高均不小于要求宽高，且至少一边与要求相等
+     *
+     * @param srcWidth
+     *            原图宽
+     * @param srcHeight
+     *            原图高
+     * @param reqWidth
+     *            要求覆盖的宽
+     * @param reqHeight
+     *            要求覆盖的高
+     * @return
+     */
+    public static Plan plan(int srcWidth, int srcHeight, int reqWidth, int reqHeight) {
+        if (srcWidth <= 0 || srcHeight <= 0 || reqWidth <= 0 || reqHeight <= 0) {
+            return new Plan(1, 0, 0, srcWidth, srcHeight);
+        }
+        int sampleSize = Math.min(calculateSampleSize(srcWidth, reqWidth), calculateSampleSize(srcHeight, reqHeight));
+        int sampledWidth = sampledSize(srcWidth, sampleSize);
+        int sampledHeight = sampledSize(srcHeight, sampleSize);
+
+        // 取缩放比例较大的一边为基准，保证另一边同样覆盖要求大小
+        int density;
+        int targetDensity;
+        if ((long) reqWidth * sampledHeight >= (long) reqHeight * sampledWidth) {
+            density = sampledWidth;
+            targetDensity = reqWidth;
+        } else {
+            density = sampledHeight;
+            targetDensity = reqHeight;
+        }
+        if (targetDensity >= density) {
+            // 原图不够大，不放大
+            return new Plan(sampleSize, 0, 0, sampledWidth, sampledHeight);
+        }
+        return new Plan(sampleSize, density, targetDensity, scaledSize(sampledWidth, density, targetDensity), scaledSize(
+                sampledHeight, density, targetDensity));
+    }
+
+    /**
+     * 单边的2的幂采样率，采样后不小于要求大小
+     *
+     * @param srcSize
+     * @param reqSize
+     * @return
+     */
+    public static int calculateSampleSize(int srcSize, int reqSize) {
+        int sampleSize = 1;
+        if (reqSize <= 0) {
+            return sampleSize;
+        }
+        while (srcSize / (sampleSize * 2) >= reqSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * 采样后的大小，与JPEG解码器一致向上取整
+     */
+    public static int sampledSize(int size, int sampleSize) {
+        return (size + sampleSize - 1) / sampleSize;
+    }
+
+    /**
+     * 按密度缩放后的大小，与BitmapFactory一致四舍五入
+     */
+    public static int scaledSize(int size, int density, int targetDensity) {
+        if (density == 0 || targetDensity == 0) {
+            return size;
+        }
+        return (int) (size * ((float) targetDensity / density) + 0.5f);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * 批量生成缩略图。解码在按CPU核数创建的线程池中并行进行，结果按输入顺序在主线程回调。
+ * <p>
+ * 同一批次中已提交但未回调的缩略图数量受内存预算限制，回调一张后才提交下一张，
+ * 因此批次持有的Bitmap不会超出预算。
+ */
+public class ThumbnailBatch {
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService sExecutor;
+
+    private final List<String> mFilePaths;
+    private final int mSize;
+    private final boolean mScale;
+    private final Callback mCallback;
+    private final int mWindow;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Bitmap[] mResults;
+    private final boolean[] mDecoded;
+    private final Future<?>[] mFutures;
+    private int mNextSubmit;
+    private int mNextDeliver;
+    private volatile boolean mCancelled;
+
+    public interface Callback {
+        /**
+         * 按输入顺序回调，解码失败时bitmap为null
+         *
+         * @param index
+         * @param bitmap
+         */
+        void onThumbnail(int index, Bitmap bitmap);
+
+        /**
+         * 全部回调完成，取消后不回调
+         */
+        void onComplete();
+    }
+
+    /**
+     * @param filePaths
+     * @param size
+     *            区域大小
+     * @param scale
+     *            是否按比例生成
+     * @param callback
+     */
+    ThumbnailBatch(List<String> filePaths, int size, boolean scale, Callback callback) {
+        mFilePaths = new ArrayList<String>(filePaths);
+        mSize = size;
+        mScale = scale;
+        mCallback = callback;
+        int count = mFilePaths.size();
+        mResults = new Bitmap[count];
+        mDecoded = new boolean[count];
+        mFutures = new Future<?>[count];
+
+        // 按内存预算决定同时持有的缩略图数量
+        long budget = Runtime.getRuntime().maxMemory() / 8;
+        long perImage = Math.max(1, BitmapPool.getByteSize(size, size, Bitmap.Config.ARGB_8888));
+        mWindow = (int) Math.max(1, Math.min(budget / perImage, count));
+    }
+
+    void start() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mFilePaths.isEmpty()) {
+                    mCallback.onComplete();
+                    return;
+                }
+                while (!mCancelled && mNextSubmit < mWindow) {
+                    submitNext();
+                }
+            }
+        });
+    }
+
+    /**
+     * 取消整个批次，在主线程调用。已开始的解码会完成但不再回调
+     */
+    public void cancel() {
+        mCancelled = true;
+        for (int i = 0; i < mFutures.length; i++) {
+            if (mFutures[i] != null) {
+                mFutures[i].cancel(false);
+                mFutures[i] = null;
+            }
+            mResults[i] = null;
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    private void submitNext() {
+        final int index = mNextSubmit++;
+        mFutures[index] = getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                if (mCancelled) {
+                    return;
+                }
+                String filePath = mFilePaths.get(index);
+                final Bitmap bitmap = mScale ? BitmapUtils.createImageThumbnailScale(filePath, mSize) : BitmapUtils
+                        .createImageThumbnail(filePath, mSize);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDecoded(index, bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onDecoded(int index, Bitmap bitmap) {
+        if (mCancelled) {
+            return;
+        }
+        mFutures[index] = null;
+        mResults[index] = bitmap;
+        mDecoded[index] = true;
+        int count = mFilePaths.size();
+        while (!mCancelled && mNextDeliver < count && mDecoded[mNextDeliver]) {
+            int deliver = mNextDeliver++;
+            Bitmap result = mResults[deliver];
+            mResults[deliver] = null;
+            mCallback.onThumbnail(deliver, result);
+            if (!mCancelled && mNextSubmit < count) {
+                submitNext();
+            }
+        }
+        if (!mCancelled && mNextDeliver == count) {
+            mCallback.onComplete();
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(Math.max(1, CPU_COUNT), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "ThumbnailBatch #" + mCount.getAndIncrement());
+                }
+            });
+        }
+        return sExecutor;
+    }
+}
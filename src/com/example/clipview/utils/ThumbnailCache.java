@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * 缩略图两级缓存：内存中按字节大小淘汰的LruCache，磁盘上按总大小淘汰的编码后缩略图。
+ * <p>
+ * 同一个key的并发请求只解码一次，其余请求等待该次解码的结果。
+ * 缓存中的Bitmap被多处共享，取得后不能回收或归还复用池。
+ */
+public class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+    private static final String DISK_CACHE_DIR = "thumbnails";
+    private static final long DEFAULT_DISK_CACHE_SIZE = 20 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 90;
+
+    private static ThumbnailCache sInstance;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final DiskCache mDiskCache;
+    private final Map<String, FutureTask<Bitmap>> mInFlight = new HashMap<String, FutureTask<Bitmap>>();
+
+    private final AtomicInteger mMemoryHitCount = new AtomicInteger();
+    private final AtomicInteger mDiskHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicInteger mCollapsedCount = new AtomicInteger();
+
+    /**
+     * 初始化默认缓存，内存缓存为最大可用内存的1/8
+     *
+     * @param context
+     */
+    public static synchronized void init(Context context) {
+        if (sInstance == null) {
+            File dir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+            sInstance = new ThumbnailCache((int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE), dir,
+                    DEFAULT_DISK_CACHE_SIZE);
+        }
+    }
+
+    /**
+     * @return 未初始化时为null
+     */
+    public static synchronized ThumbnailCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param memoryCacheSize
+     *            内存缓存大小，单位字节
+     * @param diskCacheDir
+     * @param diskCacheSize
+     *            磁盘缓存大小，单位字节
+     */
+    public ThumbnailCache(int memoryCacheSize, File diskCacheDir, long diskCacheSize) {
+        mMemoryCache = new LruCache<String, Bitmap>(memoryCacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return BitmapPool.getByteSize(value);
+            }
+        };
+        mDiskCache = new DiskCache(diskCacheDir, diskCacheSize);
+    }
+
+    /**
+     * 缓存key：路径、文件长度、修改时间、大小、缩放模式、色彩调整
+     *
+     * @param filePath
+     * @param size
+     * @param scale
+     * @param adjustment
+     *            解码时作用于缩略图的色彩调整，改变后不再命中旧的缓存
+     * @return 文件不存在时为null
+     */
+    public static String buildKey(String filePath, int size, boolean scale, ColorAdjustment adjustment) {
+        File file = new File(filePath);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (lastModified == 0) {
+            return null;
+        }
+        return filePath + "|" + length + "|" + lastModified + "|" + size + "|" + (scale ? "scale" : "crop") + "|" + adjustment;
+    }
+
+    /**
+     * 依次从内存、磁盘中获取，都没有时用loader解码并写入缓存
+     *
+     * @param key
+     * @param loader
+     * @return
+     */
+    public Bitmap get(final String key, final Callable<Bitmap> loader) {
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            mMemoryHitCount.incrementAndGet();
+            return bitmap;
+        }
+        FutureTask<Bitmap> task;
+        boolean owner = false;
+        synchronized (mInFlight) {
+            task = mInFlight.get(key);
+            if (task == null) {
+                task = new FutureTask<Bitmap>(new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() throws Exception {
+                        return load(key, loader);
+                    }
+                });
+                mInFlight.put(key, task);
+                owner = true;
+            } else {
+                mCollapsedCount.incrementAndGet();
+            }
+        }
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (mInFlight) {
+                    mInFlight.remove(key);
+                }
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "load " + key + " failed " + e.getCause());
+            return null;
+        }
+    }
+
+    private Bitmap load(String key, Callable<Bitmap> loader) throws Exception {
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            mMemoryHitCount.incrementAndGet();
+            return bitmap;
+        }
+        bitmap = mDiskCache.get(key);
+        if (bitmap != null) {
+            mDiskHitCount.incrementAndGet();
+            mMemoryCache.put(key, bitmap);
+            return bitmap;
+        }
+        mMissCount.incrementAndGet();
+        bitmap = loader.call();
+        if (bitmap != null) {
+            mMemoryCache.put(key, bitmap);
+            mDiskCache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 清空内存缓存，内存不足时调用
+     */
+    public void evictMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    public int getMemoryHitCount() {
+        return mMemoryHitCount.get();
+    }
+
+    public int getDiskHitCount() {
+        return mDiskHitCount.get();
+    }
+
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * 与进行中的解码合并的请求数
+     */
+    public int getCollapsedCount() {
+        return mCollapsedCount.get();
+    }
+
+    public int getMemoryEvictionCount() {
+        return mMemoryCache.evictionCount();
+    }
+
+    public int getDiskEvictionCount() {
+        return mDiskCache.getEvictionCount();
+    }
+
+    @Override
+    public String toString() {
+        int memoryHits = getMemoryHitCount();
+        int diskHits = getDiskHitCount();
+        int misses = getMissCount();
+        int accesses = memoryHits + diskHits + misses;
+        int hitPercent = accesses != 0 ? (100 * (memoryHits + diskHits) / accesses) : 0;
+        return "ThumbnailCache[memory=" + mMemoryCache.size() + "/" + mMemoryCache.maxSize() + ",disk=" + mDiskCache.getSize()
+                + "/" + mDiskCache.getMaxSize() + ",memoryHits=" + memoryHits + ",diskHits=" + diskHits + ",misses=" + misses
+                + ",collapsed=" + getCollapsedCount() + ",memoryEvictions=" + getMemoryEvictionCount() + ",diskEvictions="
+                + getDiskEvictionCount() + ",hitRate=" + hitPercent + "%]";
+    }
+
+    /**
+     * 磁盘缓存，文件名为key的MD5，按最近使用顺序淘汰
+     */
+    private static class DiskCache {
+        private final File mDir;
+        private final long mMaxSize;
+        private long mSize;
+        private int mEvictionCount;
+        private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+
+        DiskCache(File dir, long maxSize) {
+            mDir = dir;
+            mMaxSize = maxSize;
+            if (!dir.exists() && !dir.mkdirs()) {
+                Log.e(TAG, "create disk cache dir failed " + dir);
+            }
+            File[] files = dir.listFiles();
+            if (files != null) {
+                // 按修改时间恢复使用顺序
+                Arrays.sort(files, new Comparator<File>() {
+                    @Override
+                    public int compare(File lhs, File rhs) {
+                        long l = lhs.lastModified();
+                        long r = rhs.lastModified();
+                        return l < r ? -1 : (l == r ? 0 : 1);
+                    }
+                });
+                for (File file : files) {
+                    if (file.getName().endsWith(".tmp")) {
+                        file.delete();
+                        continue;
+                    }
+                    mEntries.put(file.getName(), file.length());
+                    mSize += file.length();
+                }
+            }
+        }
+
+        /**
+         * 只有索引在锁内，解码在锁外，不阻塞其他线程的读写
+         */
+        Bitmap get(String key) {
+            String name = hashKey(key);
+            synchronized (this) {
+                // get()而非containsKey()，按访问顺序提前
+                if (mEntries.get(name) == null) {
+                    return null;
+                }
+            }
+            File file = new File(mDir, name);
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+            if (bitmap == null) {
+                synchronized (this) {
+                    remove(name);
+                }
+                return null;
+            }
+            BitmapLedger.getInstance().track(bitmap, "ThumbnailCache.DiskCache");
+            file.setLastModified(System.currentTimeMillis());
+            return bitmap;
+        }
+
+        /**
+         * 在锁外编码到临时文件，锁内只做重命名和索引更新
+         */
+        void put(String key, Bitmap bitmap) {
+            String name = hashKey(key);
+            File file = new File(mDir, name);
+            File tmp = null;
+            OutputStream out = null;
+            boolean success = false;
+            try {
+                // 每次写入单独的临时文件，并发写入同一个key时互不覆盖
+                tmp = File.createTempFile(name, ".tmp", mDir);
+                out = new BufferedOutputStream(new FileOutputStream(tmp), 16 * 1024);
+                if (bitmap.hasAlpha()) {
+                    success = bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                } else {
+                    success = bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "write disk cache failed " + e.getMessage());
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        success = false;
+                    }
+                }
+            }
+            if (tmp == null) {
+                return;
+            }
+            long length = tmp.length();
+            synchronized (this) {
+                if (!success || !tmp.renameTo(file)) {
+                    tmp.delete();
+                    return;
+                }
+                Long old = mEntries.put(name, length);
+                if (old != null) {
+                    mSize -= old;
+                }
+                mSize += length;
+                trimToSize();
+            }
+        }
+
+        private void trimToSize() {
+            Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+            while (mSize > mMaxSize && it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                it.remove();
+                new File(mDir, entry.getKey()).delete();
+                mSize -= entry.getValue();
+                mEvictionCount++;
+            }
+        }
+
+        private void remove(String name) {
+            Long size = mEntries.remove(name);
+            if (size != null) {
+                mSize -= size;
+            }
+            new File(mDir, name).delete();
+        }
+
+        synchronized long getSize() {
+            return mSize;
+        }
+
+        long getMaxSize() {
+            return mMaxSize;
+        }
+
+        synchronized int getEvictionCount() {
+            return mEvictionCount;
+        }
+
+        private static String hashKey(String key) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("MD5");
+                byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+                StringBuilder builder = new StringBuilder(bytes.length * 2);
+                for (byte b : bytes) {
+                    builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    builder.append(Character.forDigit(b & 0xF, 16));
+                }
+                return builder.toString();
+            } catch (NoSuchAlgorithmException e) {
+                return String.valueOf(key.hashCode());
+            } catch (IOException e) {
+                return String.valueOf(key.hashCode());
+            }
+        }
+    }
+}
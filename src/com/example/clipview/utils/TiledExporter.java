@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * 分块导出截取区域，输出大小不受堆内存限制。
+ * <p>
+ * 输出按整行分条，每条经{@link ClipTransform}反算出原图上的四边形，按竖直条带切成边长固定的块，
+ * 只解码与四边形相交的块，用BitmapRegionDecoder解码后做与{@link BitmapUtils#decodeClipRegion}相同的旋转、缩放，
+ * 画完一条后逐行写入{@link PngWriter}。任意角度下单次解码都不超过{@link #MAX_TILE_BYTES}。
+ * 解码块按采样率对齐到截取区域左上角，并多解码几个采样像素供过滤使用，块与块、条与条的接缝处过滤的输入相同。
+ * 内存占用为一条输出和一个解码块。
+ */
+final class TiledExporter {
+    /** 每条输出的目标字节数 */
+    private static final int BAND_BYTES = 1024 * 1024;
+    /** 解码块四周多解码的采样像素，供双线性过滤使用 */
+    private static final int PADDING = 2;
+    /** 解码块的最大边长，单位为采样像素 */
+    private static final int TILE_SIZE = 512;
+    /** 非直角旋转时解码块的最小宽度，避免过多的decodeRegion()调用 */
+    private static final int MIN_TILE_SIZE = 64;
+    /** 单个解码块的字节数上限 */
+    private static final int MAX_TILE_BYTES = (TILE_SIZE + 2 * PADDING) * (TILE_SIZE + 2 * PADDING) * 4;
+
+    private TiledExporter() {
+    }
+
+    /**
+     * 解码截取区域并以PNG写入out，out不会被关闭
+     *
+     * @param source
+     *            导出后关闭
+     * @param clipMatrix
+     *            预览图坐标到截取区域坐标的矩阵
+     * @param clipWidth
+     *            截取区域宽
+     * @param clipHeight
+     *            截取区域高
+     * @param previewWidth
+     * @param previewHeight
+     * @param size
+     *            输出最长边，不放大
+     * @param out
+     * @return 输出宽高
+     * @throws IOException
+     *             解码或写入失败
+     */
+    static int[] export(DecodeSource source, Matrix clipMatrix, int clipWidth, int clipHeight, int previewWidth,
+            int previewHeight, int size, OutputStream out) throws IOException {
+        if (clipMatrix == null || clipWidth <= 0 || clipHeight <= 0 || previewWidth <= 0 || previewHeight <= 0
+                || size <= 0) {
+            source.close();
+            throw new IllegalArgumentException("invalid clip " + clipWidth + "x" + clipHeight + " in " + previewWidth
+                    + "x" + previewHeight);
+        }
+        BitmapRegionDecoder decoder = null;
+        Bitmap band = null;
+        PngWriter writer = null;
+        boolean success = false;
+        try {
+            // 透明度在写入文件头前确定，只有JPEG确定没有透明度
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            boolean sourceAlpha = !source.decodeBounds(bounds) || DecodePlanner.mayHaveAlpha(bounds.outMimeType);
+            decoder = source.newRegionDecoder();
+            ClipTransform transform = new ClipTransform();
+            if (!transform.set(clipMatrix, clipWidth, clipHeight, previewWidth, previewHeight, decoder.getWidth(),
+                    decoder.getHeight(), size)) {
+                throw new IllegalArgumentException("clip " + clipWidth + "x" + clipHeight + " outside source");
+            }
+            Rect region = transform.region;
+
+            // 采样率和剩余缩放与一次解码相同，但不受内存预算限制
+            int[] req = new int[2];
+            transform.getRequiredSize(req);
+            int sampleSize = SizePlanner.plan(region.width(), region.height(), req[0], req[1]).sampleSize;
+            int sampledWidth = SizePlanner.sampledSize(region.width(), sampleSize);
+            int sampledHeight = SizePlanner.sampledSize(region.height(), sampleSize);
+            int outWidth = transform.outputWidth;
+            int outHeight = transform.outputHeight;
+            // 非直角旋转时四角在原图外，需要透明度
+            boolean hasAlpha = sourceAlpha || !transform.isRectilinear();
+
+            int bandRows = Math.max(1, Math.min(outHeight, BAND_BYTES / (outWidth * 4)));
+            // 直角旋转时输出条对应原图上的一条，按最大解码块宽度切分；其他角度时对应斜的四边形，
+            // 条带宽度接近输出条在采样后原图上的高度，使解码块的面积接近四边形实际覆盖的面积
+            int slabWidth = TILE_SIZE;
+            if (!transform.isRectilinear()) {
+                float bandHeight = bandRows * transform.getSourcePixelsPerOutput() / sampleSize;
+                slabWidth = Math.max(MIN_TILE_SIZE, Math.min(TILE_SIZE, (int) Math.ceil(bandHeight)));
+            }
+            band = BitmapPool.getInstance().get(outWidth, bandRows, Bitmap.Config.ARGB_8888);
+            int[] pixels = new int[outWidth * bandRows];
+            Canvas canvas = new Canvas(band);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            Matrix tileMatrix = new Matrix();
+            float[] quad = new float[8];
+            float[] extent = new float[2];
+            Rect core = new Rect();
+            Rect tileRect = new Rect();
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            writer = new PngWriter(out, outWidth, outHeight, hasAlpha);
+
+            for (int y = 0; y < outHeight; y += bandRows) {
+                int rows = Math.min(bandRows, outHeight - y);
+                // 输出条四角对应的原图四边形，换算到以截取区域左上角为原点的采样像素
+                quad[0] = 0;
+                quad[1] = y;
+                quad[2] = outWidth;
+                quad[3] = y;
+                quad[4] = outWidth;
+                quad[5] = y + rows;
+                quad[6] = 0;
+                quad[7] = y + rows;
+                transform.mapToSource(quad);
+                float minX = Float.MAX_VALUE;
+                float maxX = -Float.MAX_VALUE;
+                for (int i = 0; i < 8; i += 2) {
+                    quad[i] = (quad[i] - region.left) / sampleSize;
+                    quad[i + 1] = (quad[i + 1] - region.top) / sampleSize;
+                    minX = Math.min(minX, quad[i]);
+                    maxX = Math.max(maxX, quad[i]);
+                }
+
+                band.eraseColor(0);
+                int slabEnd = Math.min(sampledWidth, (int) Math.ceil(maxX));
+                for (int left = Math.max(0, (int) Math.floor(minX)); left < slabEnd; left += slabWidth) {
+                    int right = Math.min(slabEnd, left + slabWidth);
+                    if (!ClipGeometry.slabExtent(quad, left, right, extent)) {
+                        continue;
+                    }
+                    int bottom = Math.min(sampledHeight, (int) Math.ceil(extent[1]));
+                    for (int top = Math.max(0, (int) Math.floor(extent[0])); top < bottom; top += TILE_SIZE) {
+                        core.set(left, top, right, Math.min(bottom, top + TILE_SIZE));
+                        drawTile(decoder, transform, core, sampleSize, sampledWidth, sampledHeight, y, options,
+                                tileRect, tileMatrix, canvas, paint);
+                    }
+                }
+                band.getPixels(pixels, 0, outWidth, 0, 0, outWidth, rows);
+                writer.writeRows(pixels, 0, outWidth, rows);
+            }
+            writer.finish();
+            success = true;
+            return new int[] { outWidth, outHeight };
+        } finally {
+            if (writer != null && !success) {
+                writer.abort();
+            }
+            BitmapPool.getInstance().put(band);
+            if (decoder != null) {
+                decoder.recycle();
+            }
+            source.close();
+        }
+    }
+
+    /**
+     * 解码一块并画到输出条上，只画不含过滤边距的部分，相邻块的接缝处不会重复绘制
+     *
+     * @param core
+     *            采样后的块，以截取区域左上角为原点
+     * @param y
+     *            输出条的上边
+     * @throws IOException
+     *             解码失败
+     */
+    private static void drawTile(BitmapRegionDecoder decoder, ClipTransform transform, Rect core, int sampleSize,
+            int sampledWidth, int sampledHeight, int y, BitmapFactory.Options options, Rect tileRect,
+            Matrix tileMatrix, Canvas canvas, Paint paint) throws IOException {
+        Rect region = transform.region;
+        int left = Math.max(0, core.left - PADDING);
+        int top = Math.max(0, core.top - PADDING);
+        int right = Math.min(sampledWidth, core.right + PADDING);
+        int bottom = Math.min(sampledHeight, core.bottom + PADDING);
+        if ((right - left) * (bottom - top) * 4 > MAX_TILE_BYTES) {
+            throw new IllegalStateException("tile " + core + " exceeds " + MAX_TILE_BYTES + " bytes");
+        }
+        tileRect.set(region.left + left * sampleSize, region.top + top * sampleSize,
+                Math.min(region.right, region.left + right * sampleSize),
+                Math.min(region.bottom, region.top + bottom * sampleSize));
+        Bitmap tile = decoder.decodeRegion(tileRect, options);
+        if (tile == null) {
+            throw new IOException("decode region " + tileRect + " failed");
+        }
+        try {
+            transform.getTileMatrix(tileRect.left, tileRect.top, sampleSize, tileMatrix);
+            tileMatrix.postTranslate(0, -y);
+            canvas.save();
+            canvas.concat(tileMatrix);
+            canvas.clipRect(core.left - left, core.top - top, core.right - left, core.bottom - top);
+            canvas.drawBitmap(tile, 0, 0, paint);
+            canvas.restore();
+        } finally {
+            BitmapPool.getInstance().put(tile);
+        }
+    }
+}
@@ -17,26 +17,24 @@
 
 package com.example.clipview.view;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
-import android.graphics.Point;
+import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.net.Uri;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
-import android.os.Handler.Callback;
-import android.os.Message;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.FloatMath;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
@@ -47,6 +45,12 @@ import android.widget.ImageView;
 import android.widget.RelativeLayout;
 
 import com.example.clipview.R;
+import com.example.clipview.utils.BitmapExporter;
+import com.example.clipview.utils.BitmapLedger;
+import com.example.clipview.utils.BitmapPool;
+import com.example.clipview.utils.BitmapUtils;
+import com.example.clipview.utils.ClipGeometry;
+import com.example.clipview.utils.DecodeSource;
 
 public class ClipLayout extends RelativeLayout implements OnTouchListener,
         OnClickListener {
@@ -55,6 +59,7 @@ public class ClipLayout extends RelativeLayout implements OnTouchListener,
 
     private ClipView mClipView;
     private ImageView mSouceImageView;
+    private TileView mTileView;
 
     private int mClipViewHeight = DEFAULT_SIZE;
     private int mClipViewWidth = DEFAULT_SIZE;
@@ -75,9 +80,18 @@ public class ClipLayout extends RelativeLayout implements OnTouchListener,
 
     private DisplayMetrics dm;
     private Bitmap mBitmap;
+    private int mOrientation;
     private boolean mIsBeginTracking = false;
     private Window mWindow;
 
+    // 触摸过程中使用的临时数据，避免每个事件创建对象
+    private final float[] mValues = new float[9];
+    private final float[] mToValues = new float[9];
+    private final float[] mVisible = new float[4];
+    private final float[] mClip = new float[4];
+    private final float[] mTranslation = new float[2];
+    private final float[] mInverse = new float[9];
+
     public ClipLayout(Context context) {
         super(context);
         init(context);
@@ -99,6 +113,7 @@ public class ClipLayout extends RelativeLayout implements OnTouchListener,
                 this);
         mClipView = (ClipView) findViewById(R.id.clipview);
         mSouceImageView = (ImageView) findViewById(R.id.src_pic);
+        mTileView = (TileView) findViewById(R.id.tile_view);
         mSouceImageView.setOnTouchListener(this);
         findViewById(R.id.bt_roate_left).setOnClickListener(this);
         findViewById(R.id.bt_roate_right).setOnClickListener(this);
@@ -114,10 +129,12 @@ public class ClipLayout extends RelativeLayout implements OnTouchListener,
      * @param degree
      */
     public void rotate(float degree) {
-        RectF rect = mClipView.getClipRect();
-        matrix.postRotate(degree, (rect.left + rect.right) / 2,
-                (rect.top + rect.bottom) / 2);
-        mSouceImageView.setImageMatrix(matrix);
+        mAnimator.cancel();
+        mClipView.getClipRect(mClip);
+        matrix.postRotate(degree,
+                (mClip[ClipGeometry.LEFT] + mClip[ClipGeometry.RIGHT]) / 2,
+                (mClip[ClipGeometry.TOP] + mClip[ClipGeometry.BOTTOM]) / 2);
+        setImageMatrix(matrix);
         mBeforeTrackMatrix.set(matrix);
     }
 
@@ -127,39 +144,117 @@ public class ClipLayout extends RelativeLayout implements OnTouchListener,
         super.onSizeChanged(w, h, oldw, oldh);
         if (h != 0) {
             centerClip(mBitmap);
-            mSouceImageView.setImageMatrix(matrix);
+            setImageMatrix(matrix);
         }
     }
 
     public void setSourceImage(Bitmap bitmap, Window window) {
+        setSourceImage(bitmap, 0, window);
+    }
+
+    /**
+     * 设置源图片，覆盖截图框的缩放和EXIF方向都通过图片矩阵实现，不复制、不旋转像素。
+     * 缩放和位置重置为刚好覆盖截图框
+     * 
+     * @param bitmap
+     *            所有权转移给ClipLayout，调用者之后不能再使用或归还复用池
+     * @param orientation
+     *            显示时需要顺时针旋转的角度
+     * @param window
+     */
+    public void setSourceImage(Bitmap bitmap, int orientation, Window window) {
         if (bitmap == null)
             return;
+        mAnimator.cancel();
         int srcWidth = bitmap.getWidth();
         int srcHeight = bitmap.getHeight();
         float scaleWidth = (float) (mClipViewWidth) / (float) srcWidth;
         float scaleHeight = (float) (mClipViewHeight) / (float) srcHeight;
+        if (orientation == 90 || orientation == 270) {
+            scaleWidth = (float) (mClipViewWidth) / (float) srcHeight;
+            scaleHeight = (float) (mClipViewHeight) / (float) srcWidth;
+        }
         float scale = Math.max(scaleWidth, scaleHeight);
-        Matrix matrix = new Matrix();
-        matrix.postScale(scale, scale);
-        mBitmap = Bitmap.createBitmap(bitmap, 0, 0, srcWidth, srcHeight,
-                matrix, true);
-        mSouceImageView.setImageBitmap(mBitmap);
+        replaceBitmap(bitmap);
 
         mWindow = window;
+        mOrientation = orientation;
+        matrix.setScale(scale, scale);
+        if (orientation != 0) {
+            matrix.postRotate(orientation, srcWidth * scale / 2.0f,
+                    srcHeight * scale / 2.0f);
+        }
         centerClip(mBitmap);
-        mSouceImageView.setImageMatrix(matrix);
+        setImageMatrix(matrix);
+        mBeforeTrackMatrix.set(matrix);
+    }
+
+    /**
+     * 换成当前图片的高清版本，保持用户当前的缩放和位置。
+     * 还没有图片或方向不同时按{@link #setSourceImage(Bitmap, int, Window)}重置
+     * 
+     * @param bitmap
+     *            与当前图片为同一张图，所有权转移给ClipLayout
+     * @param orientation
+     *            显示时需要顺时针旋转的角度
+     * @param window
+     */
+    public void upgradeSourceImage(Bitmap bitmap, int orientation, Window window) {
+        if (bitmap == null)
+            return;
+        if (mBitmap == null || orientation != mOrientation) {
+            setSourceImage(bitmap, orientation, window);
+            return;
+        }
+        mAnimator.cancel();
+        int oldWidth = mBitmap.getWidth();
+        int oldHeight = mBitmap.getHeight();
+        replaceBitmap(bitmap);
+        mWindow = window;
+        // 新图片按原图片大小显示，矩阵保持不变
+        float scaleX = (float) oldWidth / (float) bitmap.getWidth();
+        float scaleY = (float) oldHeight / (float) bitmap.getHeight();
+        matrix.preScale(scaleX, scaleY);
+        savedMatrix.preScale(scaleX, scaleY);
+        mLastCurrentMatrix.preScale(scaleX, scaleY);
+        mBeforeTrackMatrix.preScale(scaleX, scaleY);
+        setImageMatrix(matrix);
+    }
+
+    private void replaceBitmap(Bitmap bitmap) {
+        BitmapLedger.getInstance().attach(bitmap, this);
+        mSouceImageView.setImageBitmap(bitmap);
+        if (mBitmap != bitmap) {
+            BitmapPool.getInstance().put(mBitmap);
+        }
+        mBitmap = bitmap;
+        mTileView.setPreviewSize(bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    /**
+     * 设置原图，放大到预览图不够清晰时从原图分块解码可见区域
+     * 
+     * @param imageUri
+     */
+    public void setTileSource(Uri imageUri) {
+        mTileView.setSource(getContext().getContentResolver(), imageUri);
     }
 
     public void onDestory() {
+        mAnimator.cancel();
+        mTileView.release();
         if (mBitmap != null && !mBitmap.isRecycled()) {
-            mBitmap.recycle();
+            mSouceImageView.setImageDrawable(null);
+            BitmapPool.getInstance().put(mBitmap);
             mBitmap = null;
         }
+        BitmapLedger.getInstance().onOwnerDestroyed(this);
     }
 
     public boolean onTouch(View v, MotionEvent event) {
         switch (event.getAction() & MotionEvent.ACTION_MASK) {
         case MotionEvent.ACTION_DOWN:
+            mAnimator.cancel();
             savedMatrix.set(matrix);
             mLastCurrentMatrix.set(matrix);
             start.set(event.getX(), event.getY());
@@ -198,8 +293,6 @@ public class ClipLayout extends RelativeLayout implements OnTouchListener,
 
         if (isMatrixOutFrame(matrix)) {
             mIsBeginTracking = true;
-            Matrix m = new Matrix();
-            m.set(matrix);
         } else {
             mIsBeginTracking = false;
             mBeforeTrackMatrix.set(savedMatrix);
@@ -214,7 +307,7 @@ public class ClipLayout extends RelativeLayout implements OnTouchListener,
                 animate(matrix, savedMatrix);
             }
         } else {
-            mSouceImageView.setImageMatrix(matrix);
+            setImageMatrix(matrix);
         }
 
         return true;
@@ -231,189 +324,179 @@ public class ClipLayout extends RelativeLayout implements OnTouchListener,
     private void midPoint(PointF point, MotionEvent event) {
         float x = event.getX(0) + event.getX(1);
         float y = event.getY(0) + event.getY(1);
-        Log.e(event.getX(0) + "", event.getY(0) + "");
         point.set(x / 2, y / 2);
     }
 
     /**
-     * 改变化矩阵是否超出框架
+     * 预览图和分块显示层使用同一个图片矩阵
+     * 
+     * @param m
+     */
+    private void setImageMatrix(Matrix m) {
+        mSouceImageView.setImageMatrix(m);
+        mTileView.setImageMatrix(m);
+    }
+
+    /**
+     * 改变化矩阵是否超出框架，即截图框是否有部分不在图片内，支持任意旋转角度
      * 
      * @param matrix
      * @return
      */
     private boolean isMatrixOutFrame(final Matrix matrix) {
-        RectF visibleRect = getVisibleRect(matrix);
-        RectF snapRect = mClipView.getClipRect();
-        return !visibleRect.contains(snapRect);
+        Drawable drawable = mSouceImageView.getDrawable();
+        if (drawable == null) {
+            return true;
+        }
+        Rect rect = drawable.getBounds();
+        matrix.getValues(mValues);
+        mClipView.getClipRect(mClip);
+        return !ClipGeometry.covers(mValues, rect.width(), rect.height(), mClip,
+                mInverse);
     }
 
     /* 获取矩形区域内的图片 */
     public Bitmap getBitmap() {
-        Rect rect = getClipRect();
-        if (rect == null) {
+        Matrix clipMatrix = new Matrix();
+        int[] clipSize = new int[2];
+        if (!getClipMatrix(clipMatrix, clipSize)) {
             return null;
         }
+        // 按预览图分辨率输出，最长边不超过DEFAULT_SIZE
+        float pixelSize = clipMatrix.mapRadius(1);
+        float width = clipSize[0] / pixelSize;
+        float height = clipSize[1] / pixelSize;
         int avatarDefaultSize = DEFAULT_SIZE;
         float scale = 1;
-        int maxEdge = (int) Math.max(rect.width(), rect.height());
+        float maxEdge = Math.max(width, height);
         if (maxEdge > avatarDefaultSize) {
-            scale = (float) avatarDefaultSize / (float) maxEdge;
-        }
-        Matrix matrix = new Matrix();
-        matrix.setRotate(getDegrees());
-        matrix.postScale(scale, scale);
-        Bitmap bitmap = Bitmap.createBitmap(mBitmap, (int) (rect.left),
-                (int) (rect.top), (int) (rect.right - rect.left),
-                (int) (rect.bottom - rect.top), matrix, false);
+            scale = (float) avatarDefaultSize / maxEdge;
+        }
+        int outWidth = Math.max(1, Math.round(width * scale));
+        int outHeight = Math.max(1, Math.round(height * scale));
+        clipMatrix.postScale((float) outWidth / (float) clipSize[0],
+                (float) outHeight / (float) clipSize[1]);
+        Bitmap.Config config = mBitmap.getConfig();
+        if (config == null || !clipMatrix.rectStaysRect()) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        Bitmap bitmap = Bitmap.createBitmap(outWidth, outHeight, config);
+        // 非直角旋转时过滤以减少锯齿
+        new Canvas(bitmap).drawBitmap(mBitmap, clipMatrix,
+                clipMatrix.rectStaysRect() ? null : new Paint(
+                        Paint.FILTER_BITMAP_FLAG));
+        BitmapLedger.getInstance().track(bitmap, "ClipLayout.getBitmap");
         return bitmap;
     }
 
     /**
-     * 获取图片可视区域，原圖左上角为top，右下脚为bottom
+     * 在主线程记录当前截取区域，返回的Callable可在后台线程中按该区域解码。
+     * API 10以下没有区域解码器，在主线程按预览图截取
      * 
-     * @return
+     * @param imageUri
+     *            原图Uri，从其文件句柄解码
+     * @param size
+     *            输出图片最大边长
+     * @return 没有图片时为null
      */
-    private Rect getScaleRect() {
-        Rect rect = mSouceImageView.getDrawable().getBounds();
-        int width = rect.width();
-        int height = rect.height();
-        final Matrix matrix = mSouceImageView.getImageMatrix();
-        float[] values = new float[9];
-        matrix.getValues(values);
-
-        Rect visibleRect = new Rect();
-        width = (int) (width * values[8]);
-        height = (int) (height * values[8]);
-        visibleRect.left = (int) values[2];
-        visibleRect.top = (int) values[5];
-        visibleRect.right = (int) (visibleRect.left + width * values[0] + height
-                * values[1]);
-        visibleRect.bottom = (int) (visibleRect.top + height * values[0] - width
-                * values[1]);
-
-        return visibleRect;
+    public Callable<Bitmap> newClipDecoder(final Uri imageUri, final int size) {
+        if (!DecodeSource.isRegionDecoderSupported()) {
+            return newPreviewClipDecoder();
+        }
+        final Matrix clipMatrix = new Matrix();
+        final int[] clipSize = new int[2];
+        final ContentResolver resolver = getContext().getContentResolver();
+        if (!getClipMatrix(clipMatrix, clipSize)) {
+            return null;
+        }
+        final int previewWidth = mBitmap.getWidth();
+        final int previewHeight = mBitmap.getHeight();
+        return new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return BitmapUtils.decodeClipRegion(DecodeSource.fromUri(resolver, imageUri), clipMatrix,
+                        clipSize[0], clipSize[1], previewWidth, previewHeight, size);
+            }
+        };
     }
 
     /**
-     * 获取截图后，针对于原始图片的区域
+     * 在主线程记录当前截取区域，在后台分块解码并导出为PNG，用于超出内存的大尺寸输出。
+     * API 10以下没有区域解码器，导出按预览图截取的图片
      * 
-     * @return
+     * @param imageUri
+     *            原图Uri
+     * @param size
+     *            输出图片最大边长
+     * @param file
+     *            目标文件
+     * @param callback
+     * @return 没有图片时为null
      */
-    private Rect getClipRect() {
-        if (mBitmap == null) {
+    public Future<?> exportTiled(Uri imageUri, int size, File file, BitmapExporter.Callback callback) {
+        if (!DecodeSource.isRegionDecoderSupported()) {
+            Callable<Bitmap> decoder = newPreviewClipDecoder();
+            return decoder == null ? null : BitmapExporter.getInstance().export(decoder, file,
+                    Bitmap.CompressFormat.PNG, 100, BitmapExporter.NO_LIMIT, callback);
+        }
+        Matrix clipMatrix = new Matrix();
+        int[] clipSize = new int[2];
+        if (!getClipMatrix(clipMatrix, clipSize)) {
             return null;
         }
-        Rect scale = getScaleRect();
-        RectF insert = getInsertRect(mSouceImageView.getImageMatrix());
-
-        int originalWidth = mBitmap.getWidth();
-        int originalHeight = mBitmap.getHeight();
-
-        Point top = getCloest(new Point(scale.left, scale.top), new Point(
-                (int) insert.left, (int) insert.top), new Point(
-                (int) insert.left, (int) insert.bottom), new Point(
-                (int) insert.right, (int) insert.top), new Point(
-                (int) insert.right, (int) insert.bottom));
-        Point bottom = getFarthest(new Point(scale.left, scale.top), new Point(
-                (int) insert.left, (int) insert.top), new Point(
-                (int) insert.left, (int) insert.bottom), new Point(
-                (int) insert.right, (int) insert.top), new Point(
-                (int) insert.right, (int) insert.bottom));
-
-        // TODO：可否考虑矩阵求逆（以后再讨论）
-        int scaleWidth = Math.abs(scale.right - scale.left);
-        int scaleHeight = Math.abs(scale.bottom - scale.top);
-        float startXPercent = (float) Math.abs((top.x - scale.left))
-                / (float) scaleWidth;
-        float endXPercent = (float) Math.abs((bottom.x - scale.left))
-                / (float) scaleWidth;
-        float startYPercent = (float) Math.abs((top.y - scale.top))
-                / (float) scaleHeight;
-        float endYPercent = (float) Math.abs((bottom.y - scale.top))
-                / (float) scaleHeight;
-        int degrees = getDegrees();
-        if (degrees == 90 || degrees == 270) {
-            scaleWidth = Math.abs(scale.bottom - scale.top);
-            scaleHeight = Math.abs(scale.right - scale.left);
-            startXPercent = (float) Math.abs((top.y - scale.top))
-                    / (float) scaleWidth;
-            endXPercent = (float) Math.abs((bottom.y - scale.top))
-                    / (float) scaleWidth;
-            startYPercent = (float) Math.abs((top.x - scale.left))
-                    / (float) scaleHeight;
-            endYPercent = (float) Math.abs((bottom.x - scale.left))
-                    / (float) scaleHeight;
-        }
-
-        Rect resultRec = new Rect((int) (originalWidth * startXPercent),
-                (int) (originalHeight * startYPercent),
-                (int) (originalWidth * endXPercent),
-                (int) (originalHeight * endYPercent));
-        return resultRec;
-    }
-
-    private Point getFarthest(final Point target, Point... points) {
-
-        Comparator<Point> comparator = new Comparator<Point>() {
-
-            @Override
-            public int compare(Point o1, Point o2) {
-                double p1_Top = Math.pow(o1.x - target.x, 2)
-                        + Math.pow(o1.y - target.y, 2);
-                double p2_Top = Math.pow(o2.x - target.x, 2)
-                        + Math.pow(o2.y - target.y, 2);
-
-                if (p1_Top < p2_Top)
-                    return 1;
-                else if (p1_Top == p2_Top)
-                    return 0;
-                else
-                    return -1;
-            }
-        };
-
-        List<Point> list = Arrays.asList(points);
-        Collections.sort(list, comparator);
-        return list.get(0);
+        return BitmapExporter.getInstance().exportTiled(
+                DecodeSource.fromUri(getContext().getContentResolver(), imageUri), clipMatrix,
+                clipSize[0], clipSize[1], mBitmap.getWidth(), mBitmap.getHeight(), size, file, callback);
     }
 
-    private Point getCloest(final Point target, Point... points) {
-
-        Comparator<Point> comparator = new Comparator<Point>() {
-
+    /**
+     * 在主线程按预览图截取，返回的Callable直接交出结果
+     * 
+     * @return 没有图片时为null
+     */
+    private Callable<Bitmap> newPreviewClipDecoder() {
+        final Bitmap bitmap = getBitmap();
+        if (bitmap == null) {
+            return null;
+        }
+        return new Callable<Bitmap>() {
             @Override
-            public int compare(Point o1, Point o2) {
-                double p1_Top = Math.pow(o1.x - target.x, 2)
-                        + Math.pow(o1.y - target.y, 2);
-                double p2_Top = Math.pow(o2.x - target.x, 2)
-                        + Math.pow(o2.y - target.y, 2);
-
-                if (p1_Top < p2_Top)
-                    return -1;
-                else if (p1_Top == p2_Top)
-                    return 0;
-                else
-                    return 1;
+            public Bitmap call() {
+                return bitmap;
             }
         };
-
-        List<Point> list = Arrays.asList(points);
-        Collections.sort(list, comparator);
-        return list.get(0);
     }
 
-    private int getDegrees() {
-        Rect scale = getScaleRect();
-        int degrees = 0;
-        if (scale.left > scale.right && scale.top < scale.bottom)
-            degrees = 90;
-        else if (scale.left > scale.right && scale.top > scale.bottom)
-            degrees = 180;
-        else if (scale.left < scale.right && scale.top > scale.bottom)
-            degrees = 270;
-        else
-            degrees = 0;
-        return degrees;
+    /**
+     * 获取截图后的截取矩阵：预览图坐标经图片矩阵变换到屏幕，再平移到截取区域左上角。
+     * 截取区域为截图框与图片可视区域的交叉区域，导出时求逆映射回原图，支持任意旋转角度
+     * 
+     * @param out
+     *            预览图坐标到截取区域坐标的矩阵
+     * @param size
+     *            截取区域宽高
+     * @return 没有图片或截图框与图片不相交时为false
+     */
+    private boolean getClipMatrix(Matrix out, int[] size) {
+        if (mBitmap == null) {
+            return false;
+        }
+        Matrix imageMatrix = mSouceImageView.getImageMatrix();
+        imageMatrix.getValues(mValues);
+        mClipView.getClipRect(mClip);
+        if (!ClipGeometry.cropRegion(mValues, mBitmap.getWidth(),
+                mBitmap.getHeight(), mClip, mInverse, mVisible)
+                || !getInsertRect(imageMatrix, mVisible)) {
+            return false;
+        }
+        size[0] = Math.round(mVisible[ClipGeometry.RIGHT]
+                - mVisible[ClipGeometry.LEFT]);
+        size[1] = Math.round(mVisible[ClipGeometry.BOTTOM]
+                - mVisible[ClipGeometry.TOP]);
+        out.set(imageMatrix);
+        out.postTranslate(-mVisible[ClipGeometry.LEFT],
+                -mVisible[ClipGeometry.TOP]);
+        return size[0] > 0 && size[1] > 0;
     }
 
     int statusBarHeight = 0;
@@ -440,45 +523,39 @@ public class ClipLayout extends RelativeLayout implements OnTouchListener,
     }
 
     private boolean isOutScale(Matrix matrix) {
-    boolean isOutMaxScale=false;
-    float p[] = new float[9];
-    matrix.getValues(p);
-    float minScaleSize=Math.min(getVisibleRect(matrix).width(), getVisibleRect(matrix).height());
-    if (minScaleSize > (getWidth() * MAX_SCALE)) {
-        isOutMaxScale = true;
-    }
-    return isOutMaxScale;
-}
+        getVisibleRect(matrix, mVisible);
+        float minScaleSize = Math.min(mVisible[ClipGeometry.RIGHT]
+                - mVisible[ClipGeometry.LEFT], mVisible[ClipGeometry.BOTTOM]
+                - mVisible[ClipGeometry.TOP]);
+        return minScaleSize > (getWidth() * MAX_SCALE);
+    }
     
     private void scaleFit(Bitmap bitmap, float width, float height) {
         if (bitmap == null) {
             return;
         }
-        Matrix m = new Matrix();
-        m.set(matrix);
+        // 按显示大小计算，图片矩阵中已包含覆盖截图框的缩放
         RectF rect = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
-        m.mapRect(rect);
+        matrix.mapRect(rect);
 
-        float p[] = new float[9];
-        matrix.getValues(p);
-        float sourceHeight = bitmap.getWidth();
-        float sourceWidth = bitmap.getHeight();
+        float sourceHeight = rect.height();
+        float sourceWidth = rect.width();
         float disHeight = sourceHeight - height;
         float disWidth = sourceWidth - width;
         if (sourceHeight > height && sourceWidth > sourceWidth) {
             if (disHeight > disWidth) {
-                matrix.setScale(height / sourceHeight, height / sourceHeight);
+                matrix.postScale(height / sourceHeight, height / sourceHeight);
             } else {
-                matrix.setScale(width / sourceWidth, width / sourceWidth);
+                matrix.postScale(width / sourceWidth, width / sourceWidth);
             }
         }
         if (sourceHeight < height && sourceWidth < width) {
             if (disHeight < disWidth) {
-                matrix.setScale(height / sourceHeight, height / sourceHeight,
+                matrix.postScale(height / sourceHeight, height / sourceHeight,
                         getWidth() / 2, 0);
 
             } else {
-                matrix.setScale(width / sourceWidth, width / sourceWidth,
+                matrix.postScale(width / sourceWidth, width / sourceWidth,
                         getWidth() / 2, 0);
             }
         }
@@ -493,9 +570,9 @@ public class ClipLayout extends RelativeLayout implements OnTouchListener,
         if (isChange) {
             isChange = false;
             scaleFit(mBitmap, mClipViewWidth, mClipViewHeight);
-            mSouceImageView.setImageMatrix(matrix);
+            setImageMatrix(matrix);
             centerClip(mBitmap);
-            mSouceImageView.setImageMatrix(matrix);
+            setImageMatrix(matrix);
         }
     }
 
@@ -537,206 +614,87 @@ public class ClipLayout extends RelativeLayout implements OnTouchListener,
     }
 
     /**
+     * 回弹到toMatrix，平移时先按截图框修正toMatrix的平移量
+     * 
      * @param fromMatrix
      * @param toMatrix
      */
     private void animate(Matrix fromMatrix, Matrix toMatrix) {
-        RectF fromRect = getVisibleRect(fromMatrix);
-        RectF toRect = getVisibleRect(toMatrix);
-        boolean isTranslate = fromRect.width() == toRect.width();
-        if (isTranslate) {
+        getVisibleRect(fromMatrix, mVisible);
+        float fromWidth = mVisible[ClipGeometry.RIGHT] - mVisible[ClipGeometry.LEFT];
+        getVisibleRect(toMatrix, mVisible);
+        float toWidth = mVisible[ClipGeometry.RIGHT] - mVisible[ClipGeometry.LEFT];
+        if (fromWidth == toWidth && fromMatrix.rectStaysRect()) {
+            // 只是坐标平移变换，非直角旋转时直接回到最后一个有效位置
             fixMatrix(fromMatrix, toMatrix);
         }
-        float[] fromValues = new float[9];
-        fromMatrix.getValues(fromValues);
-        int fromLeft = (int) fromValues[2];
-        int fromTop = (int) fromValues[5];
-
-        float[] toValues = new float[9];
-        toMatrix.getValues(toValues);
-        int toLeft = (int) toValues[2];
-        int toTop = (int) toValues[5];
-
-        int gap = 15;
-
-        if (isTranslate) {
-            // 只是坐标平移变换
-            int maxTimes = 10;
-            // int minDis=10;
-            for (int i = 0; i < maxTimes; i++) {
-                int dx = (toLeft - fromLeft) * (i + 1) / maxTimes;
-                int dy = (toTop - fromTop) * (i + 1) / maxTimes;
-                Matrix matrix = new Matrix(fromMatrix);
-                matrix.postTranslate(dx, dy);
-                Message msg = mRollbackHandler.obtainMessage();
-                msg.what = 0;
-                msg.obj = matrix;
-                msg.arg1 = MSG_ANIM_ON;
-                mRollbackHandler.sendMessageDelayed(msg, gap * i);
-            }
-            Message lastMsg = new Message();
-            lastMsg.what = 0;
-            lastMsg.obj = new Matrix(toMatrix);
-            lastMsg.arg1 = MSG_ANIM_END;
-            mRollbackHandler.sendMessageDelayed(lastMsg, gap * maxTimes);
-
-        } else {
-            // 只是拉伸变換
-            int maxTimes = 10;
-            // int minDis=10;
-            float base = (float) toRect.width() / (float) fromRect.width();
-            float delta = (float) Math.pow(base, (float) 1 / (float) maxTimes);
-            Matrix matrix = new Matrix(fromMatrix);
-            for (int i = 0; i < maxTimes; i++) {
-                /*
-                 * matrix.postScale(delta, delta, fromRect.left + fromRect.right
-                 * / 2, toRect.top + toRect.bottom / 2);
-                 */
-                matrix.postScale(delta, delta, mid.x, mid.y);
-                Matrix sendMatrix = new Matrix(matrix);
-                Message msg = mRollbackHandler.obtainMessage();
-                msg.what = 0;
-                msg.obj = sendMatrix;
-                msg.arg1 = MSG_ANIM_ON;
-                mRollbackHandler.sendMessageDelayed(msg, gap * i);
-            }
-            Message lastMsg = mRollbackHandler.obtainMessage();
-            lastMsg.what = 0;
-            lastMsg.obj = new Matrix(toMatrix);
-            lastMsg.arg1 = MSG_ANIM_END;
-            mRollbackHandler.sendMessageDelayed(lastMsg, gap * maxTimes);
-
-        }
-
+        mAnimator.start(fromMatrix, toMatrix);
     }
 
     /**
-     * 返回交叉区域
+     * 计算交叉区域，没有交叉时为图片可视区域
      * 
-     * @return
+     * @param out
+     * @return 是否有交叉
      */
-    private RectF getInsertRect(final Matrix matrix) {
-        RectF visibleRect = getVisibleRect(matrix);
-        RectF snapRect = mClipView.getClipRect();
-        visibleRect.intersect(snapRect);
-        return visibleRect;
+    private boolean getInsertRect(final Matrix matrix, float[] out) {
+        getVisibleRect(matrix, out);
+        mClipView.getClipRect(mClip);
+        return ClipGeometry.intersect(out, mClip);
     }
 
     // 平移回弹修正
     private void fixMatrix(Matrix fromMatrix, Matrix toMatrix) {
-        RectF insert = getInsertRect(fromMatrix);
-        RectF snapRect = mClipView.getClipRect();
-
-        boolean hasInsert = insert.width() * insert.height() > 0;
-
-        float[] fromValues = new float[9];
-        fromMatrix.getValues(fromValues);
-        float[] toValues = new float[9];
-        toMatrix.getValues(toValues);
-
-        int fromLeft = (int) fromValues[Matrix.MTRANS_X];
-        int fromTop = (int) fromValues[Matrix.MTRANS_Y];
-        int toLeft = fromLeft;
-        int toTop = fromTop;
-
-        if (isInside(snapRect, new PointF(insert.left, insert.top))) {
-            toLeft += snapRect.left - insert.left;
-            toTop += snapRect.top - insert.top;
-        } else if (isInside(snapRect, new PointF(insert.right, insert.top))) {
-            toLeft += snapRect.right - insert.right;
-            toTop += snapRect.top - insert.top;
-
-        } else if (isInside(snapRect, new PointF(insert.left, insert.bottom))) {
-            toLeft += snapRect.left - insert.left;
-            toTop += snapRect.bottom - insert.bottom;
-
-        } else if (isInside(snapRect, new PointF(insert.right, insert.bottom))) {
-            toLeft += snapRect.right - insert.right;
-            toTop += snapRect.bottom - insert.bottom;
-        } else if (insert.left > snapRect.left && insert.left <= snapRect.right
-                && insert.top <= snapRect.top
-                && insert.bottom >= snapRect.bottom) {
-            toLeft += snapRect.left - insert.left;
-        } else if (hasInsert && insert.right < snapRect.right
-                && insert.right >= snapRect.left && insert.top <= snapRect.top
-                && insert.bottom >= snapRect.bottom) {
-            toLeft += snapRect.right - insert.right;
-        } else if (hasInsert && insert.top > snapRect.top
-                && insert.top <= snapRect.bottom
-                && insert.left <= snapRect.left
-                && insert.right >= snapRect.right) {
-            toTop += snapRect.top - insert.top;
-        } else if (hasInsert && insert.bottom < snapRect.bottom
-                && insert.bottom >= snapRect.top
-                && insert.left <= snapRect.left
-                && insert.right >= snapRect.right) {
-            toTop += snapRect.bottom - insert.bottom;
-        } else {
-            toLeft = (int) toValues[Matrix.MTRANS_X];
-            toTop = (int) toValues[Matrix.MTRANS_Y];
-
-        }
-        toValues[Matrix.MTRANS_X] = toLeft;
-        toValues[Matrix.MTRANS_Y] = toTop;
-        toMatrix.setValues(toValues);
-    }
-
-    private boolean isInside(RectF rect, PointF point) {
-        return point.x < rect.right && point.x > rect.left
-                && point.y < rect.bottom && point.y > rect.top;
+        getInsertRect(fromMatrix, mVisible);
+
+        fromMatrix.getValues(mValues);
+        toMatrix.getValues(mToValues);
+
+        ClipGeometry.fixTranslation(mVisible, mClip,
+                mValues[Matrix.MTRANS_X], mValues[Matrix.MTRANS_Y],
+                mToValues[Matrix.MTRANS_X], mToValues[Matrix.MTRANS_Y],
+                mTranslation);
+        mToValues[Matrix.MTRANS_X] = mTranslation[0];
+        mToValues[Matrix.MTRANS_Y] = mTranslation[1];
+        toMatrix.setValues(mToValues);
     }
 
     /**
-     * 获取图片可视区域，屏幕左上角为top，右下脚为bottom
+     * 计算图片可视区域，屏幕左上角为top，右下脚为bottom
      * 
-     * @return
+     * @param out
      */
-    private RectF getVisibleRect(final Matrix matrix) {
+    private void getVisibleRect(final Matrix matrix, float[] out) {
         Drawable drawable = mSouceImageView.getDrawable();
         if (drawable == null) { // 可能为空，故加上null判断
-            return new RectF(0, 0, 0, 0);
+            out[ClipGeometry.LEFT] = 0;
+            out[ClipGeometry.TOP] = 0;
+            out[ClipGeometry.RIGHT] = 0;
+            out[ClipGeometry.BOTTOM] = 0;
+            return;
         }
         Rect rect = drawable.getBounds();
-        int width = rect.width();
-        int height = rect.height();
-        // final Matrix matrix = mImageView.getImageMatrix();
-        float[] values = new float[9];
-        matrix.getValues(values);
-        Rect visibleRect = new Rect();
-        width = (int) (width * values[8]);
-        height = (int) (height * values[8]);
-        visibleRect.left = (int) values[2];
-        visibleRect.top = (int) values[5];
-        visibleRect.right = (int) (visibleRect.left + width * values[0] + height
-                * values[1]);
-        visibleRect.bottom = (int) (visibleRect.top + height * values[0] - width
-                * values[1]);
-
-        RectF newRect = new RectF();
-        newRect.left = Math.min(visibleRect.left, visibleRect.right);
-        newRect.top = Math.min(visibleRect.top, visibleRect.bottom);
-        newRect.right = Math.max(visibleRect.left, visibleRect.right);
-        newRect.bottom = Math.max(visibleRect.top, visibleRect.bottom);
-
-        return newRect;
-    }
-
-    private static final int MSG_ANIM_ON = 0;
-    private static final int MSG_ANIM_END = 1;
-
-    private Handler mRollbackHandler = new Handler(new Callback() {
-        @Override
-        public boolean handleMessage(Message msg) {
-            Matrix mmatrix = (Matrix) msg.obj;
-            mSouceImageView.setImageMatrix(mmatrix);
-            if (msg.arg1 == MSG_ANIM_END) {
-                matrix.set(mmatrix);
-                savedMatrix.set(mmatrix);
-                mode = NONE;
-            }
-            return true;
-        }
-    });
+        matrix.getValues(mValues);
+        ClipGeometry.visibleRect(mValues, rect.width(), rect.height(), out);
+    }
+
+    private final MatrixAnimator mAnimator = new MatrixAnimator(
+            new MatrixAnimator.Listener() {
+                @Override
+                public void onAnimationUpdate(Matrix m) {
+                    // 同步到matrix，中途被触摸打断时从当前帧继续
+                    matrix.set(m);
+                    setImageMatrix(matrix);
+                }
+
+                @Override
+                public void onAnimationEnd(Matrix m) {
+                    matrix.set(m);
+                    savedMatrix.set(m);
+                    setImageMatrix(matrix);
+                    mode = NONE;
+                }
+            });
 
     @Override
     public void onClick(View v) {
@@ -28,6 +28,10 @@ import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
 
+import com.example.clipview.utils.BitmapLedger;
+import com.example.clipview.utils.BitmapPool;
+import com.example.clipview.utils.ClipGeometry;
+
 /**
  * 
  * @author huyx
@@ -39,6 +43,7 @@ public class ClipView extends View {
 	private int mClipHeight = 0;
 	private Bitmap mRectBitmap; // 用于背景缓存
 	private Paint mEmptyPaint = new Paint();
+	private final float[] mClipBounds = new float[4]; // 截取区域缓存，尺寸变化时更新
 
 	public ClipView(Context context) {
 		super(context);
@@ -55,6 +60,7 @@ public class ClipView extends View {
 	@Override
 	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
 		super.onSizeChanged(w, h, oldw, oldh);
+		updateClipBounds();
 		refreshRectBitmap();
 	}
 
@@ -62,12 +68,16 @@ public class ClipView extends View {
 	 * 刷新全局背景
 	 */
 	private void refreshRectBitmap() {
+		if (getWidth() <= 0 || getHeight() <= 0) {
+			return;
+		}
 		Bitmap recBitmap = mRectBitmap;
 		Paint paint = new Paint();
 		paint.setAntiAlias(true);
 		Paint transparentPaint;
-		mRectBitmap = Bitmap.createBitmap(getWidth(), getHeight(),
+		mRectBitmap = BitmapPool.getInstance().get(getWidth(), getHeight(),
 		        Bitmap.Config.ARGB_8888);
+		BitmapLedger.getInstance().attach(mRectBitmap, this);
 		Canvas temp = new Canvas(mRectBitmap);
 		RectF clipRect = getClipRect();
 		paint.setColor(SHADOW_COLOR);
@@ -82,7 +92,7 @@ public class ClipView extends View {
 		        (clipRect.top + clipRect.bottom) / 2,
 		        (clipRect.right - clipRect.left) / 2, transparentPaint);
 		if (recBitmap != null) {
-			recBitmap.recycle();
+			BitmapPool.getInstance().put(recBitmap);
 			recBitmap = null;
 		}
 	}
@@ -93,7 +103,29 @@ public class ClipView extends View {
 	 * @return
 	 */
 	public RectF getClipRect() {
-		RectF result = new RectF();
+		return new RectF(mClipBounds[ClipGeometry.LEFT],
+		        mClipBounds[ClipGeometry.TOP], mClipBounds[ClipGeometry.RIGHT],
+		        mClipBounds[ClipGeometry.BOTTOM]);
+	}
+
+	/**
+	 * 获取截取区域位置信息，不创建对象，用于触摸等频繁调用的地方
+	 * 
+	 * @param out
+	 *            按ClipGeometry.LEFT、TOP、RIGHT、BOTTOM排列
+	 */
+	public void getClipRect(float[] out) {
+		System.arraycopy(mClipBounds, 0, out, 0, 4);
+	}
+
+	/**
+	 * 按当前宽高重新计算截取区域
+	 */
+	private void updateClipBounds() {
+		mClipBounds[ClipGeometry.LEFT] = 0;
+		mClipBounds[ClipGeometry.TOP] = 0;
+		mClipBounds[ClipGeometry.RIGHT] = 0;
+		mClipBounds[ClipGeometry.BOTTOM] = 0;
 		int width = this.getWidth();
 		int height = this.getHeight();
 		if (mClipWidth != 0 && mClipHeight != 0) {
@@ -101,13 +133,14 @@ public class ClipView extends View {
 			int y = (int) ((height - mClipHeight) / 2);
 			// int y = 1;
 			if (x > 0 && y > 0) {
-				result.set(x, y, x + mClipWidth, y + mClipHeight);
-			} else {
+				mClipBounds[ClipGeometry.LEFT] = x;
+				mClipBounds[ClipGeometry.TOP] = y;
+				mClipBounds[ClipGeometry.RIGHT] = x + mClipWidth;
+				mClipBounds[ClipGeometry.BOTTOM] = y + mClipHeight;
+			} else if (width > 0 && height > 0) {
 				Log.e("ClipView", "Clip cal err");
 			}
 		}
-		return result;
-
 	}
 
 	@Override
@@ -124,8 +157,10 @@ public class ClipView extends View {
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
         if (mRectBitmap != null) {
-            mRectBitmap.recycle();
+            BitmapPool.getInstance().put(mRectBitmap);
+            mRectBitmap = null;
         }
+        BitmapLedger.getInstance().onOwnerDestroyed(this);
     }
 
 	/**
@@ -137,6 +172,7 @@ public class ClipView extends View {
 	public void setSize(int clipViewWidth, int clipViewHeight) {
 		mClipWidth = clipViewWidth;
 		mClipHeight = clipViewHeight;
+		updateClipBounds();
 	}
 
 }
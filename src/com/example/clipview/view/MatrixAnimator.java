@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.view;
+
+import android.annotation.TargetApi;
+import android.graphics.Matrix;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.animation.DecelerateInterpolator;
+import android.view.animation.Interpolator;
+
+/**
+ * 矩阵动画，每帧在同一个Matrix上按插值进度计算起止矩阵之间的值。
+ * <p>
+ * API 16及以上由Choreographer按屏幕实际刷新率驱动，以下用Handler按固定间隔驱动。
+ * 只能在主线程使用。
+ */
+class MatrixAnimator {
+    private static final long DEFAULT_DURATION = 150;
+    private static final long FALLBACK_FRAME_DELAY = 10;
+
+    public interface Listener {
+        /**
+         * 每帧回调，matrix在下一帧会被复用，需要保存时应复制
+         *
+         * @param matrix
+         */
+        void onAnimationUpdate(Matrix matrix);
+
+        /**
+         * 动画正常结束，取消时不回调
+         *
+         * @param matrix
+         *            终点矩阵
+         */
+        void onAnimationEnd(Matrix matrix);
+    }
+
+    private final Listener mListener;
+    private final FrameDriver mDriver;
+    private final Matrix mMatrix = new Matrix();
+    private final float[] mFrom = new float[9];
+    private final float[] mTo = new float[9];
+    private final float[] mValues = new float[9];
+    private Interpolator mInterpolator = new DecelerateInterpolator();
+    private long mDuration = DEFAULT_DURATION;
+    private long mStartTimeNanos;
+    private boolean mRunning;
+
+    MatrixAnimator(Listener listener) {
+        mListener = listener;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mDriver = new ChoreographerDriver(this);
+        } else {
+            mDriver = new HandlerDriver(this);
+        }
+    }
+
+    public void setDuration(long duration) {
+        mDuration = duration;
+    }
+
+    public void setInterpolator(Interpolator interpolator) {
+        mInterpolator = interpolator;
+    }
+
+    /**
+     * 从from动画到to，正在进行的动画被取消。起止矩阵的值在调用时复制
+     *
+     * @param from
+     * @param to
+     */
+    public void start(Matrix from, Matrix to) {
+        cancel();
+        from.getValues(mFrom);
+        to.getValues(mTo);
+        mStartTimeNanos = -1;
+        mRunning = true;
+        mDriver.postFrame();
+    }
+
+    /**
+     * 停在当前帧，不回调onAnimationEnd
+     */
+    public void cancel() {
+        if (mRunning) {
+            mRunning = false;
+            mDriver.removeFrame();
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        // 以第一帧的时间为起点，与驱动方式的时钟无关
+        if (mStartTimeNanos < 0) {
+            mStartTimeNanos = frameTimeNanos;
+        }
+        float fraction = mDuration > 0 ? (frameTimeNanos - mStartTimeNanos) / (mDuration * 1000000f) : 1f;
+        if (fraction >= 1f) {
+            mRunning = false;
+            mMatrix.setValues(mTo);
+            mListener.onAnimationEnd(mMatrix);
+            return;
+        }
+        float progress = mInterpolator.getInterpolation(fraction);
+        for (int i = 0; i < mValues.length; i++) {
+            mValues[i] = mFrom[i] + (mTo[i] - mFrom[i]) * progress;
+        }
+        mMatrix.setValues(mValues);
+        mListener.onAnimationUpdate(mMatrix);
+        mDriver.postFrame();
+    }
+
+    private interface FrameDriver {
+        void postFrame();
+
+        void removeFrame();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ChoreographerDriver implements FrameDriver, Choreographer.FrameCallback {
+        private final MatrixAnimator mAnimator;
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        ChoreographerDriver(MatrixAnimator animator) {
+            mAnimator = animator;
+        }
+
+        @Override
+        public void postFrame() {
+            mChoreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void removeFrame() {
+            mChoreographer.removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mAnimator.doFrame(frameTimeNanos);
+        }
+    }
+
+    private static class HandlerDriver implements FrameDriver, Runnable {
+        private final MatrixAnimator mAnimator;
+        private final Handler mHandler = new Handler();
+
+        HandlerDriver(MatrixAnimator animator) {
+            mAnimator = animator;
+        }
+
+        @Override
+        public void postFrame() {
+            mHandler.postDelayed(this, FALLBACK_FRAME_DELAY);
+        }
+
+        @Override
+        public void removeFrame() {
+            mHandler.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            mAnimator.doFrame(SystemClock.uptimeMillis() * 1000000L);
+        }
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2014 zzl09
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.clipview.view;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Process;
+import android.support.v4.util.LongSparseArray;
+import android.support.v4.util.LruCache;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.View;
+
+import com.example.clipview.utils.BitmapLedger;
+import com.example.clipview.utils.BitmapPool;
+import com.example.clipview.utils.DecodeSource;
+import com.example.clipview.utils.SizePlanner;
+
+/**
+ * 按缩放分块解码原图的显示层，叠加在预览图之上。
+ * <p>
+ * 预览图作为低分辨率底图；缩放到预览图像素被放大时，按当前缩放需要的采样率从原图解码可见区域的图块。
+ * 图块缓存按字节数LRU淘汰，大小约为几个屏幕，解码在后台线程进行，
+ * 移出屏幕或采样率已变化的图块取消解码。
+ * <p>
+ * 每帧按long键查找已请求的图块，不装箱；LruCache使用图块中保存的装箱键，绘制过程不分配对象。
+ */
+public class TileView extends View {
+    private static final String TAG = "TileView";
+    /** 图块采样后的边长 */
+    private static final int TILE_SIZE = 256;
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+    /** 解码线程数，每个线程使用独立的区域解码器 */
+    private static final int DECODER_COUNT = 2;
+    /** 图块缓存为屏幕像素字节数的倍数 */
+    private static final int CACHE_SCREENS = 3;
+
+    private static ExecutorService sExecutor;
+
+    private final Handler mHandler = new Handler();
+    private final Matrix mImageMatrix = new Matrix();
+    private final Matrix mSourceToView = new Matrix();
+    private final Matrix mViewToSource = new Matrix();
+    private final Matrix mTileMatrix = new Matrix();
+    private final RectF mVisible = new RectF();
+    private final Rect mTileRect = new Rect();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    /** 解码中和已缓存的图块 */
+    private final LongSparseArray<Tile> mTiles = new LongSparseArray<Tile>();
+    /** 解码中的图块 */
+    private final List<Tile> mPending = new ArrayList<Tile>();
+    private LruCache<Long, Bitmap> mCache;
+
+    private DecoderPool mPool;
+    private int mSourceWidth;
+    private int mSourceHeight;
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+
+    public TileView(Context context) {
+        super(context);
+        init(context);
+    }
+
+    public TileView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init(context);
+    }
+
+    public TileView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        init(context);
+    }
+
+    private void init(Context context) {
+        DisplayMetrics dm = context.getResources().getDisplayMetrics();
+        long screenBytes = (long) dm.widthPixels * dm.heightPixels * 4;
+        int maxSize = (int) Math.min(Math.min(screenBytes * CACHE_SCREENS, Runtime.getRuntime().maxMemory() / 8),
+                Integer.MAX_VALUE);
+        mCache = new LruCache<Long, Bitmap>(Math.max(maxSize, TILE_BYTES)) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return BitmapPool.getByteSize(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    BitmapPool.getInstance().put(oldValue);
+                }
+                if (newValue == null) {
+                    mTiles.remove(key);
+                }
+            }
+        };
+    }
+
+    /**
+     * 设置原图，在后台打开区域解码器，之前的图块全部丢弃。API 10以下没有区域解码器，只显示底图
+     *
+     * @param resolver
+     * @param uri
+     */
+    public void setSource(ContentResolver resolver, Uri uri) {
+        release();
+        if (!DecodeSource.isRegionDecoderSupported()) {
+            return;
+        }
+        final DecoderPool pool = new DecoderPool(resolver, uri);
+        mPool = pool;
+        getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                final int[] size = pool.getSize();
+                if (size == null) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (pool == mPool) {
+                            mSourceWidth = size[0];
+                            mSourceHeight = size[1];
+                            invalidate();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 底图大小，图片矩阵以底图坐标为准
+     */
+    public void setPreviewSize(int width, int height) {
+        mPreviewWidth = width;
+        mPreviewHeight = height;
+        invalidate();
+    }
+
+    /**
+     * 与底图ImageView相同的图片矩阵
+     */
+    public void setImageMatrix(Matrix matrix) {
+        mImageMatrix.set(matrix);
+        invalidate();
+    }
+
+    /**
+     * 取消解码，释放图块和解码器
+     */
+    public void release() {
+        for (int i = 0; i < mPending.size(); i++) {
+            mPending.get(i).cancel();
+        }
+        mPending.clear();
+        mCache.evictAll();
+        mTiles.clear();
+        if (mPool != null) {
+            mPool.close();
+            mPool = null;
+        }
+        mSourceWidth = 0;
+        mSourceHeight = 0;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        release();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mPool == null || mSourceWidth <= 0 || mPreviewWidth <= 0 || mPreviewHeight <= 0) {
+            return;
+        }
+        mSourceToView.setScale((float) mPreviewWidth / (float) mSourceWidth, (float) mPreviewHeight
+                / (float) mSourceHeight);
+        mSourceToView.postConcat(mImageMatrix);
+        if (!mSourceToView.invert(mViewToSource)) {
+            cancelStale(0, 0, 0, 0, 0);
+            return;
+        }
+        mVisible.set(0, 0, getWidth(), getHeight());
+        mViewToSource.mapRect(mVisible);
+        if (!mVisible.intersect(0, 0, mSourceWidth, mSourceHeight)) {
+            cancelStale(0, 0, 0, 0, 0);
+            return;
+        }
+
+        int sampleSize = getSampleSize();
+        if (sampleSize == 0) {
+            cancelStale(0, 0, 0, 0, 0);
+            return;
+        }
+        int tileSource = TILE_SIZE * sampleSize;
+        int left = (int) (mVisible.left / tileSource);
+        int top = (int) (mVisible.top / tileSource);
+        int right = (int) Math.ceil(mVisible.right / tileSource);
+        int bottom = (int) Math.ceil(mVisible.bottom / tileSource);
+        cancelStale(sampleSize, left, top, right, bottom);
+
+        for (int row = top; row < bottom; row++) {
+            for (int col = left; col < right; col++) {
+                mTileRect.set(col * tileSource, row * tileSource, Math.min(mSourceWidth, (col + 1) * tileSource),
+                        Math.min(mSourceHeight, (row + 1) * tileSource));
+                long key = tileKey(sampleSize, col, row);
+                Tile entry = mTiles.get(key);
+                if (entry == null) {
+                    requestTile(key, sampleSize, col, row, mTileRect);
+                    continue;
+                }
+                if (entry.future != null) {
+                    continue;
+                }
+                // 已缓存的图块，get()同时更新LRU顺序
+                Bitmap tile = mCache.get(entry.key);
+                if (tile == null) {
+                    continue;
+                }
+                mTileMatrix.setScale((float) mTileRect.width() / (float) tile.getWidth(), (float) mTileRect.height()
+                        / (float) tile.getHeight());
+                mTileMatrix.postTranslate(mTileRect.left, mTileRect.top);
+                mTileMatrix.postConcat(mSourceToView);
+                canvas.drawBitmap(tile, mTileMatrix, mPaint);
+            }
+        }
+    }
+
+    /**
+     * 当前缩放需要的采样率，取与屏幕像素密度最接近的2的幂，可见图块超出缓存时加大
+     *
+     * @return 底图已足够清晰时为0
+     */
+    private int getSampleSize() {
+        // 屏幕一个像素对应的原图像素数
+        float sourcePerView = 1 / mSourceToView.mapRadius(1);
+        float sourcePerPreview = (float) mSourceWidth / (float) mPreviewWidth;
+        if (sourcePerView >= sourcePerPreview) {
+            return 0;
+        }
+        int sampleSize = 1;
+        while (sampleSize * 2 <= sourcePerView * 1.4142f) {
+            sampleSize *= 2;
+        }
+        while (tileCount(sampleSize) * TILE_BYTES > mCache.maxSize()) {
+            sampleSize *= 2;
+        }
+        return sampleSize < sourcePerPreview ? sampleSize : 0;
+    }
+
+    private long tileCount(int sampleSize) {
+        int tileSource = TILE_SIZE * sampleSize;
+        long cols = (long) Math.ceil(mVisible.right / tileSource) - (int) (mVisible.left / tileSource);
+        long rows = (long) Math.ceil(mVisible.bottom / tileSource) - (int) (mVisible.top / tileSource);
+        return cols * rows;
+    }
+
+    /**
+     * 取消不在可见范围或采样率不同的解码，sampleSize为0时全部取消
+     */
+    private void cancelStale(int sampleSize, int left, int top, int right, int bottom) {
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            Tile tile = mPending.get(i);
+            if (sampleSize != 0 && tile.sampleSize == sampleSize && tile.col >= left && tile.col < right
+                    && tile.row >= top && tile.row < bottom) {
+                continue;
+            }
+            tile.cancel();
+            mPending.remove(i);
+            mTiles.remove(tile.key);
+        }
+    }
+
+    private void requestTile(long key, final int sampleSize, int col, int row, Rect tileRect) {
+        final DecoderPool pool = mPool;
+        final Rect region = new Rect(tileRect);
+        final Tile tile = new Tile(key, sampleSize, col, row);
+        tile.future = getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = pool.decode(region, sampleSize);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTileDecoded(pool, tile, bitmap);
+                    }
+                });
+            }
+        });
+        mTiles.put(key, tile);
+        mPending.add(tile);
+    }
+
+    private void onTileDecoded(DecoderPool pool, Tile tile, Bitmap bitmap) {
+        // 已取消或已换图的结果直接归还
+        if (pool != mPool || tile.future == null) {
+            BitmapPool.getInstance().put(bitmap);
+            return;
+        }
+        tile.future = null;
+        mPending.remove(tile);
+        if (bitmap == null) {
+            // 下次绘制时重新请求
+            mTiles.remove(tile.key);
+            return;
+        }
+        mCache.put(tile.key, bitmap);
+        invalidate();
+    }
+
+    private static long tileKey(int sampleSize, int col, int row) {
+        return ((long) Integer.numberOfTrailingZeros(sampleSize) << 48) | ((long) col << 24) | row;
+    }
+
+    /**
+     * 已请求的图块
+     */
+    private static final class Tile {
+        /** 请求时装箱一次，之后查询和放入LruCache都用同一个对象 */
+        final Long key;
+        final int sampleSize;
+        final int col;
+        final int row;
+        /** 解码中不为null，取消或解码完成后为null */
+        Future<?> future;
+
+        Tile(long key, int sampleSize, int col, int row) {
+            this.key = key;
+            this.sampleSize = sampleSize;
+            this.col = col;
+            this.row = row;
+        }
+
+        void cancel() {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(DECODER_COUNT, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "TileView #" + mCount.getAndIncrement());
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * 同一张原图的区域解码器，每个解码线程最多占用一个，各自打开数据源，关闭后归还的解码器直接回收
+     */
+    private static class DecoderPool {
+        private final ContentResolver mResolver;
+        private final Uri mUri;
+        private final List<DecodeSource> mIdleSources = new ArrayList<DecodeSource>();
+        private final List<BitmapRegionDecoder> mIdleDecoders = new ArrayList<BitmapRegionDecoder>();
+        private boolean mClosed;
+
+        DecoderPool(ContentResolver resolver, Uri uri) {
+            mResolver = resolver;
+            mUri = uri;
+        }
+
+        /**
+         * @return 原图宽高，无法打开时为null
+         */
+        int[] getSize() {
+            DecodeSource[] source = new DecodeSource[1];
+            BitmapRegionDecoder decoder = acquire(source);
+            if (decoder == null) {
+                return null;
+            }
+            int[] size = new int[] { decoder.getWidth(), decoder.getHeight() };
+            recycle(source[0], decoder);
+            return size;
+        }
+
+        Bitmap decode(Rect region, int sampleSize) {
+            DecodeSource[] source = new DecodeSource[1];
+            BitmapRegionDecoder decoder = acquire(source);
+            if (decoder == null) {
+                return null;
+            }
+            try {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sampleSize;
+                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                BitmapPool.getInstance().setInBitmap(options, SizePlanner.sampledSize(region.width(), sampleSize),
+                        SizePlanner.sampledSize(region.height(), sampleSize));
+                Bitmap bitmap;
+                try {
+                    bitmap = decoder.decodeRegion(region, options);
+                } catch (IllegalArgumentException e) {
+                    // 复用的Bitmap不满足要求时重新分配
+                    BitmapPool.getInstance().put(options.inBitmap);
+                    options.inBitmap = null;
+                    bitmap = decoder.decodeRegion(region, options);
+                }
+                if (bitmap != options.inBitmap) {
+                    BitmapPool.getInstance().put(options.inBitmap);
+                    if (bitmap != null) {
+                        BitmapLedger.getInstance().track(bitmap, "TileView");
+                    }
+                }
+                return bitmap;
+            } catch (OutOfMemoryError e) {
+                Log.e(TAG, "decode tile " + region + " out of memory");
+                return null;
+            } finally {
+                recycle(source[0], decoder);
+            }
+        }
+
+        private BitmapRegionDecoder acquire(DecodeSource[] source) {
+            synchronized (this) {
+                if (mClosed) {
+                    return null;
+                }
+                if (!mIdleDecoders.isEmpty()) {
+                    source[0] = mIdleSources.remove(mIdleSources.size() - 1);
+                    return mIdleDecoders.remove(mIdleDecoders.size() - 1);
+                }
+            }
+            DecodeSource newSource = DecodeSource.fromUri(mResolver, mUri);
+            try {
+                BitmapRegionDecoder decoder = newSource.newRegionDecoder();
+                source[0] = newSource;
+                return decoder;
+            } catch (IOException e) {
+                Log.e(TAG, "open " + mUri + " failed " + e.getMessage());
+                newSource.close();
+                return null;
+            }
+        }
+
+        private void recycle(DecodeSource source, BitmapRegionDecoder decoder) {
+            synchronized (this) {
+                if (!mClosed) {
+                    mIdleSources.add(source);
+                    mIdleDecoders.add(decoder);
+                    return;
+                }
+            }
+            decoder.recycle();
+            source.close();
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            for (BitmapRegionDecoder decoder : mIdleDecoders) {
+                decoder.recycle();
+            }
+            for (DecodeSource source : mIdleSources) {
+                source.close();
+            }
+            mIdleDecoders.clear();
+            mIdleSources.clear();
+        }
+    }
+}